@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.commands;
+
+//--------------------------------------------------------------------------------
+// Durations on the command line: "500ms", "2s", "1m" or plain milliseconds.
+//--------------------------------------------------------------------------------
+class Durations
+{
+    static long parseMillis (String duration)
+    {
+        String value = duration.trim ();
+        long unit_ms = 1;
+
+        if (value.endsWith ("ms"))
+        {
+            value = value.substring (0, value.length () - 2);
+        }
+        else if (value.endsWith ("s"))
+        {
+            value = value.substring (0, value.length () - 1);
+            unit_ms = 1000;
+        }
+        else if (value.endsWith ("m"))
+        {
+            value = value.substring (0, value.length () - 1);
+            unit_ms = 60000;
+        }
+
+        try
+        {
+            long millis = Math.round (Double.parseDouble (value) * unit_ms);
+
+            if (millis > 0)
+            {
+                return (millis);
+            }
+        }
+        catch (NumberFormatException ignore) {};
+
+        throw new IllegalArgumentException ("Invalid duration '" + duration + "'");
+    }
+}
+
+// EOF
@@ -17,26 +17,66 @@
 package org.lucidj.ladmin.commands;
 
 import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.libladmin.admind.AdmindFanOut;
+import org.lucidj.libladmin.admind.AdmindRequest;
+import org.lucidj.libladmin.admind.AdmindServers;
+import org.lucidj.libladmin.admind.AdmindTransport;
+import org.lucidj.libladmin.admind.AdmindTransports;
+import org.lucidj.libladmin.admind.WaitPolicy;
+import org.lucidj.libladmin.shared.CommandExit;
+
+import java.io.IOException;
+import java.util.Arrays;
 
 public class Jmx
 {
     public static void main (String[] args)
+        throws InterruptedException
     {
-        String def_server_name = AdmindUtil.getServerName ();
-        String admind = AdmindUtil.initAdmindDir ();
+        AdmindServers.Selection selection = AdmindServers.parseArgs (args);
+        args = selection.args;
+
+        if (args.length > 0 && args [0].equals ("watch"))
+        {
+            JmxWatch.run (selection, Arrays.copyOfRange (args, 1, args.length));
+            return;
+        }
+
+        if (selection.isFanOut ())
+        {
+            // Every matching server at once, answers tagged by server
+            int failures = AdmindFanOut.invokeAll (selection.getServers (), "jmx",
+                AdmindUtil.encodeArgs (args), System.out, AdmindFanOut.TAGGED_LINES);
+            CommandExit.exit (failures == 0? 0: 1);
+        }
+
+        AdmindTransport transport = AdmindTransports.open ();
 
-        if (admind == null)
+        if (transport == null)
+        {
+            System.out.println ("Unable to find '" + AdmindUtil.getServerName () + "'");
+            CommandExit.exit (1);
+        }
+
+        String def_server_name = transport.getServerName ();
+
+        AdmindRequest request = null;
+
+        try
+        {
+            request = transport.invoke ("jmx", AdmindUtil.encodeArgs (args));
+        }
+        catch (IOException e)
         {
-            System.out.println ("Unable to find '" + def_server_name + "'");
-            System.exit (1);
+            System.out.println ("Unable to reach '" + def_server_name + "': " + e.getMessage ());
+            CommandExit.exit (1);
         }
 
-        String request = AdmindUtil.asyncInvoke ("jmx", AdmindUtil.encodeArgs (args));
-        int status = AdmindUtil.asyncWait (request);
+        int status = request.await (-1, AdmindUtil.ASYNC_READY, WaitPolicy.forCommand ("jmx"));
 
         if (status == AdmindUtil.ASYNC_READY)
         {
-            String response = AdmindUtil.asyncResponse (request);
+            String response = request.getResponse ();
             System.out.println (response);
         }
         else if (status == AdmindUtil.ASYNC_GONE)
@@ -45,9 +85,10 @@ public class Jmx
         }
         else
         {
-            String error = AdmindUtil.asyncError (request);
+            String error = request.getError ();
             System.out.println ("Request error on '" + def_server_name + "': " + error);
         }
+        request.close ();
     }
 }
 
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.commands;
+
+import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.libladmin.admind.AdmindClient;
+import org.lucidj.libladmin.admind.AdmindResponse;
+import org.lucidj.libladmin.admind.AdmindServers;
+import org.lucidj.libladmin.admind.AdmindTransport;
+import org.lucidj.libladmin.admind.AdmindTransports;
+import org.lucidj.libladmin.shared.CommandExit;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+//--------------------------------------------------------------------------------
+// ladmin jmx watch <query> [--every <duration>]
+//
+// Samples the query over and over from a single JVM and client, parsing
+// every "<attribute>: <number>" line of the answers. The first sample shows
+// the values, later ones only what changed, with the delta and the rate per
+// second since the previous sample. Anything that didn't move is left out.
+//--------------------------------------------------------------------------------
+class JmxWatch
+{
+    private final static long DEFAULT_EVERY_MS = 1000;
+    private final static long MIN_TIMEOUT_MS = 10000;
+
+    // Attributes shown as bytes and bytes/s
+    private final static Pattern BYTES_ATTRIBUTE = Pattern.compile (
+        "(?i).*(bytes|memory|heap|size|\\.used|\\.committed|\\.max|\\.init)$");
+
+    private final Map<String, Double> last_values = new HashMap<> ();
+    private final Map<String, String> last_texts = new HashMap<> ();
+    private long last_sample_nanos;
+
+    private static void usage (String message)
+    {
+        System.out.println (message);
+        System.out.println ("Usage: ladmin jmx watch <query> [--every <duration>] [--server <name>]");
+        CommandExit.exit (1);
+    }
+
+    private static String format_number (double value)
+    {
+        if (value == Math.rint (value) && Math.abs (value) < 1e15)
+        {
+            return (Long.toString ((long)value));
+        }
+        return (String.format ("%.3f", value));
+    }
+
+    private static String format_bytes (double value)
+    {
+        String[] units = { "B", "KiB", "MiB", "GiB", "TiB" };
+        double scaled = Math.abs (value);
+        int unit = 0;
+
+        while (scaled >= 1024 && unit < units.length - 1)
+        {
+            scaled /= 1024;
+            unit++;
+        }
+        String sign = (value < 0)? "-": "";
+        return (unit == 0? sign + format_number (scaled) + units [0]: String.format ("%s%.1f%s", sign, scaled, units [unit]));
+    }
+
+    private static String format (String attribute, double value)
+    {
+        return (BYTES_ATTRIBUTE.matcher (attribute).matches ()? format_bytes (value): format_number (value));
+    }
+
+    private static String format_rate (String attribute, double per_second)
+    {
+        if (BYTES_ATTRIBUTE.matcher (attribute).matches ())
+        {
+            return (format_bytes (per_second) + "/s");
+        }
+        return (String.format (Math.abs (per_second) >= 100? "%.0f/s": "%.2f/s", per_second));
+    }
+
+    // Prints what changed since the last sample
+    private void print_changes (String response, long sample_nanos, String timestamp)
+    {
+        double seconds = (last_sample_nanos == 0)? 0: (sample_nanos - last_sample_nanos) / 1e9;
+        List<String> lines = new ArrayList<> ();
+        int width = 0;
+
+        for (String line: response.split ("\n"))
+        {
+            // ObjectName domains have ':' with no space after it, values may have ": " anywhere
+            int separator = line.indexOf (": ");
+
+            if (separator <= 0)
+            {
+                continue;
+            }
+
+            String attribute = line.substring (0, separator).trim ();
+            String text = line.substring (separator + 2).trim ();
+            Double value = null;
+
+            try
+            {
+                value = Double.valueOf (text);
+            }
+            catch (NumberFormatException ignore) {};
+
+            String shown;
+
+            if (value == null)
+            {
+                // Text attributes only when they change
+                if (text.equals (last_texts.put (attribute, text)))
+                {
+                    continue;
+                }
+                shown = text;
+            }
+            else
+            {
+                Double previous = last_values.put (attribute, value);
+
+                if (previous == null)
+                {
+                    shown = format (attribute, value);
+                }
+                else if (previous.equals (value))
+                {
+                    continue;
+                }
+                else
+                {
+                    double delta = value - previous;
+                    String rate = (seconds > 0)? format_rate (attribute, delta / seconds): "-";
+                    shown = format (attribute, value) + "  " + (delta > 0? "+": "")
+                        + format (attribute, delta) + "  " + rate;
+                }
+            }
+            width = Math.max (width, attribute.length ());
+            lines.add (attribute);
+            lines.add (shown);
+        }
+        last_sample_nanos = sample_nanos;
+
+        if (!lines.isEmpty ())
+        {
+            StringBuilder output = new StringBuilder (timestamp).append ('\n');
+
+            for (int i = 0; i < lines.size (); i += 2)
+            {
+                output.append (String.format ("  %-" + width + "s  %s%n", lines.get (i), lines.get (i + 1)));
+            }
+            System.out.print (output);
+            System.out.flush ();
+        }
+    }
+
+    private static AdmindTransport open_transport (AdmindServers.Selection selection)
+    {
+        if (!selection.isFanOut ())
+        {
+            return (AdmindTransports.open ());
+        }
+
+        Map<String, AdmindTransport> servers = selection.getServers ();
+
+        if (servers.size () != 1)
+        {
+            usage ("Found " + servers.size () + " servers matching '" + selection.glob + "', watch needs one");
+        }
+        return (servers.values ().iterator ().next ());
+    }
+
+    // args are the ones after "watch"
+    static void run (AdmindServers.Selection selection, String[] args)
+        throws InterruptedException
+    {
+        List<String> query = new ArrayList<> ();
+        long every_ms = DEFAULT_EVERY_MS;
+
+        for (int pos = 0; pos < args.length; pos++)
+        {
+            if (args [pos].equals ("--every"))
+            {
+                if (pos + 1 >= args.length)
+                {
+                    usage ("Missing value for '--every'");
+                }
+
+                try
+                {
+                    every_ms = Durations.parseMillis (args [++pos]);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    usage (e.getMessage ());
+                }
+            }
+            else
+            {
+                query.add (args [pos]);
+            }
+        }
+
+        if (query.isEmpty ())
+        {
+            usage ("Missing query");
+        }
+
+        AdmindTransport transport = open_transport (selection);
+
+        if (transport == null)
+        {
+            System.out.println ("Unable to find '" + AdmindUtil.getServerName () + "'");
+            CommandExit.exit (1);
+        }
+
+        String server_name = transport.getServerName ();
+        String encoded_query = AdmindUtil.encodeArgs (query.toArray (new String [query.size ()]));
+        AdmindClient client = new AdmindClient (transport);
+        SimpleDateFormat time_format = new SimpleDateFormat ("HH:mm:ss.SSS");
+        JmxWatch watch = new JmxWatch ();
+        long timeout_ms = Math.max (MIN_TIMEOUT_MS, every_ms * 2);
+        long every_nanos = TimeUnit.MILLISECONDS.toNanos (every_ms);
+        long next_sample = System.nanoTime ();
+
+        for (;;)
+        {
+            AdmindResponse response;
+
+            try
+            {
+                response = client.submit ("jmx", encoded_query, timeout_ms).get ();
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause ();
+                System.out.println (time_format.format (new Date ()) + " Unable to reach '" + server_name + "': "
+                    + ((cause instanceof TimeoutException)? "timed out": cause.toString ()));
+                response = null;
+            }
+
+            if (response != null)
+            {
+                if (response.isGone ())
+                {
+                    System.out.println ("Server '" + server_name + "' is gone");
+                    CommandExit.exit (1);
+                }
+                else if (response.isReady ())
+                {
+                    // The rates go by when the answers came, not when we asked
+                    watch.print_changes (response.getResponse (), System.nanoTime (),
+                        time_format.format (new Date ()));
+                }
+                else
+                {
+                    System.out.println (time_format.format (new Date ()) + " Request error on '"
+                        + server_name + "': " + response.getError ());
+                }
+            }
+
+            // Keep the pace; a slow answer skips the samples it overran
+            long now = System.nanoTime ();
+            next_sample += every_nanos;
+
+            if (next_sample < now)
+            {
+                next_sample = now + every_nanos - (now - next_sample) % every_nanos;
+            }
+            TimeUnit.NANOSECONDS.sleep (next_sample - now);
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.commands;
+
+import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.libladmin.admind.AdmindClient;
+import org.lucidj.libladmin.admind.AdmindRequest;
+import org.lucidj.libladmin.admind.AdmindResponse;
+import org.lucidj.libladmin.admind.AdmindServers;
+import org.lucidj.libladmin.admind.AdmindTransport;
+import org.lucidj.libladmin.admind.AdmindTransports;
+import org.lucidj.libladmin.admind.LatencyHistogram;
+import org.lucidj.libladmin.admind.WaitPolicy;
+import org.lucidj.libladmin.shared.CommandExit;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+//--------------------------------------------------------------------------------
+// Measures the admind round trip of a server sending no-op requests, one
+// after the other or some of them in flight at once:
+//
+//     ladmin ping [-n <count>] [-c <concurrency>] [--interval <duration>]
+//                 [--service <name>] [--server <name>]
+//
+// One at a time, pings go through transport.invoke() and request.await()
+// with the jmx WaitPolicy, exactly like 'ladmin jmx'; concurrent pings go
+// through an AdmindClient. An error reply (like a server without the ping
+// service) is still a full round trip, so its latency counts, while it's
+// reported apart. With --interval it keeps going (until count, if given) and
+// prints the latencies of each interval with a log scaled p99 bar, so stalls
+// on the admin channel show up along the time they happened.
+//--------------------------------------------------------------------------------
+public class Ping
+{
+    private final static int DEFAULT_COUNT = 100;
+    private final static long REQUEST_TIMEOUT_MS = 30000;
+
+    private static int count = -1;
+    private static int concurrency = 1;
+    private static long interval_ms = 0;
+    private static String service = "ping";
+
+    private final static LatencyHistogram total = new LatencyHistogram ();
+    private final static LatencyHistogram window = new LatencyHistogram ();
+    private final static AtomicLong error_replies = new AtomicLong ();
+    private final static AtomicLong failures = new AtomicLong ();
+    private final static AtomicReference<String> last_error = new AtomicReference<> ();
+
+    private static void usage (String message)
+    {
+        System.out.println (message);
+        System.out.println ("Usage: ladmin ping [-n <count>] [-c <concurrency>] [--interval <duration>]"
+            + " [--service <name>] [--server <name>]");
+        CommandExit.exit (1);
+    }
+
+    private static void parse_args (String[] args)
+    {
+        for (int pos = 0; pos < args.length; pos++)
+        {
+            String arg = args [pos];
+
+            if (pos + 1 >= args.length)
+            {
+                usage ("Missing value for '" + arg + "'");
+            }
+
+            String value = args [++pos];
+
+            try
+            {
+                switch (arg)
+                {
+                    case "-n":
+                    {
+                        count = Integer.parseInt (value);
+                        break;
+                    }
+                    case "-c":
+                    {
+                        concurrency = Integer.parseInt (value);
+                        break;
+                    }
+                    case "--interval":
+                    {
+                        interval_ms = Durations.parseMillis (value);
+                        break;
+                    }
+                    case "--service":
+                    {
+                        service = value;
+                        break;
+                    }
+                    default:
+                    {
+                        usage ("Unknown option '" + arg + "'");
+                    }
+                }
+            }
+            catch (IllegalArgumentException e)
+            {
+                usage ("Invalid value for '" + arg + "': " + value);
+            }
+        }
+
+        if (concurrency < 1 || (count != -1 && count < 1))
+        {
+            usage ("Count and concurrency must be positive");
+        }
+
+        if (count == -1 && interval_ms == 0)
+        {
+            count = DEFAULT_COUNT;
+        }
+    }
+
+    private static AdmindTransport open_transport (AdmindServers.Selection selection)
+    {
+        if (!selection.isFanOut ())
+        {
+            return (AdmindTransports.open ());
+        }
+
+        Map<String, AdmindTransport> servers = selection.getServers ();
+
+        if (servers.size () != 1)
+        {
+            usage ("Found " + servers.size () + " servers matching '" + selection.glob + "', ping needs one");
+        }
+        return (servers.values ().iterator ().next ());
+    }
+
+    // Round trips go on the histograms, whatever the server answered
+    private static void record (int status, long latency_nanos, String error)
+    {
+        if (status == AdmindUtil.ASYNC_READY || status == AdmindUtil.ASYNC_ERROR)
+        {
+            total.recordNanos (latency_nanos);
+            window.recordNanos (latency_nanos);
+
+            if (status == AdmindUtil.ASYNC_ERROR)
+            {
+                error_replies.incrementAndGet ();
+                last_error.set (error);
+            }
+        }
+        else
+        {
+            failures.incrementAndGet ();
+            last_error.set (error);
+        }
+    }
+
+    private static void record (AdmindResponse response, Throwable error)
+    {
+        if (error != null)
+        {
+            record (AdmindUtil.ASYNC_GONE, 0, (error instanceof TimeoutException)? "timed out": error.toString ());
+        }
+        else
+        {
+            record (response.getStatus (), response.getLatencyNanos (),
+                response.isGone ()? "server is gone": response.getError ());
+        }
+    }
+
+    // One chart line: the interval stats and a bar, each '#' doubling the p99
+    private static void print_window (SimpleDateFormat time_format, int in_flight)
+    {
+        StringBuilder line = new StringBuilder (time_format.format (new Date ()));
+
+        if (window.getCount () == 0)
+        {
+            line.append ("  no answers, ").append (in_flight).append (" in flight");
+        }
+        else
+        {
+            long p99 = window.getPercentileMicros (99);
+            line.append (String.format ("  n=%-6d p50=%-9s p99=%-9s max=%-9s |",
+                window.getCount (),
+                LatencyHistogram.formatMicros (window.getPercentileMicros (50)),
+                LatencyHistogram.formatMicros (p99),
+                LatencyHistogram.formatMicros (window.getMaxMicros ())));
+
+            for (long bar = Math.max (1, p99); bar > 0; bar >>>= 1)
+            {
+                line.append ('#');
+            }
+        }
+        window.reset ();
+        System.out.println (line);
+    }
+
+    public static void main (String[] args)
+        throws InterruptedException
+    {
+        AdmindServers.Selection selection = AdmindServers.parseArgs (args);
+        parse_args (selection.args);
+
+        AdmindTransport transport = open_transport (selection);
+
+        if (transport == null)
+        {
+            System.out.println ("Unable to find '" + AdmindUtil.getServerName () + "'");
+            CommandExit.exit (1);
+        }
+
+        String server_name = transport.getServerName ();
+        SimpleDateFormat time_format = new SimpleDateFormat ("HH:mm:ss.SSS");
+
+        System.out.println ("Pinging '" + server_name + "' (" + transport.getName () + ") with '" + service
+            + "', " + (count == -1? "forever": count + " requests") + ", concurrency " + concurrency);
+
+        long start = System.nanoTime ();
+
+        if (concurrency == 1)
+        {
+            ping_sequential (transport, time_format, start);
+        }
+        else
+        {
+            ping_concurrent (transport, time_format, start);
+        }
+
+        long elapsed_nanos = System.nanoTime () - start;
+
+        if (interval_ms != 0 && window.getCount () != 0)
+        {
+            print_window (time_format, 0);
+        }
+
+        long round_trips = total.getCount ();
+        double seconds = elapsed_nanos / 1e9;
+        System.out.println (String.format ("%d round trips (%d error replies), %d failed in %.2fs (%.0f req/s)",
+            round_trips, error_replies.get (), failures.get (), seconds, round_trips / seconds));
+
+        if (round_trips != 0)
+        {
+            System.out.println (total.summary ());
+        }
+        if (error_replies.get () == round_trips && round_trips != 0)
+        {
+            System.out.println ("Every reply was an error, the server may lack the '" + service + "' service");
+        }
+        if (last_error.get () != null)
+        {
+            System.out.println ("Last error: " + last_error.get ());
+        }
+        CommandExit.exit (round_trips == 0? 1: 0);
+    }
+
+    private static boolean is_done (int status)
+    {
+        return (status == AdmindUtil.ASYNC_READY || status == AdmindUtil.ASYNC_ERROR || status == AdmindUtil.ASYNC_GONE);
+    }
+
+    // The same invoke and wait path as 'ladmin jmx'
+    private static void ping_sequential (AdmindTransport transport, SimpleDateFormat time_format, long start)
+        throws InterruptedException
+    {
+        WaitPolicy policy = WaitPolicy.forCommand ("jmx");
+        String no_args = AdmindUtil.encodeArgs ();
+        long interval_nanos = TimeUnit.MILLISECONDS.toNanos (interval_ms);
+        long next_window = start + interval_nanos;
+
+        for (int sent = 0; count == -1 || sent < count; sent++)
+        {
+            long request_start = System.nanoTime ();
+            AdmindRequest request;
+
+            try
+            {
+                request = transport.invoke (service, no_args);
+            }
+            catch (IOException e)
+            {
+                record (AdmindUtil.ASYNC_GONE, 0, e.toString ());
+                continue;
+            }
+
+            long deadline = request_start + TimeUnit.MILLISECONDS.toNanos (REQUEST_TIMEOUT_MS);
+            int status;
+
+            for (;;)
+            {
+                // A stalled server still gets its chart lines
+                long until = (interval_ms == 0)? deadline: Math.min (deadline, next_window);
+                status = request.await (Math.max (1, TimeUnit.NANOSECONDS.toMillis (until - System.nanoTime ())),
+                    AdmindUtil.ASYNC_READY, policy);
+
+                if (interval_ms != 0 && System.nanoTime () >= next_window)
+                {
+                    print_window (time_format, is_done (status)? 0: 1);
+                    next_window += interval_nanos;
+                }
+
+                if (is_done (status) || System.nanoTime () >= deadline)
+                {
+                    break;
+                }
+            }
+
+            long latency_nanos = System.nanoTime () - request_start;
+
+            if (!is_done (status))
+            {
+                record (AdmindUtil.ASYNC_GONE, 0, "timed out");
+            }
+            else
+            {
+                record (status, latency_nanos, status == AdmindUtil.ASYNC_GONE? "server is gone": request.getError ());
+            }
+            request.close ();
+        }
+    }
+
+    private static void ping_concurrent (AdmindTransport transport, SimpleDateFormat time_format, long start)
+        throws InterruptedException
+    {
+        AdmindClient client = new AdmindClient (transport);
+        Semaphore in_flight = new Semaphore (concurrency);
+        String no_args = AdmindUtil.encodeArgs ();
+        long next_window = start + TimeUnit.MILLISECONDS.toNanos (interval_ms);
+
+        final BiConsumer<AdmindResponse, Throwable> completion = new BiConsumer<AdmindResponse, Throwable> ()
+        {
+            @Override
+            public void accept (AdmindResponse response, Throwable error)
+            {
+                record (response, error);
+            }
+        };
+
+        for (int sent = 0; count == -1 || sent < count; )
+        {
+            if (interval_ms == 0)
+            {
+                in_flight.acquire ();
+            }
+            else
+            {
+                // A stalled server still gets its chart line
+                long wait_nanos = Math.max (0, next_window - System.nanoTime ());
+
+                if (in_flight.tryAcquire (wait_nanos, TimeUnit.NANOSECONDS))
+                {
+                    in_flight.release ();
+                }
+                if (System.nanoTime () >= next_window)
+                {
+                    print_window (time_format, concurrency - in_flight.availablePermits ());
+                    next_window += TimeUnit.MILLISECONDS.toNanos (interval_ms);
+                }
+                if (!in_flight.tryAcquire ())
+                {
+                    continue;
+                }
+            }
+
+            final Semaphore permits = in_flight;
+
+            client.submit (service, no_args, REQUEST_TIMEOUT_MS).whenComplete (completion)
+                .whenComplete (new BiConsumer<AdmindResponse, Throwable> ()
+            {
+                @Override
+                public void accept (AdmindResponse response, Throwable error)
+                {
+                    permits.release ();
+                }
+            });
+            sent++;
+        }
+
+        // Everything back before the numbers
+        in_flight.acquire (concurrency);
+    }
+}
+
+// EOF
@@ -19,6 +19,7 @@ package org.lucidj.ladmin.commands;
 import org.lucidj.admind.shared.AdmindUtil;
 import org.lucidj.libladmin.JdkLocator;
 import org.lucidj.libladmin.Launcher;
+import org.lucidj.libladmin.shared.CommandExit;
 import org.lucidj.libladmin.shared.FrameworkLocator;
 import org.lucidj.libladmin.shared.TinyLog;
 
@@ -107,7 +108,7 @@ public class Start
                 if (param != null)
                 {
                     System.err.println ("Error: Argument doesn't requires parameter in '" + args [pos] + "'");
-                    System.exit (1);
+                    CommandExit.exit (1);
                 }
                 // The argument was parsed, proceed to next
                 continue;
@@ -118,7 +119,7 @@ public class Start
                 if (pos + 1 == args.length)
                 {
                     System.err.println ("Error: Argument needs parameter in '" + arg + "'");
-                    System.exit (1);
+                    CommandExit.exit (1);
                 }
                 // We'll need a parameter for the next arguments
                 pos++;
@@ -148,7 +149,7 @@ public class Start
             if (arg != null)
             {
                 System.err.println ("Error: Unknown argument '" + arg + "'");
-                System.exit (1);
+                CommandExit.exit (1);
             }
         }
 
@@ -159,7 +160,7 @@ public class Start
         {
             // TODO: SHOULD WE HAVE AN "ENSURE RUNNING"?
             System.out.println ("Error: Server '" + def_server_name + "' is already running");
-            System.exit (1);
+            CommandExit.exit (1);
         }
 
         // For java -jar it is the jar file itself
@@ -170,7 +171,7 @@ public class Start
         if (file_array == null)
         {
             System.out.println ("Error: Couldn't find OSGi framework jar on " + jar_dir);
-            System.exit (1);
+            CommandExit.exit (1);
         }
 
         // Get latest version
@@ -181,7 +182,7 @@ public class Start
         if (!JdkLocator.configure (jar_dir.getAbsolutePath ()))
         {
             System.out.println ("Error: Couldn't find a proper JDK on " + jar_dir);
-            System.exit (1);
+            CommandExit.exit (1);
         }
 
         Launcher launcher = Launcher.newLauncher (JdkLocator.getJavaCommand ());
@@ -193,7 +194,7 @@ public class Start
         catch (IOException e)
         {
             System.out.println ("Error: Exception launching jar " + framework.toString() + ": " + e.toString ());
-            System.exit (1);
+            CommandExit.exit (1);
         }
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.commands;
+
+import org.lucidj.libladmin.admind.AdmindServers;
+import org.lucidj.libladmin.admind.AdmindTransport;
+import org.lucidj.libladmin.shared.CommandExit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+public class Status
+{
+    public static void main (String[] args)
+        throws InterruptedException
+    {
+        AdmindServers.Selection selection = AdmindServers.parseArgs (args);
+
+        // Status is about all servers unless told otherwise
+        Map<String, AdmindTransport> servers = AdmindServers.select (selection.isFanOut ()? selection.glob: "*");
+
+        if (servers.isEmpty ())
+        {
+            System.out.println ("No servers found");
+            CommandExit.exit (1);
+        }
+
+        // One thread per server, so a slow server doesn't hold the others
+        ExecutorService executor = Executors.newFixedThreadPool (servers.size ());
+        List<CompletableFuture<Boolean>> checks = new ArrayList<> ();
+        int not_running = 0;
+
+        for (Map.Entry<String, AdmindTransport> server: servers.entrySet ())
+        {
+            final String server_name = server.getKey ();
+            final AdmindTransport transport = server.getValue ();
+
+            checks.add (CompletableFuture.supplyAsync (new Supplier<Boolean> ()
+            {
+                @Override
+                public Boolean get ()
+                {
+                    return (transport.isAlive ());
+                }
+            }, executor).thenApply (new Function<Boolean, Boolean> ()
+            {
+                @Override
+                public Boolean apply (Boolean alive)
+                {
+                    String jvmid = alive? transport.getServerProperties ().getProperty ("server.jvmid"): null;
+
+                    // Printed as they come
+                    synchronized (System.out)
+                    {
+                        System.out.println ("[" + server_name + "] " + (alive? "running": "not running")
+                            + " (" + transport.getName () + ")" + (jvmid == null? "": " " + jvmid));
+                    }
+                    return (alive);
+                }
+            }));
+        }
+
+        for (CompletableFuture<Boolean> check: checks)
+        {
+            try
+            {
+                if (!check.get ())
+                {
+                    not_running++;
+                }
+            }
+            catch (ExecutionException e)
+            {
+                not_running++;
+            }
+        }
+        executor.shutdown ();
+        CommandExit.exit (not_running == 0? 0: 1);
+    }
+}
+
+// EOF
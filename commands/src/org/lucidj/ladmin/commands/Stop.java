@@ -17,26 +17,75 @@
 package org.lucidj.ladmin.commands;
 
 import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.libladmin.admind.AdmindFanOut;
+import org.lucidj.libladmin.admind.AdmindRequest;
+import org.lucidj.libladmin.admind.AdmindResponse;
+import org.lucidj.libladmin.admind.AdmindServers;
+import org.lucidj.libladmin.admind.AdmindTransport;
+import org.lucidj.libladmin.admind.AdmindTransports;
+import org.lucidj.libladmin.admind.WaitPolicy;
+import org.lucidj.libladmin.shared.CommandExit;
+
+import java.io.IOException;
+import java.io.PrintStream;
 
 public class Stop
 {
+    private final static AdmindFanOut.Printer SHUTDOWN_PRINTER = new AdmindFanOut.Printer ()
+    {
+        @Override
+        public void print (PrintStream out, String server, AdmindResponse response)
+        {
+            if (response.isReady ())
+            {
+                out.println ("[" + server + "] Shutdown: " + response.getResponse ().trim ());
+            }
+            else
+            {
+                AdmindFanOut.printFailure (out, server, response);
+            }
+        }
+    };
+
     public static void main (String[] args)
+        throws InterruptedException
     {
-        String def_server_name = AdmindUtil.getServerName ();
-        String admind = AdmindUtil.initAdmindDir ();
+        AdmindServers.Selection selection = AdmindServers.parseArgs (args);
+
+        if (selection.isFanOut ())
+        {
+            int failures = AdmindFanOut.invokeAll (selection.getServers (), "shutdown", "true",
+                System.out, SHUTDOWN_PRINTER);
+            CommandExit.exit (failures == 0? 0: 1);
+        }
 
-        if (admind == null)
+        AdmindTransport transport = AdmindTransports.open ();
+
+        if (transport == null)
+        {
+            System.out.println ("Unable to find '" + AdmindUtil.getServerName () + "'");
+            CommandExit.exit (1);
+        }
+
+        String def_server_name = transport.getServerName ();
+
+        AdmindRequest request = null;
+
+        try
+        {
+            request = transport.invoke ("shutdown", "true");
+        }
+        catch (IOException e)
         {
-            System.out.println ("Unable to find '" + def_server_name + "'");
-            System.exit (1);
+            System.out.println ("Unable to reach '" + def_server_name + "': " + e.getMessage ());
+            CommandExit.exit (1);
         }
 
-        String request = AdmindUtil.asyncInvoke ("shutdown", "true");
-        int status = AdmindUtil.asyncWait (request);
+        int status = request.await (-1, AdmindUtil.ASYNC_READY, WaitPolicy.forCommand ("stop"));
 
         if (status == AdmindUtil.ASYNC_READY)
         {
-            String response = AdmindUtil.asyncResponse (request);
+            String response = request.getResponse ();
             System.out.println ("Shutdown '" + def_server_name + "': " + response.trim ());
         }
         else if (status == AdmindUtil.ASYNC_GONE)
@@ -45,9 +94,10 @@ public class Stop
         }
         else
         {
-            String error = AdmindUtil.asyncError (request);
+            String error = request.getError ();
             System.out.println ("Error requesting shutdown for '" + def_server_name + "': " + error);
         }
+        request.close ();
     }
 }
 
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.shared;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+//--------------------------------------------------------------------------------
+// ByteRing against the ring Shell used before it: 64 int slots with volatile
+// indices, where the terminal reader spins while the ring is full and the
+// session loop takes one key per iteration. Each case runs a producer and a
+// consumer thread for a fixed time and reports MB/s; the last one blocks a
+// producer on a full ring and reports the CPU time it burns while waiting.
+// There is no JMH on this Ant build, so these are plain timed loops.
+//
+// Run with 'ant bench' on libladmin, or directly:
+//   java -cp <libladmin classes>:<bench classes> org.lucidj.libladmin.shared.ByteRingBench [seconds]
+//--------------------------------------------------------------------------------
+public class ByteRingBench
+{
+    private final static int RING_SIZE = 4096;
+
+    private final static ThreadMXBean thread_mx = ManagementFactory.getThreadMXBean ();
+
+    private static volatile boolean running;
+
+    // The ring Shell had before ByteRing, reader and loop included
+    private static class OldRing
+    {
+        int[] reader_buf = new int [64];
+        volatile int reader_in = 0;
+        volatile int reader_out = 0;
+
+        boolean terminal_ready ()
+        {
+            return (reader_in != reader_out);
+        }
+
+        int terminal_read ()
+        {
+            int ch;
+            int next = reader_out + 1;
+
+            if (next == reader_buf.length)
+            {
+                next = 0;
+            }
+
+            ch = reader_buf [reader_out];
+            reader_out = next;
+            return (ch);
+        }
+
+        // Spins while full, like the old terminal reader helper
+        void write (int ch)
+        {
+            while (running)
+            {
+                int next = reader_in + 1;
+
+                if (next == reader_buf.length)
+                {
+                    next = 0;
+                }
+
+                if (next != reader_out)
+                {
+                    reader_buf [reader_in] = ch;
+                    reader_in = next;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class Counter
+    {
+        long bytes;
+        long cpu_nanos;
+    }
+
+    private static void join (Thread thread)
+    {
+        try
+        {
+            thread.join ();
+        }
+        catch (InterruptedException ignore) {};
+    }
+
+    // Runs both sides for the given time
+    private static void run_pair (Runnable producer, Runnable consumer, long millis)
+    {
+        running = true;
+
+        Thread producer_thread = new Thread (producer, "Bench producer");
+        Thread consumer_thread = new Thread (consumer, "Bench consumer");
+        producer_thread.start ();
+        consumer_thread.start ();
+
+        try
+        {
+            Thread.sleep (millis);
+        }
+        catch (InterruptedException ignore) {};
+
+        running = false;
+        producer_thread.interrupt ();
+        consumer_thread.interrupt ();
+        join (producer_thread);
+        join (consumer_thread);
+    }
+
+    private static double old_ring (long millis)
+    {
+        final OldRing ring = new OldRing ();
+        final Counter received = new Counter ();
+
+        run_pair (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                while (running)
+                {
+                    ring.write ('x');
+                }
+            }
+        }, new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                while (running)
+                {
+                    if (ring.terminal_ready ())
+                    {
+                        ring.terminal_read ();
+                        received.bytes++;
+                    }
+                }
+            }
+        }, millis);
+        return (received.bytes / 1048576.0 / (millis / 1000.0));
+    }
+
+    private static double byte_ring (final int put_size, long millis)
+    {
+        final ByteRing ring = new ByteRing (RING_SIZE);
+        final Counter received = new Counter ();
+
+        run_pair (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                byte[] data = new byte [put_size];
+
+                try
+                {
+                    while (running)
+                    {
+                        ring.put (data);
+                    }
+                }
+                catch (InterruptedException ignore) {};
+            }
+        }, new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                byte[] data = new byte [RING_SIZE];
+
+                try
+                {
+                    while (running)
+                    {
+                        received.bytes += ring.take (data, 0, data.length, 100);
+                    }
+                }
+                catch (InterruptedException ignore) {};
+            }
+        }, millis);
+        return (received.bytes / 1048576.0 / (millis / 1000.0));
+    }
+
+    // CPU time of a producer left waiting on a full ring, with no consumer
+    private static double blocked_cpu_ms (final boolean old, long millis)
+    {
+        final OldRing old_ring = new OldRing ();
+        final ByteRing ring = new ByteRing (RING_SIZE);
+        final Counter producer = new Counter ();
+
+        run_pair (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                byte[] data = new byte [1];
+                long start = thread_mx.getCurrentThreadCpuTime ();
+
+                try
+                {
+                    while (running)
+                    {
+                        if (old)
+                        {
+                            old_ring.write ('x');
+                        }
+                        else
+                        {
+                            ring.put (data);
+                        }
+                    }
+                }
+                catch (InterruptedException ignore) {};
+
+                producer.cpu_nanos = thread_mx.getCurrentThreadCpuTime () - start;
+            }
+        }, new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                // Nobody takes anything
+            }
+        }, millis);
+        return (producer.cpu_nanos / 1e6);
+    }
+
+    public static void main (String[] args)
+    {
+        long millis = (args.length > 0)? Long.parseLong (args [0]) * 1000: 1000;
+
+        System.out.println ("ByteRing against the old Shell ring, " + System.getProperty ("java.version")
+            + ", " + Runtime.getRuntime ().availableProcessors () + " cpus, " + millis + " ms per case");
+
+        // Warm up the JIT on both
+        old_ring (200);
+        byte_ring (1, 200);
+        byte_ring (64, 200);
+
+        System.out.println (String.format ("old int[64] ring, both sides spinning:  %.3f MB/s", old_ring (millis)));
+        System.out.println (String.format ("ByteRing, 1-byte puts:                  %.1f MB/s", byte_ring (1, millis)));
+        System.out.println (String.format ("ByteRing, 64-byte puts:                 %.1f MB/s", byte_ring (64, millis)));
+        System.out.println (String.format ("producer blocked on a full ring:        old %.1f ms CPU, ByteRing %.1f ms CPU",
+            blocked_cpu_ms (true, millis), blocked_cpu_ms (false, millis)));
+    }
+}
+
+// EOF
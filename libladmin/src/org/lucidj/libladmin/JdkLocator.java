@@ -15,6 +15,7 @@
  */
 
 package org.lucidj.libladmin;
+import org.lucidj.libladmin.shared.CommandExit;
 
 import java.io.File;
 import java.nio.file.Path;
@@ -68,7 +69,7 @@ public class JdkLocator
             if (!javac_exists (jdk_home))
             {
                 System.err.println ("Error: Invalid JDK home '" + jdk_home + "'");
-                System.exit (1);
+                CommandExit.exit (1);
             }
             return (true);
         }
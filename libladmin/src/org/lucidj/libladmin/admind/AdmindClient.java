@@ -0,0 +1,276 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.admind;
+
+import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+//--------------------------------------------------------------------------------
+// Asynchronous admind requests: submit() sends the request and returns a
+// CompletableFuture, so any number of requests may be in flight at once. A
+// single poller thread keeps all of them: it sleeps until some request
+// notifies a change (socket frames, admind directory changes), the nearest
+// timeout, or a short poll interval when the notifications aren't native.
+// Cancelling a future discards its request; a timeout completes the future
+// with TimeoutException. Every completion is recorded on the latency histogram.
+//--------------------------------------------------------------------------------
+public class AdmindClient
+{
+    private final static TinyLog log = new TinyLog (AdmindClient.class);
+
+    private final static long POLL_INTERVAL_MS = 10;
+    private final static long IDLE_INTERVAL_MS = 1000;
+
+    private final AdmindTransport transport;
+    private final LatencyHistogram histogram = new LatencyHistogram ();
+    private final List<Pending> pending_list = new ArrayList<> ();
+    private final Object lock = new Object ();
+    private boolean signaled;
+    private Thread poller;
+
+    private class Pending
+    {
+        final String service;
+        final AdmindRequest request;
+        final CompletableFuture<AdmindResponse> future = new CompletableFuture<> ();
+        final long start_nanos;
+        final long deadline_nanos;
+        boolean native_watch;
+
+        Pending (String service, AdmindRequest request, long start_nanos, long timeout_ms)
+        {
+            this.service = service;
+            this.request = request;
+            this.start_nanos = start_nanos;
+            this.deadline_nanos = (timeout_ms < 0)? Long.MAX_VALUE: start_nanos + timeout_ms * 1000000L;
+        }
+    }
+
+    public AdmindClient (AdmindTransport transport)
+    {
+        this.transport = transport;
+    }
+
+    public AdmindTransport getTransport ()
+    {
+        return (transport);
+    }
+
+    public LatencyHistogram getLatencyHistogram ()
+    {
+        return (histogram);
+    }
+
+    public int getPendingCount ()
+    {
+        synchronized (lock)
+        {
+            return (pending_list.size ());
+        }
+    }
+
+    private void signal ()
+    {
+        synchronized (lock)
+        {
+            signaled = true;
+            lock.notifyAll ();
+        }
+    }
+
+    public CompletableFuture<AdmindResponse> submit (String service, String args)
+    {
+        return (submit (service, args, -1));
+    }
+
+    // Sends the request, timeout_ms < 0 waits forever
+    public CompletableFuture<AdmindResponse> submit (String service, String args, long timeout_ms)
+    {
+        long start_nanos = System.nanoTime ();
+        AdmindRequest request;
+
+        try
+        {
+            request = transport.invoke (service, args);
+        }
+        catch (IOException e)
+        {
+            CompletableFuture<AdmindResponse> failed = new CompletableFuture<> ();
+            failed.completeExceptionally (e);
+            return (failed);
+        }
+
+        Pending pending = new Pending (service, request, start_nanos, timeout_ms);
+        pending.native_watch = request.watch (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                signal ();
+            }
+        });
+
+        // A cancel from outside wakes up the poller to discard the request
+        pending.future.whenComplete (new BiConsumer<AdmindResponse, Throwable> ()
+        {
+            @Override
+            public void accept (AdmindResponse response, Throwable error)
+            {
+                signal ();
+            }
+        });
+
+        synchronized (lock)
+        {
+            pending_list.add (pending);
+            signaled = true;
+            lock.notifyAll ();
+
+            if (poller == null)
+            {
+                start_poller ();
+            }
+        }
+        return (pending.future);
+    }
+
+    private void complete (Pending pending, int status)
+    {
+        String response = (status == AdmindUtil.ASYNC_READY)? pending.request.getResponse (): null;
+        String error = (status == AdmindUtil.ASYNC_ERROR)? pending.request.getError (): null;
+        long latency_nanos = System.nanoTime () - pending.start_nanos;
+
+        pending.request.close ();
+        histogram.recordNanos (latency_nanos);
+        pending.future.complete (new AdmindResponse (pending.service, status, response, error, latency_nanos));
+    }
+
+    // Checks every pending request, returns how long the poller may sleep
+    private long poll_all ()
+    {
+        List<Pending> snapshot;
+
+        synchronized (lock)
+        {
+            snapshot = new ArrayList<> (pending_list);
+        }
+
+        long now = System.nanoTime ();
+        long sleep_ms = IDLE_INTERVAL_MS;
+        List<Pending> finished = new ArrayList<> ();
+
+        for (Pending pending: snapshot)
+        {
+            if (pending.future.isDone ())
+            {
+                // Cancelled, the server may drop it
+                pending.request.close ();
+                finished.add (pending);
+                continue;
+            }
+
+            int status = pending.request.poll ();
+
+            if (status == AdmindUtil.ASYNC_READY || status == AdmindUtil.ASYNC_ERROR || status == AdmindUtil.ASYNC_GONE)
+            {
+                complete (pending, status);
+                finished.add (pending);
+            }
+            else if (now >= pending.deadline_nanos)
+            {
+                pending.request.close ();
+                pending.future.completeExceptionally (new TimeoutException ("Request '" + pending.service + "' timed out"));
+                finished.add (pending);
+            }
+            else
+            {
+                if (!pending.native_watch)
+                {
+                    sleep_ms = Math.min (sleep_ms, POLL_INTERVAL_MS);
+                }
+
+                if (pending.deadline_nanos != Long.MAX_VALUE)
+                {
+                    sleep_ms = Math.min (sleep_ms, Math.max (1, (pending.deadline_nanos - now) / 1000000L + 1));
+                }
+            }
+        }
+
+        synchronized (lock)
+        {
+            pending_list.removeAll (finished);
+        }
+        return (sleep_ms);
+    }
+
+    private void poller_loop ()
+    {
+        for (;;)
+        {
+            long sleep_ms = poll_all ();
+
+            synchronized (lock)
+            {
+                if (pending_list.isEmpty () && !signaled)
+                {
+                    // Nothing left, a new submit() starts another poller
+                    poller = null;
+                    return;
+                }
+
+                try
+                {
+                    if (!signaled)
+                    {
+                        lock.wait (sleep_ms);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    log.debug ("Poller interrupted");
+                    poller = null;
+                    return;
+                }
+                signaled = false;
+            }
+        }
+    }
+
+    private void start_poller ()
+    {
+        poller = new Thread (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                poller_loop ();
+            }
+        });
+        poller.setName ("Admind client poller");
+        poller.setDaemon (true);
+        poller.start ();
+    }
+}
+
+// EOF
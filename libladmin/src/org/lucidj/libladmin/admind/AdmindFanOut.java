@@ -0,0 +1,139 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.admind;
+
+import org.lucidj.admind.shared.AdmindUtil;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+//--------------------------------------------------------------------------------
+// Sends one request to many servers at once and prints each answer, tagged
+// with the server name, as soon as it arrives. All requests are in flight
+// together, so the whole thing takes about as long as the slowest server.
+//--------------------------------------------------------------------------------
+public class AdmindFanOut
+{
+    private final static long DEFAULT_TIMEOUT_MS = 30000;
+
+    // Prints the outcome of one server, holding the output lock
+    public interface Printer
+    {
+        void print (PrintStream out, String server, AdmindResponse response);
+    }
+
+    // Each response line prefixed with [server]
+    public final static Printer TAGGED_LINES = new Printer ()
+    {
+        @Override
+        public void print (PrintStream out, String server, AdmindResponse response)
+        {
+            if (response.isReady ())
+            {
+                for (String line: response.getResponse ().split ("\n"))
+                {
+                    out.println ("[" + server + "] " + line);
+                }
+            }
+            else
+            {
+                printFailure (out, server, response);
+            }
+        }
+    };
+
+    public static void printFailure (PrintStream out, String server, AdmindResponse response)
+    {
+        if (response.getStatus () == AdmindUtil.ASYNC_GONE)
+        {
+            out.println ("[" + server + "] Server is gone");
+        }
+        else
+        {
+            out.println ("[" + server + "] Request error: " + response.getError ());
+        }
+    }
+
+    // Returns how many servers didn't answer ASYNC_READY
+    public static int invokeAll (Map<String, AdmindTransport> servers, String service, String args,
+                                 final PrintStream out, final Printer printer)
+        throws InterruptedException
+    {
+        final AtomicInteger failures = new AtomicInteger ();
+        List<CompletableFuture<AdmindResponse>> futures = new ArrayList<> ();
+
+        if (servers.isEmpty ())
+        {
+            out.println ("No servers found");
+            return (1);
+        }
+
+        for (Map.Entry<String, AdmindTransport> server: servers.entrySet ())
+        {
+            final String server_name = server.getKey ();
+            AdmindClient client = new AdmindClient (server.getValue ());
+            CompletableFuture<AdmindResponse> future = client.submit (service, args, DEFAULT_TIMEOUT_MS);
+
+            // Waiting on the dependent stage means waiting for the printing as well
+            futures.add (future.whenComplete (new BiConsumer<AdmindResponse, Throwable> ()
+            {
+                @Override
+                public void accept (AdmindResponse response, Throwable error)
+                {
+                    synchronized (out)
+                    {
+                        if (error != null)
+                        {
+                            String reason = (error instanceof TimeoutException)? "timed out": error.toString ();
+                            out.println ("[" + server_name + "] Unable to reach: " + reason);
+                            failures.incrementAndGet ();
+                        }
+                        else
+                        {
+                            printer.print (out, server_name, response);
+
+                            if (!response.isReady ())
+                            {
+                                failures.incrementAndGet ();
+                            }
+                        }
+                        out.flush ();
+                    }
+                }
+            }));
+        }
+
+        for (CompletableFuture<AdmindResponse> future: futures)
+        {
+            try
+            {
+                future.get ();
+            }
+            catch (ExecutionException ignore) {};
+        }
+        return (failures.get ());
+    }
+}
+
+// EOF
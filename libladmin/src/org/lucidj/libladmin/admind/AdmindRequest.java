@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.admind;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+//--------------------------------------------------------------------------------
+// One admind request, whatever the transport. The status codes are the ones
+// from AdmindUtil: ASYNC_RUNNING while the server works on it, then
+// ASYNC_READY, ASYNC_ERROR or ASYNC_GONE.
+//--------------------------------------------------------------------------------
+public interface AdmindRequest extends Closeable
+{
+    // Current status, never blocks
+    int poll ();
+
+    // Waits up to timeout_ms (forever if negative) until the request reaches status
+    // or ends, returning the status at that moment
+    int await (long timeout_ms, int status)
+        throws InterruptedException;
+
+    // Same, waiting the way policy says when the transport has to poll
+    int await (long timeout_ms, int status, WaitPolicy policy)
+        throws InterruptedException;
+
+    String getResponse ();
+
+    String getError ();
+
+    // Streaming requests (like the shell): what we send and what the server sends,
+    // the response channel returning 0 when there's nothing new yet
+    WritableByteChannel getRequestChannel ()
+        throws IOException;
+
+    ReadableByteChannel getResponseChannel ()
+        throws IOException;
+
+    // Runs listener whenever something may have changed, returns whether the
+    // notifications are native (otherwise the caller should also poll)
+    boolean watch (Runnable listener);
+
+    // Releases everything and discards the request on the server
+    @Override
+    void close ();
+}
+
+// EOF
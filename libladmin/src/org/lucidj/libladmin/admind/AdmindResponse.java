@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.admind;
+
+import org.lucidj.admind.shared.AdmindUtil;
+
+//--------------------------------------------------------------------------------
+// The outcome of a request completed by AdmindClient: the final status
+// (ASYNC_READY, ASYNC_ERROR or ASYNC_GONE), the response or the error, and
+// how long it took from invoke to completion.
+//--------------------------------------------------------------------------------
+public class AdmindResponse
+{
+    private final String service;
+    private final int status;
+    private final String response;
+    private final String error;
+    private final long latency_nanos;
+
+    AdmindResponse (String service, int status, String response, String error, long latency_nanos)
+    {
+        this.service = service;
+        this.status = status;
+        this.response = response;
+        this.error = error;
+        this.latency_nanos = latency_nanos;
+    }
+
+    public String getService ()
+    {
+        return (service);
+    }
+
+    public int getStatus ()
+    {
+        return (status);
+    }
+
+    public boolean isReady ()
+    {
+        return (status == AdmindUtil.ASYNC_READY);
+    }
+
+    public boolean isGone ()
+    {
+        return (status == AdmindUtil.ASYNC_GONE);
+    }
+
+    public String getResponse ()
+    {
+        return (response);
+    }
+
+    public String getError ()
+    {
+        return (error);
+    }
+
+    public long getLatencyNanos ()
+    {
+        return (latency_nanos);
+    }
+}
+
+// EOF
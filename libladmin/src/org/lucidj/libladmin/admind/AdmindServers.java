@@ -0,0 +1,263 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.admind;
+
+import org.lucidj.libladmin.shared.CommandExit;
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+//--------------------------------------------------------------------------------
+// Every admind server on this host. AdmindUtil only knows the default server
+// (its admind directory), so the others are found through their sockets on
+// the server registry: one <server name>.sock per server on
+// <tmpdir>/ladmin-<user>, or on -Dladmin.admind.dir (LADMIN_ADMIND_DIR).
+// The default server comes first, then the registry in name order. The
+// registry is created private (0700), and it's ignored unless it's owned by
+// the user and nobody else can write on it: anyone able to plant a socket
+// there would get our requests ('stop --all', for instance).
+//
+// The commands take --server <glob> or --all to address several servers at
+// once, parsed here by parseArgs().
+//--------------------------------------------------------------------------------
+public class AdmindServers
+{
+    private final static TinyLog log = new TinyLog (AdmindServers.class);
+
+    public final static String SOCKET_SUFFIX = ".sock";
+
+    public static File getRegistryDir ()
+    {
+        String dir = System.getProperty ("ladmin.admind.dir", System.getenv ("LADMIN_ADMIND_DIR"));
+
+        if (dir == null)
+        {
+            dir = new File (System.getProperty ("java.io.tmpdir"), "ladmin-" + System.getProperty ("user.name")).getPath ();
+        }
+        return (new File (dir));
+    }
+
+    // Throws when the registry isn't a directory of the user alone
+    public static void checkRegistryDir (File dir)
+        throws IOException
+    {
+        Path dir_path = dir.toPath ();
+        PosixFileAttributes attributes;
+
+        try
+        {
+            attributes = Files.readAttributes (dir_path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        catch (UnsupportedOperationException e)
+        {
+            // No owners and modes to check here
+            return;
+        }
+
+        if (!attributes.isDirectory ())
+        {
+            throw new IOException ("Server registry " + dir + " is not a directory");
+        }
+
+        UserPrincipal user = dir_path.getFileSystem ().getUserPrincipalLookupService ()
+            .lookupPrincipalByName (System.getProperty ("user.name"));
+
+        if (!attributes.owner ().equals (user))
+        {
+            throw new IOException ("Server registry " + dir + " is owned by " + attributes.owner ().getName ());
+        }
+
+        Set<PosixFilePermission> permissions = attributes.permissions ();
+
+        if (permissions.contains (PosixFilePermission.GROUP_WRITE) || permissions.contains (PosixFilePermission.OTHERS_WRITE))
+        {
+            throw new IOException ("Server registry " + dir + " is writable by others ("
+                + PosixFilePermissions.toString (permissions) + ")");
+        }
+    }
+
+    // The registry, created private when missing and checked anyway
+    public static File createRegistryDir ()
+        throws IOException
+    {
+        File dir = getRegistryDir ();
+
+        try
+        {
+            Files.createDirectories (dir.toPath (),
+                PosixFilePermissions.asFileAttribute (PosixFilePermissions.fromString ("rwx------")));
+        }
+        catch (UnsupportedOperationException e)
+        {
+            // No POSIX permissions on this file system
+            Files.createDirectories (dir.toPath ());
+        }
+        checkRegistryDir (dir);
+        return (dir);
+    }
+
+    // The registry socket of a server name
+    public static String getSocketPath (String server_name)
+    {
+        return (new File (getRegistryDir (), server_name + SOCKET_SUFFIX).getPath ());
+    }
+
+    // Server name to transport, for every server found
+    public static Map<String, AdmindTransport> discover ()
+    {
+        Map<String, AdmindTransport> servers = new LinkedHashMap<> ();
+        AdmindTransport default_transport = AdmindTransports.open ();
+
+        if (default_transport != null)
+        {
+            String name = default_transport.getServerName ();
+            servers.put (name == null? "default": name, default_transport);
+        }
+
+        File registry_dir = getRegistryDir ();
+
+        if (!registry_dir.exists () || !UdsTransport.isSupported ())
+        {
+            return (servers);
+        }
+
+        try
+        {
+            checkRegistryDir (registry_dir);
+        }
+        catch (IOException e)
+        {
+            log.error ("Ignoring the server registry: {}", e.getMessage ());
+            return (servers);
+        }
+
+        File[] sockets = registry_dir.listFiles (new FileFilter ()
+        {
+            @Override
+            public boolean accept (File file)
+            {
+                return (file.getName ().endsWith (SOCKET_SUFFIX));
+            }
+        });
+
+        if (sockets != null)
+        {
+            Arrays.sort (sockets);
+
+            for (File socket: sockets)
+            {
+                String name = socket.getName ().substring (0, socket.getName ().length () - SOCKET_SUFFIX.length ());
+
+                if (!servers.containsKey (name))
+                {
+                    servers.put (name, new UdsTransport (socket.getPath (), name, null));
+                }
+            }
+        }
+        return (servers);
+    }
+
+    // The servers whose names match the glob (*, ?, [...] and {a,b})
+    public static Map<String, AdmindTransport> select (String glob)
+    {
+        Map<String, AdmindTransport> selected = new LinkedHashMap<> ();
+        PathMatcher matcher = FileSystems.getDefault ().getPathMatcher ("glob:" + glob);
+
+        for (Map.Entry<String, AdmindTransport> server: discover ().entrySet ())
+        {
+            if (matcher.matches (Paths.get (server.getKey ())))
+            {
+                selected.put (server.getKey (), server.getValue ());
+            }
+        }
+        return (selected);
+    }
+
+    public static class Selection
+    {
+        // The server glob, "*" with --all, or null for the default server alone
+        public String glob;
+        public String[] args;
+
+        public boolean isFanOut ()
+        {
+            return (glob != null);
+        }
+
+        public Map<String, AdmindTransport> getServers ()
+        {
+            return (select (glob));
+        }
+    }
+
+    // Takes --server <glob>, --server=<glob> and --all out of the command args.
+    // A --server without a glob is a usage error, it ends the command.
+    public static Selection parseArgs (String[] args)
+    {
+        Selection selection = new Selection ();
+        List<String> remaining = new ArrayList<> ();
+
+        for (int pos = 0; pos < args.length; pos++)
+        {
+            String arg = args [pos];
+
+            if (arg.equals ("--all"))
+            {
+                selection.glob = "*";
+            }
+            else if (arg.startsWith ("--server="))
+            {
+                selection.glob = arg.substring ("--server=".length ());
+            }
+            else if (arg.equals ("--server"))
+            {
+                if (pos + 1 == args.length)
+                {
+                    System.err.println ("Error: Missing value for '--server'");
+                    CommandExit.exit (1);
+                }
+                selection.glob = args [++pos];
+            }
+            else
+            {
+                remaining.add (arg);
+            }
+        }
+        selection.args = remaining.toArray (new String [remaining.size ()]);
+        return (selection);
+    }
+}
+
+// EOF
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.admind;
+
+import java.io.IOException;
+import java.util.Properties;
+
+//--------------------------------------------------------------------------------
+// How requests reach admind on one server: the request/response files on the
+// admind directory (FileTransport) or a Unix domain socket (UdsTransport).
+// AdmindTransports.open() picks the one to use.
+//--------------------------------------------------------------------------------
+public interface AdmindTransport
+{
+    // "file" or "uds"
+    String getName ();
+
+    String getServerName ();
+
+    Properties getServerProperties ();
+
+    // Whether the server is there to take requests, without sending any
+    boolean isAlive ();
+
+    AdmindRequest invoke (String service, String args)
+        throws IOException;
+}
+
+// EOF
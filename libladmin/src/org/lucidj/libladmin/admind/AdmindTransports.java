@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.admind;
+
+import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+//--------------------------------------------------------------------------------
+// Picks the transport for the default server. When the server advertises a
+// socket (admind.socket on its properties) and the JDK has Unix domain
+// sockets, requests go through the socket, otherwise through the admind
+// files. -Dladmin.transport=file (or LADMIN_TRANSPORT=file) forces the files,
+// and -Dladmin.admind.socket=<path> (or LADMIN_ADMIND_SOCKET) points straight
+// to a socket, no admind directory needed (see LocalAdmindServer).
+//--------------------------------------------------------------------------------
+public class AdmindTransports
+{
+    private final static TinyLog log = new TinyLog (AdmindTransports.class);
+
+    public final static String SOCKET_PROPERTY = "admind.socket";
+
+    // The transport to the default server, or null if it can't be found
+    public static AdmindTransport open ()
+    {
+        String transport = System.getProperty ("ladmin.transport", System.getenv ("LADMIN_TRANSPORT"));
+        String socket_path = System.getProperty ("ladmin.admind.socket", System.getenv ("LADMIN_ADMIND_SOCKET"));
+        boolean files_only = "file".equals (transport);
+
+        if (socket_path != null && !files_only && UdsTransport.isSupported ())
+        {
+            log.debug ("Using socket {}", socket_path);
+            return (new UdsTransport (socket_path, AdmindUtil.getServerName (), null));
+        }
+
+        if (AdmindUtil.initAdmindDir () == null)
+        {
+            return (null);
+        }
+
+        AdmindTransport file_transport = new FileTransport ();
+
+        if (!files_only)
+        {
+            Properties properties = AdmindUtil.getServerProperties ();
+            socket_path = (properties == null)? null: properties.getProperty (SOCKET_PROPERTY);
+
+            if (socket_path != null && UdsTransport.isSupported () && Files.exists (Paths.get (socket_path)))
+            {
+                log.debug ("Using advertised socket {}", socket_path);
+                return (new UdsTransport (socket_path, AdmindUtil.getServerName (), file_transport));
+            }
+        }
+        return (file_transport);
+    }
+}
+
+// EOF
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.admind;
+
+import org.lucidj.libladmin.shared.ServiceThreads;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+//--------------------------------------------------------------------------------
+// Runs listeners on every change inside a directory, using a WatchService
+// (inotify on Linux). All the listeners of a directory share one WatchService
+// and one thread, so many requests in flight don't eat the inotify instances.
+// Where the WatchService only polls (like macOS, every few seconds) isNative()
+// is false, and callers should keep polling on their own.
+//--------------------------------------------------------------------------------
+public class DirectoryWatcher implements Closeable
+{
+    private final static Map<Path, SharedWatch> shared_watches = new HashMap<> ();
+
+    private final SharedWatch shared_watch;
+    private final Runnable listener;
+    private boolean closed;
+
+    private static class SharedWatch
+    {
+        final Path dir;
+        final WatchService watch_service;
+        final boolean native_watch;
+        final List<Runnable> listeners = new CopyOnWriteArrayList<> ();
+        volatile boolean active = true;
+
+        SharedWatch (Path dir, WatchService watch_service)
+        {
+            this.dir = dir;
+            this.watch_service = watch_service;
+
+            // The JDK falls back to a polling WatchService on platforms without native support
+            native_watch = !watch_service.getClass ().getName ().endsWith ("PollingWatchService");
+        }
+
+        // Stops watching: the next watch() on the same dir starts over
+        void shutdown ()
+        {
+            synchronized (shared_watches)
+            {
+                active = false;
+
+                if (shared_watches.get (dir) == this)
+                {
+                    shared_watches.remove (dir);
+                }
+
+                try
+                {
+                    watch_service.close ();
+                }
+                catch (IOException ignore) {};
+            }
+        }
+
+        void notify_all ()
+        {
+            for (Runnable listener: listeners)
+            {
+                listener.run ();
+            }
+        }
+
+        void start ()
+        {
+            // Shared by every command, so it can't belong to any of them
+            Thread watcher_thread = ServiceThreads.newThread (new Runnable ()
+            {
+                @Override
+                public void run ()
+                {
+                    try
+                    {
+                        for (;;)
+                        {
+                            WatchKey key = watch_service.take ();
+                            key.pollEvents ();
+                            notify_all ();
+
+                            if (!key.reset ())
+                            {
+                                // The directory is gone, the listeners are on their own now
+                                shutdown ();
+                                notify_all ();
+                                break;
+                            }
+                        }
+                    }
+                    catch (InterruptedException | ClosedWatchServiceException bye) {};
+                }
+            }, "Admind watcher");
+            watcher_thread.start ();
+        }
+    }
+
+    private DirectoryWatcher (SharedWatch shared_watch, Runnable listener)
+    {
+        this.shared_watch = shared_watch;
+        this.listener = listener;
+    }
+
+    private static SharedWatch create_shared_watch (Path dir)
+    {
+        WatchService service;
+
+        try
+        {
+            service = FileSystems.getDefault ().newWatchService ();
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            return (null);
+        }
+
+        try
+        {
+            dir.register (service, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            try
+            {
+                service.close ();
+            }
+            catch (IOException ignore) {};
+            return (null);
+        }
+
+        SharedWatch shared_watch = new SharedWatch (dir, service);
+        shared_watch.start ();
+        return (shared_watch);
+    }
+
+    // Starts watching dir, or returns null when it isn't possible
+    public static DirectoryWatcher watch (Path dir, Runnable listener)
+    {
+        dir = dir.toAbsolutePath ().normalize ();
+
+        synchronized (shared_watches)
+        {
+            SharedWatch shared_watch = shared_watches.get (dir);
+
+            if (shared_watch == null)
+            {
+                if ((shared_watch = create_shared_watch (dir)) == null)
+                {
+                    return (null);
+                }
+                shared_watches.put (dir, shared_watch);
+            }
+            shared_watch.listeners.add (listener);
+            return (new DirectoryWatcher (shared_watch, listener));
+        }
+    }
+
+    // False as well once the directory is gone and nothing is watched anymore
+    public boolean isNative ()
+    {
+        return (shared_watch.native_watch && shared_watch.active);
+    }
+
+    @Override
+    public void close ()
+    {
+        synchronized (shared_watches)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            shared_watch.listeners.remove (listener);
+
+            if (shared_watch.listeners.isEmpty ())
+            {
+                // The last one turns off the lights
+                shared_watch.shutdown ();
+            }
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.admind;
+
+import org.lucidj.admind.shared.AdmindUtil;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+//--------------------------------------------------------------------------------
+// The classic transport: AdmindUtil writes the request files on the admind
+// directory and the server appends to the response files.
+//--------------------------------------------------------------------------------
+public class FileTransport implements AdmindTransport
+{
+    @Override
+    public String getName ()
+    {
+        return ("file");
+    }
+
+    @Override
+    public String getServerName ()
+    {
+        return (AdmindUtil.getServerName ());
+    }
+
+    @Override
+    public Properties getServerProperties ()
+    {
+        return (AdmindUtil.getServerProperties ());
+    }
+
+    @Override
+    public boolean isAlive ()
+    {
+        // Validates the admind directory
+        return (AdmindUtil.getAdmindDir () != null);
+    }
+
+    @Override
+    public AdmindRequest invoke (String service, String args)
+        throws IOException
+    {
+        String request = AdmindUtil.asyncInvoke (service, args);
+
+        if (request == null)
+        {
+            throw new IOException ("Unable to invoke '" + service + "'");
+        }
+        return (new FileRequest (request));
+    }
+
+    static class FileRequest implements AdmindRequest
+    {
+        private final String request;
+        private FileChannel request_channel;
+        private FileChannel response_channel;
+        private DirectoryWatcher watcher;
+        private boolean closed;
+
+        FileRequest (String request)
+        {
+            this.request = request;
+        }
+
+        @Override
+        public int poll ()
+        {
+            return (AdmindUtil.asyncPoll (request));
+        }
+
+        @Override
+        public int await (long timeout_ms, int status)
+            throws InterruptedException
+        {
+            return (await (timeout_ms, status, WaitPolicy.getDefault ()));
+        }
+
+        @Override
+        public int await (long timeout_ms, int status, WaitPolicy policy)
+            throws InterruptedException
+        {
+            return (policy.await (this, admind_dir (), timeout_ms, status));
+        }
+
+        @Override
+        public String getResponse ()
+        {
+            return (AdmindUtil.asyncResponse (request));
+        }
+
+        @Override
+        public String getError ()
+        {
+            return (AdmindUtil.asyncError (request));
+        }
+
+        @Override
+        public synchronized WritableByteChannel getRequestChannel ()
+            throws IOException
+        {
+            if (request_channel == null)
+            {
+                request_channel = FileChannel.open (Paths.get (AdmindUtil.requestFile (request)),
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            return (request_channel);
+        }
+
+        @Override
+        public synchronized ReadableByteChannel getResponseChannel ()
+            throws IOException
+        {
+            if (response_channel == null)
+            {
+                response_channel = FileChannel.open (Paths.get (AdmindUtil.responseFile (request)),
+                    StandardOpenOption.READ);
+            }
+            return (response_channel);
+        }
+
+        // The server answers by appending to the response file, so we watch its directory
+        private Path admind_dir ()
+        {
+            return (Paths.get (AdmindUtil.responseFile (request)).toAbsolutePath ().getParent ());
+        }
+
+        @Override
+        public synchronized boolean watch (Runnable listener)
+        {
+            if (watcher == null && (watcher = DirectoryWatcher.watch (admind_dir (), listener)) == null)
+            {
+                return (false);
+            }
+            return (watcher.isNative ());
+        }
+
+        private static void close_quietly (FileChannel channel)
+        {
+            try
+            {
+                if (channel != null)
+                {
+                    channel.close ();
+                }
+            }
+            catch (IOException ignore) {};
+        }
+
+        @Override
+        public synchronized void close ()
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+
+            if (watcher != null)
+            {
+                watcher.close ();
+            }
+            close_quietly (request_channel);
+            close_quietly (response_channel);
+
+            // Check for error forces transaction discard
+            AdmindUtil.asyncError (request);
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.admind;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//--------------------------------------------------------------------------------
+// Latency histogram with log-linear buckets, the HdrHistogram way: values are
+// kept in microseconds, each power of two split in 16 sub-buckets, so any
+// recorded value is within ~6% of the reported one, from 1us to hours, in a
+// fixed ~1000 counters. Recording is lock-free and may come from any thread.
+//--------------------------------------------------------------------------------
+public class LatencyHistogram
+{
+    private final static int SUB_BUCKET_BITS = 4;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final static int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray (BUCKETS);
+    private final AtomicLong total_count = new AtomicLong ();
+    private final AtomicLong total_micros = new AtomicLong ();
+    private final AtomicLong min_micros = new AtomicLong (Long.MAX_VALUE);
+    private final AtomicLong max_micros = new AtomicLong ();
+
+    private static int index_of (long micros)
+    {
+        if (micros < SUB_BUCKETS)
+        {
+            return ((int)micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros (micros);
+        int sub_bucket = (int)(micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub_bucket);
+    }
+
+    // The highest value of the bucket, so percentiles never look better than they are
+    private static long value_of (int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return (index);
+        }
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        long sub_bucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS + sub_bucket) << (exponent - SUB_BUCKET_BITS);
+        return (lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1);
+    }
+
+    public void recordNanos (long nanos)
+    {
+        long micros = Math.max (0, nanos / 1000);
+
+        counts.incrementAndGet (index_of (micros));
+        total_count.incrementAndGet ();
+        total_micros.addAndGet (micros);
+
+        long current;
+
+        while (micros < (current = min_micros.get ()))
+        {
+            if (min_micros.compareAndSet (current, micros))
+            {
+                break;
+            }
+        }
+
+        while (micros > (current = max_micros.get ()))
+        {
+            if (max_micros.compareAndSet (current, micros))
+            {
+                break;
+            }
+        }
+    }
+
+    public long getCount ()
+    {
+        return (total_count.get ());
+    }
+
+    public long getMinMicros ()
+    {
+        return (getCount () == 0? 0: min_micros.get ());
+    }
+
+    public long getMaxMicros ()
+    {
+        return (max_micros.get ());
+    }
+
+    public double getMeanMicros ()
+    {
+        long count = getCount ();
+        return (count == 0? 0: (double)total_micros.get () / count);
+    }
+
+    // The value below which the given percentage (0-100) of the samples fall
+    public long getPercentileMicros (double percentile)
+    {
+        long count = getCount ();
+
+        if (count == 0)
+        {
+            return (0);
+        }
+
+        long wanted = Math.max (1, (long)Math.ceil (count * percentile / 100.0));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts.get (i);
+
+            if (seen >= wanted)
+            {
+                // Never past the real maximum
+                return (Math.min (value_of (i), getMaxMicros ()));
+            }
+        }
+        return (getMaxMicros ());
+    }
+
+    public void reset ()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts.set (i, 0);
+        }
+        total_count.set (0);
+        total_micros.set (0);
+        min_micros.set (Long.MAX_VALUE);
+        max_micros.set (0);
+    }
+
+    public static String formatMicros (long micros)
+    {
+        if (micros < 1000)
+        {
+            return (micros + "us");
+        }
+        else if (micros < 1000000)
+        {
+            return (String.format ("%.2fms", micros / 1000.0));
+        }
+        return (String.format ("%.2fs", micros / 1000000.0));
+    }
+
+    public String summary ()
+    {
+        return ("n=" + getCount ()
+            + " min=" + formatMicros (getMinMicros ())
+            + " p50=" + formatMicros (getPercentileMicros (50))
+            + " p90=" + formatMicros (getPercentileMicros (90))
+            + " p99=" + formatMicros (getPercentileMicros (99))
+            + " max=" + formatMicros (getMaxMicros ()));
+    }
+}
+
+// EOF
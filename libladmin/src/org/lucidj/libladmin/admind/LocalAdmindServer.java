@@ -0,0 +1,281 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.admind;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+
+//--------------------------------------------------------------------------------
+// A stand-in admind server on a Unix domain socket, so the socket transport
+// and the commands can be exercised and benchmarked without a running LucidJ:
+//
+//     java -cp libladmin.jar:adminutil.jar org.lucidj.libladmin.admind.LocalAdmindServer /tmp/admind.sock
+//     LADMIN_ADMIND_SOCKET=/tmp/admind.sock ladmin jmx ...
+//
+// Given a plain name instead of a path, the socket goes on the server registry
+// (see AdmindServers), reachable with 'ladmin jmx --server <name>' or --all.
+// An optional delay (ms) holds every answer, to play a slow server.
+//
+// Services: ping (answers pong), jmx (a few attributes of this JVM, whatever
+// the query), shutdown (answers and exits), shell (echoes everything back).
+// Anything else gets an error.
+//--------------------------------------------------------------------------------
+public class LocalAdmindServer
+{
+    private final String socket_path;
+    private final long delay_ms;
+    private final AtomicLong request_count = new AtomicLong ();
+    private volatile boolean shutdown;
+    private ServerSocketChannel server_channel;
+
+    public LocalAdmindServer (String socket_path, long delay_ms)
+    {
+        this.socket_path = socket_path;
+        this.delay_ms = delay_ms;
+    }
+
+    private static void send_frame (SocketChannel channel, byte kind, byte[] payload, int length)
+        throws IOException
+    {
+        ByteBuffer frame = ByteBuffer.allocate (5 + length);
+        frame.put (kind).putInt (length).put (payload, 0, length);
+        frame.flip ();
+        UdsTransport.write_fully (channel, frame);
+    }
+
+    private static void send_frame (SocketChannel channel, byte kind, String payload)
+        throws IOException
+    {
+        byte[] bytes = payload.getBytes (StandardCharsets.UTF_8);
+        send_frame (channel, kind, bytes, bytes.length);
+    }
+
+    private static String read_string (SocketChannel channel)
+        throws IOException
+    {
+        ByteBuffer length = ByteBuffer.allocate (4);
+        UdsTransport.read_fully (channel, length);
+        length.flip ();
+
+        ByteBuffer bytes = ByteBuffer.allocate (length.getInt ());
+        UdsTransport.read_fully (channel, bytes);
+        return (new String (bytes.array (), StandardCharsets.UTF_8));
+    }
+
+    private String jmx_response ()
+    {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean ().getHeapMemoryUsage ();
+        StringBuilder sb = new StringBuilder ();
+        sb.append ("java.lang:type=Runtime/Uptime: ").append (ManagementFactory.getRuntimeMXBean ().getUptime ()).append ('\n');
+        sb.append ("java.lang:type=Memory/HeapMemoryUsage.used: ").append (heap.getUsed ()).append ('\n');
+        sb.append ("java.lang:type=Memory/HeapMemoryUsage.max: ").append (heap.getMax ()).append ('\n');
+        sb.append ("java.lang:type=Threading/ThreadCount: ").append (ManagementFactory.getThreadMXBean ().getThreadCount ()).append ('\n');
+        sb.append ("org.lucidj.admind:type=StandIn/RequestCount: ").append (request_count.get ()).append ('\n');
+        return (sb.toString ());
+    }
+
+    private void echo_stream (SocketChannel channel)
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate (8192);
+
+        while (channel.read (buffer) >= 0)
+        {
+            buffer.flip ();
+
+            if (buffer.hasRemaining ())
+            {
+                send_frame (channel, UdsTransport.FRAME_DATA, buffer.array (), buffer.remaining ());
+            }
+            buffer.clear ();
+        }
+    }
+
+    private void serve (SocketChannel channel)
+    {
+        try
+        {
+            String service = read_string (channel);
+            String args = read_string (channel);
+            request_count.incrementAndGet ();
+            send_frame (channel, UdsTransport.FRAME_RUNNING, "");
+
+            if (delay_ms > 0)
+            {
+                try
+                {
+                    Thread.sleep (delay_ms);
+                }
+                catch (InterruptedException ignore) {};
+            }
+
+            switch (service)
+            {
+                case "ping":
+                {
+                    send_frame (channel, UdsTransport.FRAME_DATA, "pong");
+                    break;
+                }
+                case "jmx":
+                {
+                    send_frame (channel, UdsTransport.FRAME_DATA, jmx_response ());
+                    break;
+                }
+                case "shutdown":
+                {
+                    send_frame (channel, UdsTransport.FRAME_DATA, "true");
+                    shutdown = true;
+                    break;
+                }
+                case "shell":
+                {
+                    echo_stream (channel);
+                    break;
+                }
+                default:
+                {
+                    send_frame (channel, UdsTransport.FRAME_ERROR, "Unknown service '" + service + "' (" + args + ")");
+                    return;
+                }
+            }
+            send_frame (channel, UdsTransport.FRAME_DONE, "");
+        }
+        catch (IOException e)
+        {
+            // The client went away
+        }
+        finally
+        {
+            try
+            {
+                channel.close ();
+            }
+            catch (IOException ignore) {};
+
+            if (shutdown)
+            {
+                stop ();
+            }
+        }
+    }
+
+    public void start ()
+        throws IOException
+    {
+        Path socket_dir = Paths.get (socket_path).toAbsolutePath ().getParent ();
+
+        if (socket_dir.equals (AdmindServers.getRegistryDir ().toPath ().toAbsolutePath ()))
+        {
+            // Private, so nobody else can take our place there
+            AdmindServers.createRegistryDir ();
+        }
+        else
+        {
+            Files.createDirectories (socket_dir);
+        }
+        Files.deleteIfExists (Paths.get (socket_path));
+        final ServerSocketChannel listening_channel = UnixSockets.bind (socket_path);
+        server_channel = listening_channel;
+
+        Thread acceptor = new Thread (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                try
+                {
+                    for (;;)
+                    {
+                        final SocketChannel channel = listening_channel.accept ();
+
+                        Thread worker = new Thread (new Runnable ()
+                        {
+                            @Override
+                            public void run ()
+                            {
+                                serve (channel);
+                            }
+                        });
+                        worker.setName ("Admind stand-in worker");
+                        worker.setDaemon (true);
+                        worker.start ();
+                    }
+                }
+                catch (IOException bye) {};
+            }
+        });
+        acceptor.setName ("Admind stand-in acceptor");
+        acceptor.start ();
+    }
+
+    public synchronized void stop ()
+    {
+        try
+        {
+            if (server_channel != null)
+            {
+                server_channel.close ();
+                server_channel = null;
+            }
+            Files.deleteIfExists (Paths.get (socket_path));
+        }
+        catch (IOException ignore) {};
+    }
+
+    public static void main (String[] args)
+        throws IOException
+    {
+        if (args.length < 1 || args.length > 2)
+        {
+            System.err.println ("Usage: LocalAdmindServer <socket path | server name> [delay ms]");
+            System.exit (1);
+        }
+
+        if (!UnixSockets.isSupported ())
+        {
+            System.err.println ("Unix domain sockets need JDK 16+");
+            System.exit (1);
+        }
+
+        String socket_path = args [0].contains (File.separator)? args [0]: AdmindServers.getSocketPath (args [0]);
+        long delay_ms = (args.length == 2)? Long.parseLong (args [1]): 0;
+
+        final LocalAdmindServer server = new LocalAdmindServer (socket_path, delay_ms);
+        server.start ();
+        System.out.println ("Admind stand-in listening on " + socket_path);
+
+        Runtime.getRuntime ().addShutdownHook (new Thread ()
+        {
+            public void run ()
+            {
+                server.stop ();
+            }
+        });
+    }
+}
+
+// EOF
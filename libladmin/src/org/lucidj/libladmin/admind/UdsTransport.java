@@ -0,0 +1,442 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.admind;
+
+import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+
+//--------------------------------------------------------------------------------
+// Admind requests over a Unix domain socket, one connection per request, no
+// files and no polling. The server advertises the socket path on its
+// properties (admind.socket). The protocol:
+//
+//     client -> server   <int length><service>  <int length><args>  [stream...]
+//     server -> client   frames of <byte kind><int length><payload>
+//
+// Strings are UTF-8. Whatever the client writes after the header is the
+// request stream (the shell keys). The server frames are RUNNING once the
+// request is taken, DATA with response bytes (the response file growing), and
+// finally DONE or ERROR (with the message). A connection closed before the
+// final frame means the server is gone.
+//--------------------------------------------------------------------------------
+public class UdsTransport implements AdmindTransport
+{
+    private final static TinyLog log = new TinyLog (UdsTransport.class);
+
+    final static byte FRAME_RUNNING = 'R';
+    final static byte FRAME_DATA = 'D';
+    final static byte FRAME_DONE = 'K';
+    final static byte FRAME_ERROR = 'E';
+
+    // Not yet taken by the server
+    final static int ASYNC_PENDING = 0;
+
+    private final String socket_path;
+    private final String server_name;
+    private final AdmindTransport fallback;
+
+    // The fallback (when not null) serves the server properties and the requests
+    // the socket can't take, like with a stale socket file
+    public UdsTransport (String socket_path, String server_name, AdmindTransport fallback)
+    {
+        this.socket_path = socket_path;
+        this.server_name = server_name;
+        this.fallback = fallback;
+    }
+
+    public static boolean isSupported ()
+    {
+        return (UnixSockets.isSupported ());
+    }
+
+    public String getSocketPath ()
+    {
+        return (socket_path);
+    }
+
+    @Override
+    public String getName ()
+    {
+        return ("uds");
+    }
+
+    @Override
+    public String getServerName ()
+    {
+        return (server_name);
+    }
+
+    @Override
+    public Properties getServerProperties ()
+    {
+        Properties properties = (fallback == null)? null: fallback.getServerProperties ();
+        return (properties == null? new Properties (): properties);
+    }
+
+    @Override
+    public boolean isAlive ()
+    {
+        try
+        {
+            UnixSockets.connect (socket_path).close ();
+            return (true);
+        }
+        catch (IOException e)
+        {
+            return (fallback != null && fallback.isAlive ());
+        }
+    }
+
+    static void write_fully (WritableByteChannel channel, ByteBuffer buffer)
+        throws IOException
+    {
+        while (buffer.hasRemaining ())
+        {
+            channel.write (buffer);
+        }
+    }
+
+    static void read_fully (ReadableByteChannel channel, ByteBuffer buffer)
+        throws IOException
+    {
+        while (buffer.hasRemaining ())
+        {
+            if (channel.read (buffer) < 0)
+            {
+                throw new EOFException ();
+            }
+        }
+    }
+
+    @Override
+    public AdmindRequest invoke (String service, String args)
+        throws IOException
+    {
+        SocketChannel channel;
+
+        try
+        {
+            channel = UnixSockets.connect (socket_path);
+        }
+        catch (IOException e)
+        {
+            if (fallback == null)
+            {
+                throw e;
+            }
+            log.debug ("Exception connecting to {}, using {}: {}", socket_path, fallback.getName (), e.toString ());
+            return (fallback.invoke (service, args));
+        }
+
+        byte[] service_bytes = service.getBytes (StandardCharsets.UTF_8);
+        byte[] args_bytes = (args == null? "": args).getBytes (StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate (8 + service_bytes.length + args_bytes.length);
+        header.putInt (service_bytes.length).put (service_bytes);
+        header.putInt (args_bytes.length).put (args_bytes);
+        header.flip ();
+
+        try
+        {
+            write_fully (channel, header);
+        }
+        catch (IOException e)
+        {
+            channel.close ();
+            throw e;
+        }
+
+        UdsRequest request = new UdsRequest (channel);
+        request.start ();
+        return (request);
+    }
+
+    static class UdsRequest implements AdmindRequest
+    {
+        private final static int INITIAL_BUFFER = 1024;
+        private final static int MAX_IDLE_BUFFER = 64 * 1024;
+
+        private final SocketChannel channel;
+        private int status = ASYNC_PENDING;
+        private String error;
+        private byte[] data = new byte [INITIAL_BUFFER];
+        private int data_length;
+        private int read_position;
+        private volatile Runnable listener;
+
+        UdsRequest (SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        private void update (int new_status, String new_error, byte[] payload)
+        {
+            synchronized (this)
+            {
+                if (payload != null && payload.length > 0)
+                {
+                    if (data_length + payload.length > data.length && read_position > 0)
+                    {
+                        // Make room dropping what was already streamed
+                        System.arraycopy (data, read_position, data, 0, data_length - read_position);
+                        data_length -= read_position;
+                        read_position = 0;
+                    }
+
+                    if (data_length + payload.length > data.length)
+                    {
+                        data = Arrays.copyOf (data, Math.max (data.length * 2, data_length + payload.length));
+                    }
+                    System.arraycopy (payload, 0, data, data_length, payload.length);
+                    data_length += payload.length;
+                }
+
+                // Final states stay
+                if (status == ASYNC_PENDING || status == AdmindUtil.ASYNC_RUNNING)
+                {
+                    status = new_status;
+                    error = new_error;
+                }
+                notifyAll ();
+            }
+
+            Runnable current_listener = listener;
+
+            if (current_listener != null)
+            {
+                current_listener.run ();
+            }
+        }
+
+        private void read_frames ()
+        {
+            ByteBuffer frame_header = ByteBuffer.allocate (5);
+
+            try
+            {
+                for (;;)
+                {
+                    frame_header.clear ();
+                    read_fully (channel, frame_header);
+                    frame_header.flip ();
+
+                    byte kind = frame_header.get ();
+                    ByteBuffer payload = ByteBuffer.allocate (frame_header.getInt ());
+                    read_fully (channel, payload);
+
+                    switch (kind)
+                    {
+                        case FRAME_RUNNING:
+                        {
+                            update (AdmindUtil.ASYNC_RUNNING, null, null);
+                            break;
+                        }
+                        case FRAME_DATA:
+                        {
+                            update (AdmindUtil.ASYNC_RUNNING, null, payload.array ());
+                            break;
+                        }
+                        case FRAME_DONE:
+                        {
+                            update (AdmindUtil.ASYNC_READY, null, null);
+                            return;
+                        }
+                        case FRAME_ERROR:
+                        {
+                            update (AdmindUtil.ASYNC_ERROR, new String (payload.array (), StandardCharsets.UTF_8), null);
+                            return;
+                        }
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                update (AdmindUtil.ASYNC_GONE, null, null);
+            }
+        }
+
+        void start ()
+        {
+            Thread reader = new Thread (new Runnable ()
+            {
+                @Override
+                public void run ()
+                {
+                    read_frames ();
+                }
+            });
+            reader.setName ("Admind socket reader");
+            reader.setDaemon (true);
+            reader.start ();
+        }
+
+        private static boolean is_final (int status)
+        {
+            return (status != ASYNC_PENDING && status != AdmindUtil.ASYNC_RUNNING);
+        }
+
+        @Override
+        public synchronized int poll ()
+        {
+            return (status);
+        }
+
+        @Override
+        public synchronized int await (long timeout_ms, int wanted_status)
+            throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis () + timeout_ms;
+
+            // Running is reached by any status past pending
+            while (!is_final (status) && !(wanted_status == AdmindUtil.ASYNC_RUNNING && status != ASYNC_PENDING))
+            {
+                if (timeout_ms < 0)
+                {
+                    wait ();
+                }
+                else
+                {
+                    long remaining = deadline - System.currentTimeMillis ();
+
+                    if (remaining <= 0)
+                    {
+                        break;
+                    }
+                    wait (remaining);
+                }
+            }
+            return (status);
+        }
+
+        @Override
+        public int await (long timeout_ms, int wanted_status, WaitPolicy policy)
+            throws InterruptedException
+        {
+            // The reader thread wakes us up, nothing to poll
+            return (await (timeout_ms, wanted_status));
+        }
+
+        // Streamed data goes away once read, a long session doesn't pile up in memory
+        private void discard_read_data ()
+        {
+            if (read_position == data_length)
+            {
+                read_position = data_length = 0;
+
+                if (data.length > MAX_IDLE_BUFFER)
+                {
+                    // Let go of whatever a burst made it grow to
+                    data = new byte [INITIAL_BUFFER];
+                }
+            }
+            else if (read_position > data.length / 2)
+            {
+                System.arraycopy (data, read_position, data, 0, data_length - read_position);
+                data_length -= read_position;
+                read_position = 0;
+            }
+        }
+
+        // What the response channel didn't read yet, which is everything
+        // unless the request is being streamed
+        @Override
+        public synchronized String getResponse ()
+        {
+            return (new String (data, read_position, data_length - read_position, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public synchronized String getError ()
+        {
+            return (error);
+        }
+
+        @Override
+        public WritableByteChannel getRequestChannel ()
+        {
+            // Writes go straight to the socket, the reader thread never holds a lock on it
+            return (channel);
+        }
+
+        @Override
+        public ReadableByteChannel getResponseChannel ()
+        {
+            return (new ReadableByteChannel ()
+            {
+                @Override
+                public int read (ByteBuffer dst)
+                {
+                    synchronized (UdsRequest.this)
+                    {
+                        int count = Math.min (data_length - read_position, dst.remaining ());
+
+                        if (count == 0 && is_final (status))
+                        {
+                            return (-1);
+                        }
+                        dst.put (data, read_position, count);
+                        read_position += count;
+                        discard_read_data ();
+                        return (count);
+                    }
+                }
+
+                @Override
+                public boolean isOpen ()
+                {
+                    return (channel.isOpen ());
+                }
+
+                @Override
+                public void close ()
+                {
+                    UdsRequest.this.close ();
+                }
+            });
+        }
+
+        @Override
+        public boolean watch (Runnable listener)
+        {
+            // Every frame arrives through the reader thread
+            this.listener = listener;
+            return (true);
+        }
+
+        @Override
+        public void close ()
+        {
+            try
+            {
+                // The server drops the request along with the connection
+                channel.close ();
+            }
+            catch (IOException ignore) {};
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.admind;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+//--------------------------------------------------------------------------------
+// Unix domain sockets came with JDK 16 (UnixDomainSocketAddress and the UNIX
+// protocol family), while we still build for Java 8. So everything is looked
+// up by reflection, once, and isSupported() tells whether it's all there.
+//--------------------------------------------------------------------------------
+class UnixSockets
+{
+    private static ProtocolFamily unix_family;
+    private static Method address_of;
+    private static Method open_channel;
+    private static Method open_server_channel;
+
+    static
+    {
+        try
+        {
+            unix_family = StandardProtocolFamily.valueOf ("UNIX");
+            address_of = Class.forName ("java.net.UnixDomainSocketAddress").getMethod ("of", String.class);
+            open_channel = SocketChannel.class.getMethod ("open", ProtocolFamily.class);
+            open_server_channel = ServerSocketChannel.class.getMethod ("open", ProtocolFamily.class);
+        }
+        catch (IllegalArgumentException | ReflectiveOperationException e)
+        {
+            // Older JDK
+            unix_family = null;
+        }
+    }
+
+    static boolean isSupported ()
+    {
+        return (unix_family != null);
+    }
+
+    private static Object invoke (Method method, Object arg)
+        throws IOException
+    {
+        if (!isSupported ())
+        {
+            throw new IOException ("Unix domain sockets need JDK 16+");
+        }
+
+        try
+        {
+            return (method.invoke (null, arg));
+        }
+        catch (InvocationTargetException e)
+        {
+            if (e.getCause () instanceof IOException)
+            {
+                throw (IOException)e.getCause ();
+            }
+            throw new IOException (e.getCause ());
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IOException (e);
+        }
+    }
+
+    static SocketAddress address (String path)
+        throws IOException
+    {
+        return ((SocketAddress)invoke (address_of, path));
+    }
+
+    static SocketChannel connect (String path)
+        throws IOException
+    {
+        SocketChannel channel = (SocketChannel)invoke (open_channel, unix_family);
+
+        try
+        {
+            channel.connect (address (path));
+        }
+        catch (IOException e)
+        {
+            channel.close ();
+            throw e;
+        }
+        return (channel);
+    }
+
+    static ServerSocketChannel bind (String path)
+        throws IOException
+    {
+        ServerSocketChannel channel = (ServerSocketChannel)invoke (open_server_channel, unix_family);
+
+        try
+        {
+            channel.bind (address (path));
+        }
+        catch (IOException e)
+        {
+            channel.close ();
+            throw e;
+        }
+        return (channel);
+    }
+}
+
+// EOF
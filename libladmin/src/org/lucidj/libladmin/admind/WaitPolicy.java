@@ -0,0 +1,250 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.admind;
+
+import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+//--------------------------------------------------------------------------------
+// How to wait for an admind request polling the admind files. Most answers
+// come within a few milliseconds, so first we poll tightly (spin), then back
+// off exponentially (backoff from the minimum to the maximum sleep), and past
+// the notify threshold we register for the admind directory changes and only
+// poll once in a while, just in case. A policy is written as:
+//
+//     spin=<ms>,backoff=<min ms>-<max ms>,notify=<ms>
+//
+// Any part may be left out. The policy of a command comes from
+// -Dladmin.wait.<command> (or LADMIN_WAIT_<COMMAND>), then from -Dladmin.wait
+// (or LADMIN_WAIT), then DEFAULT. Socket requests are event driven and don't
+// need any of this.
+//--------------------------------------------------------------------------------
+public class WaitPolicy
+{
+    private final static TinyLog log = new TinyLog (WaitPolicy.class);
+
+    // With notifications we still look around once in a while
+    private final static long NOTIFY_SAFETY_POLL_MS = 250;
+
+    public final static WaitPolicy DEFAULT = new WaitPolicy (3, 1, 64, 50);
+
+    private final long spin_ms;
+    private final long backoff_min_ms;
+    private final long backoff_max_ms;
+    private final long notify_ms;
+
+    public WaitPolicy (long spin_ms, long backoff_min_ms, long backoff_max_ms, long notify_ms)
+    {
+        this.spin_ms = Math.max (0, spin_ms);
+        this.backoff_min_ms = Math.max (1, backoff_min_ms);
+        this.backoff_max_ms = Math.max (this.backoff_min_ms, backoff_max_ms);
+        this.notify_ms = Math.max (0, notify_ms);
+    }
+
+    // Parses "spin=3,backoff=1-64,notify=50" over the defaults
+    public static WaitPolicy parse (String spec)
+    {
+        long spin = DEFAULT.spin_ms;
+        long backoff_min = DEFAULT.backoff_min_ms;
+        long backoff_max = DEFAULT.backoff_max_ms;
+        long notify = DEFAULT.notify_ms;
+
+        for (String part: spec.split (","))
+        {
+            String[] key_value = part.trim ().split ("=", 2);
+
+            if (key_value.length != 2)
+            {
+                throw new IllegalArgumentException ("Invalid wait policy '" + spec + "'");
+            }
+
+            String value = key_value [1].trim ();
+
+            switch (key_value [0].trim ())
+            {
+                case "spin":
+                {
+                    spin = Long.parseLong (value);
+                    break;
+                }
+                case "backoff":
+                {
+                    String[] range = value.split ("-", 2);
+                    backoff_min = Long.parseLong (range [0]);
+                    backoff_max = (range.length == 2)? Long.parseLong (range [1]): backoff_min;
+                    break;
+                }
+                case "notify":
+                {
+                    notify = Long.parseLong (value);
+                    break;
+                }
+                default:
+                {
+                    throw new IllegalArgumentException ("Invalid wait policy '" + spec + "'");
+                }
+            }
+        }
+        return (new WaitPolicy (spin, backoff_min, backoff_max, notify));
+    }
+
+    private static WaitPolicy configured (String property, String env)
+    {
+        String spec = System.getProperty (property, System.getenv (env));
+
+        if (spec != null)
+        {
+            try
+            {
+                return (parse (spec));
+            }
+            catch (IllegalArgumentException e)
+            {
+                log.warn ("Ignoring {}: {}", property, e.getMessage ());
+            }
+        }
+        return (null);
+    }
+
+    // The policy configured for a command, or the general one
+    public static WaitPolicy forCommand (String command)
+    {
+        WaitPolicy policy = configured ("ladmin.wait." + command, "LADMIN_WAIT_" + command.toUpperCase (Locale.ROOT));
+        return (policy != null? policy: getDefault ());
+    }
+
+    public static WaitPolicy getDefault ()
+    {
+        WaitPolicy policy = configured ("ladmin.wait", "LADMIN_WAIT");
+        return (policy != null? policy: DEFAULT);
+    }
+
+    private static boolean reached (int current, int wanted)
+    {
+        if (current == AdmindUtil.ASYNC_READY || current == AdmindUtil.ASYNC_ERROR || current == AdmindUtil.ASYNC_GONE)
+        {
+            return (true);
+        }
+        return (wanted == AdmindUtil.ASYNC_RUNNING && current == AdmindUtil.ASYNC_RUNNING);
+    }
+
+    private static class Signal implements Runnable
+    {
+        private boolean signaled;
+
+        @Override
+        public synchronized void run ()
+        {
+            signaled = true;
+            notifyAll ();
+        }
+
+        synchronized void await (long timeout_ms)
+            throws InterruptedException
+        {
+            if (!signaled && timeout_ms > 0)
+            {
+                wait (timeout_ms);
+            }
+            signaled = false;
+        }
+    }
+
+    // Polls request until it reaches status or ends, up to timeout_ms (forever if
+    // negative), watching watch_dir (if not null) on the notify phase
+    public int await (AdmindRequest request, Path watch_dir, long timeout_ms, int status)
+        throws InterruptedException
+    {
+        long start = System.nanoTime ();
+        long sleep_ms = backoff_min_ms;
+        Signal signal = new Signal ();
+        DirectoryWatcher watcher = null;
+        boolean watching = false;
+
+        try
+        {
+            for (;;)
+            {
+                int current = request.poll ();
+
+                if (reached (current, status))
+                {
+                    return (current);
+                }
+
+                long elapsed_ms = TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - start);
+                long remaining_ms = (timeout_ms < 0)? Long.MAX_VALUE: timeout_ms - elapsed_ms;
+
+                if (remaining_ms <= 0)
+                {
+                    return (current);
+                }
+
+                if (Thread.interrupted ())
+                {
+                    throw new InterruptedException ();
+                }
+
+                if (elapsed_ms < spin_ms)
+                {
+                    Thread.yield ();
+                    continue;
+                }
+
+                if (!watching && watch_dir != null && elapsed_ms >= notify_ms)
+                {
+                    watching = true;
+
+                    if ((watcher = DirectoryWatcher.watch (watch_dir, signal)) != null)
+                    {
+                        // Poll again, anything from now on wakes us up
+                        continue;
+                    }
+                }
+
+                if (watcher != null && watcher.isNative ())
+                {
+                    signal.await (Math.min (NOTIFY_SAFETY_POLL_MS, remaining_ms));
+                }
+                else
+                {
+                    signal.await (Math.min (sleep_ms, remaining_ms));
+                    sleep_ms = Math.min (sleep_ms * 2, backoff_max_ms);
+                }
+            }
+        }
+        finally
+        {
+            if (watcher != null)
+            {
+                watcher.close ();
+            }
+        }
+    }
+
+    @Override
+    public String toString ()
+    {
+        return ("spin=" + spin_ms + ",backoff=" + backoff_min_ms + "-" + backoff_max_ms + ",notify=" + notify_ms);
+    }
+}
+
+// EOF
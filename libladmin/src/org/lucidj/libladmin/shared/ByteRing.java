@@ -0,0 +1,243 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.shared;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+//--------------------------------------------------------------------------------
+// Single producer, single consumer byte ring. No locks: the producer owns the
+// write counter, the consumer owns the read counter, and each one only reads
+// the other's. The counters live 128 bytes apart, so the two threads don't
+// fight over the same cache line. A side waiting on a full or empty ring spins
+// a little (keystrokes usually arrive in bursts), then parks until the other
+// side unparks it. Only one thread may put and only one thread may take.
+//--------------------------------------------------------------------------------
+public class ByteRing
+{
+    private final static int SPIN_TRIES = 64;
+
+    // Counters padded with 15 longs on each side
+    private final static int WRITE_COUNTER = 15;
+    private final static int READ_COUNTER = 31;
+    private final AtomicLongArray counters = new AtomicLongArray (47);
+
+    private final byte[] ring;
+    private final int mask;
+
+    private volatile Thread waiting_producer;
+    private volatile Thread waiting_consumer;
+
+    public ByteRing (int capacity)
+    {
+        int size = 1;
+
+        // Rounded up to a power of two, so wrapping is a mask
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+        ring = new byte [size];
+        mask = size - 1;
+    }
+
+    public int capacity ()
+    {
+        return (ring.length);
+    }
+
+    // Bytes waiting to be taken
+    public int available ()
+    {
+        return ((int)(counters.get (WRITE_COUNTER) - counters.get (READ_COUNTER)));
+    }
+
+    public boolean isEmpty ()
+    {
+        return (available () == 0);
+    }
+
+    private static void wake (Thread waiting)
+    {
+        if (waiting != null)
+        {
+            LockSupport.unpark (waiting);
+        }
+    }
+
+    //-------------------
+    // Producer methods
+    //-------------------
+
+    // Copies as much as fits without waiting, returns the byte count
+    public int offer (byte[] data, int offset, int length)
+    {
+        long write = counters.get (WRITE_COUNTER);
+        int free = ring.length - (int)(write - counters.get (READ_COUNTER));
+        int count = Math.min (free, length);
+
+        if (count > 0)
+        {
+            int start = (int)write & mask;
+            int first = Math.min (count, ring.length - start);
+            System.arraycopy (data, offset, ring, start, first);
+            System.arraycopy (data, offset + first, ring, 0, count - first);
+
+            // Volatile store, ordered before reading the waiting consumer
+            counters.set (WRITE_COUNTER, write + count);
+            wake (waiting_consumer);
+        }
+        return (count);
+    }
+
+    // Copies all the data, waiting for room when the ring is full
+    public void put (byte[] data, int offset, int length)
+        throws InterruptedException
+    {
+        while (length > 0)
+        {
+            int count = offer (data, offset, length);
+
+            if (count == 0)
+            {
+                await (true, -1);
+            }
+            offset += count;
+            length -= count;
+        }
+    }
+
+    public void put (byte[] data)
+        throws InterruptedException
+    {
+        put (data, 0, data.length);
+    }
+
+    //-------------------
+    // Consumer methods
+    //-------------------
+
+    // Takes whatever is available up to length without waiting, returns the byte count
+    public int poll (byte[] data, int offset, int length)
+    {
+        long read = counters.get (READ_COUNTER);
+        int count = Math.min ((int)(counters.get (WRITE_COUNTER) - read), length);
+
+        if (count > 0)
+        {
+            int start = (int)read & mask;
+            int first = Math.min (count, ring.length - start);
+            System.arraycopy (ring, start, data, offset, first);
+            System.arraycopy (ring, 0, data, offset + first, count - first);
+
+            // Volatile store, ordered before reading the waiting producer
+            counters.set (READ_COUNTER, read + count);
+            wake (waiting_producer);
+        }
+        return (count);
+    }
+
+    // Like poll(), but waits up to timeout_ms (forever if negative) for some data
+    public int take (byte[] data, int offset, int length, long timeout_ms)
+        throws InterruptedException
+    {
+        int count = poll (data, offset, length);
+
+        if (count == 0 && await (false, timeout_ms))
+        {
+            count = poll (data, offset, length);
+        }
+        return (count);
+    }
+
+    //---------
+    // Waiting
+    //---------
+
+    private boolean is_ready (boolean for_space)
+    {
+        return (for_space? available () < ring.length: available () > 0);
+    }
+
+    // Waits for room (producer) or data (consumer), returns false on timeout
+    private boolean await (boolean for_space, long timeout_ms)
+        throws InterruptedException
+    {
+        for (int i = 0; i < SPIN_TRIES; i++)
+        {
+            if (is_ready (for_space))
+            {
+                return (true);
+            }
+            Thread.yield ();
+        }
+
+        long deadline = System.nanoTime () + TimeUnit.MILLISECONDS.toNanos (timeout_ms);
+        Thread self = Thread.currentThread ();
+
+        // Announce first and check again, so a wake() in between isn't lost
+        if (for_space)
+        {
+            waiting_producer = self;
+        }
+        else
+        {
+            waiting_consumer = self;
+        }
+
+        try
+        {
+            while (!is_ready (for_space))
+            {
+                if (Thread.interrupted ())
+                {
+                    throw new InterruptedException ();
+                }
+
+                if (timeout_ms < 0)
+                {
+                    LockSupport.park (this);
+                }
+                else
+                {
+                    long remaining = deadline - System.nanoTime ();
+
+                    if (remaining <= 0)
+                    {
+                        return (false);
+                    }
+                    LockSupport.parkNanos (this, remaining);
+                }
+            }
+            return (true);
+        }
+        finally
+        {
+            if (for_space)
+            {
+                waiting_producer = null;
+            }
+            else
+            {
+                waiting_consumer = null;
+            }
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.shared;
+
+//--------------------------------------------------------------------------------
+// How a command ends with an exit status. On a JVM of its own this is just
+// System.exit(), but ladmin batch and the ladmin daemon run many commands on
+// one JVM, and install a handler that ends only the calling command. Commands
+// should use CommandExit.exit() instead of System.exit(): a command jar
+// calling System.exit() directly gets a JVM of its own on those modes.
+//--------------------------------------------------------------------------------
+public class CommandExit
+{
+    public interface Handler
+    {
+        // Doesn't return when the exit was handled
+        void exit (int status);
+    }
+
+    private static volatile Handler handler;
+
+    public static void setHandler (Handler new_handler)
+    {
+        handler = new_handler;
+    }
+
+    public static void exit (int status)
+    {
+        Handler current_handler = handler;
+
+        if (current_handler != null)
+        {
+            current_handler.exit (status);
+        }
+        System.exit (status);
+    }
+}
+
+// EOF
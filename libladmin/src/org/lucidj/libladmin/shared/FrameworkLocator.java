@@ -19,47 +19,274 @@ package org.lucidj.libladmin.shared;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
 import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
+//--------------------------------------------------------------------------------
+// Framework jars are recognized by the OSGi FrameworkFactory service entry.
+// The probe results are kept on <config>/ladmin-frameworks.properties keyed by
+// jar path and validated by size and mtime, so only new or changed jars are
+// opened again (in parallel, and always closed).
+//--------------------------------------------------------------------------------
 public class FrameworkLocator
 {
-    public static File[] locateFrameworks (File jar_dir)
+    private final static TinyLog log = new TinyLog (FrameworkLocator.class);
+
+    private final static String REGISTRY_FILENAME = "ladmin-frameworks.properties";
+    private final static String FRAMEWORK_FACTORY = "META-INF/services/org.osgi.framework.launch.FrameworkFactory";
+
+    private static Properties registry;
+    private static boolean registry_dirty;
+
+    private static class Probe
+    {
+        File file;
+        String key;
+        String stamp;
+        boolean is_framework;
+        String version = "";
+    }
+
+    private static Path get_registry_path ()
+    {
+        Path config_path = ConfigLocator.getConfigPath ();
+        return (config_path == null? null: config_path.resolve (REGISTRY_FILENAME));
+    }
+
+    private static void load_registry ()
     {
-        File[] file_array = jar_dir.listFiles (new FileFilter()
+        if (registry != null)
         {
-            @Override
-            public boolean accept (File file)
+            return;
+        }
+
+        registry = new Properties ();
+        Path registry_path = get_registry_path ();
+
+        if (registry_path != null && Files.exists (registry_path))
+        {
+            try (InputStream is = Files.newInputStream (registry_path))
+            {
+                registry.load (is);
+            }
+            catch (IOException e)
             {
-                if (!file.getName().toLowerCase ().endsWith (".jar"))
+                log.debug ("Exception loading {}: {}", registry_path, e.toString ());
+            }
+        }
+    }
+
+    private static void save_registry ()
+    {
+        Path registry_path = get_registry_path ();
+
+        if (!registry_dirty || registry_path == null)
+        {
+            return;
+        }
+
+        try
+        {
+            Path temp_path = Files.createTempFile (registry_path.getParent (), REGISTRY_FILENAME, ".tmp");
+
+            try
+            {
+                try (OutputStream os = Files.newOutputStream (temp_path))
+                {
+                    registry.store (os, "ladmin framework registry -- automatically generated");
+                }
+                Files.move (temp_path, registry_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                registry_dirty = false;
+            }
+            finally
+            {
+                Files.deleteIfExists (temp_path);
+            }
+        }
+        catch (IOException e)
+        {
+            log.debug ("Exception saving {}: {}", registry_path, e.toString ());
+        }
+    }
+
+    private static void probe (Probe probe)
+    {
+        // We want only jars with OSGi framework available
+        try (JarFile jar = new JarFile (probe.file))
+        {
+            probe.is_framework = (jar.getJarEntry (FRAMEWORK_FACTORY) != null);
+
+            if (probe.is_framework)
+            {
+                Manifest manifest = jar.getManifest ();
+
+                if (manifest != null)
                 {
-                    return (false);
+                    Attributes attrs = manifest.getMainAttributes ();
+                    String version = attrs.getValue ("Bundle-Version");
+
+                    if (version == null)
+                    {
+                        version = attrs.getValue (Attributes.Name.IMPLEMENTATION_VERSION);
+                    }
+                    probe.version = (version == null)? "": version.trim ();
                 }
+            }
+        }
+        catch (IOException e)
+        {
+            log.debug ("Exception reading {}: {}", probe.file, e.toString());
+        }
+    }
+
+    private static void probe_all (List<Probe> probes)
+    {
+        if (probes.size () <= 1)
+        {
+            for (Probe probe: probes)
+            {
+                probe (probe);
+            }
+            return;
+        }
+
+        int threads = Math.min (probes.size (), Runtime.getRuntime ().availableProcessors ());
+        ExecutorService executor = Executors.newFixedThreadPool (threads);
+        List<Future<?>> results = new ArrayList<> ();
+
+        try
+        {
+            for (final Probe probe: probes)
+            {
+                results.add (executor.submit (new Runnable ()
+                {
+                    @Override
+                    public void run ()
+                    {
+                        probe (probe);
+                    }
+                }));
+            }
 
+            for (Future<?> result: results)
+            {
                 try
                 {
-                    // We want only jars with OSGi framework available
-                    JarFile jar = new JarFile (file);
-                    return (jar.getJarEntry ("META-INF/services/org.osgi.framework.launch.FrameworkFactory") != null);
+                    result.get ();
                 }
-                catch (IOException e)
+                catch (Exception e)
                 {
-                    //log.debug ("Exception reading {}: {}", file, e.toString());
-                };
-                return (false);
+                    log.debug ("Exception probing framework: {}", e.toString ());
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown ();
+        }
+    }
+
+    public static synchronized File[] locateFrameworks (File jar_dir)
+    {
+        File[] jar_array = jar_dir.listFiles (new FileFilter()
+        {
+            @Override
+            public boolean accept (File file)
+            {
+                return (file.getName().toLowerCase ().endsWith (".jar") && file.isFile ());
             }
         });
 
-        if (file_array == null || file_array.length == 0)
+        if (jar_array == null || jar_array.length == 0)
+        {
+            return (null);
+        }
+
+        load_registry ();
+
+        List<File> frameworks = new ArrayList<> ();
+        List<Probe> pending = new ArrayList<> ();
+
+        for (File file: jar_array)
+        {
+            Probe probe = new Probe ();
+            probe.file = file;
+            probe.key = file.getAbsolutePath ();
+            probe.stamp = file.length () + "," + file.lastModified ();
+
+            // Record: <size>,<mtime>,<is framework>,<version>
+            String[] record = registry.getProperty (probe.key, "").split (",", 4);
+
+            if (record.length == 4 && probe.stamp.equals (record [0] + "," + record [1]))
+            {
+                if (Boolean.parseBoolean (record [2]))
+                {
+                    frameworks.add (file);
+                }
+                continue;
+            }
+            pending.add (probe);
+        }
+
+        probe_all (pending);
+
+        for (Probe probe: pending)
+        {
+            registry.setProperty (probe.key, probe.stamp + "," + probe.is_framework + "," + probe.version);
+            registry_dirty = true;
+
+            if (probe.is_framework)
+            {
+                frameworks.add (probe.file);
+            }
+        }
+
+        // Forget the jars removed from this directory
+        String dir_prefix = jar_dir.getAbsolutePath () + File.separator;
+
+        for (String key: registry.stringPropertyNames ())
+        {
+            if (key.startsWith (dir_prefix) && key.indexOf (File.separatorChar, dir_prefix.length ()) == -1
+                && !new File (key).isFile ())
+            {
+                registry.remove (key);
+                registry_dirty = true;
+            }
+        }
+        save_registry ();
+
+        if (frameworks.isEmpty ())
         {
             return (null);
         }
 
         // Order latest version first
+        File[] file_array = frameworks.toArray (new File [frameworks.size ()]);
         Arrays.sort (file_array, Collections.reverseOrder (new AlphanumComparator ()));
         return (file_array);
     }
+
+    // Framework version from the jar manifest, as recorded by locateFrameworks()
+    public static synchronized String getFrameworkVersion (File framework_jar)
+    {
+        load_registry ();
+        String[] record = registry.getProperty (framework_jar.getAbsolutePath (), "").split (",", 4);
+        return (record.length == 4 && !record [3].isEmpty ()? record [3]: null);
+    }
 }
 
 // EOF
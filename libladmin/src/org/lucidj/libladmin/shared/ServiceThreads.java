@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.libladmin.shared;
+
+//--------------------------------------------------------------------------------
+// Threads for services shared by every command on the JVM, like the directory
+// watchers. A thread belongs to the thread group of whoever creates it, and
+// on ladmin batch and the daemon that's the command invocation group, which is
+// interrupted and waited for when its command ends. Service threads live on a
+// group of their own instead, right below the system group, so they outlive
+// the command that happened to start them.
+//--------------------------------------------------------------------------------
+public class ServiceThreads
+{
+    private final static ThreadGroup service_group = new ThreadGroup (get_system_group (), "ladmin services");
+
+    private static ThreadGroup get_system_group ()
+    {
+        ThreadGroup group = Thread.currentThread ().getThreadGroup ();
+
+        while (group.getParent () != null)
+        {
+            group = group.getParent ();
+        }
+        return (group);
+    }
+
+    // A daemon thread, not started yet
+    public static Thread newThread (Runnable task, String name)
+    {
+        Thread service_thread = new Thread (service_group, task, name);
+        service_thread.setDaemon (true);
+        return (service_thread);
+    }
+}
+
+// EOF
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.main;
+
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+//--------------------------------------------------------------------------------
+// ladmin batch [--parallel[=<threads>]] [--stop-on-error] <file|->
+//
+// Runs one command per line on this same JVM, so the JVM startup and the
+// command discovery are paid once. Blank lines and lines starting with '#'
+// are skipped, and arguments may be quoted like on the shell. Every command
+// runs as a CommandInvocation, so CommandExit.exit() ends only that command
+// (commands calling System.exit() get a JVM of their own). The exit status
+// of each command is reported on stderr, and the batch exits with the first
+// non-zero status in script order.
+//
+// With --parallel the commands must be independent: they run concurrently,
+// without stdin, and their output is printed in script order as they finish.
+//--------------------------------------------------------------------------------
+class Batch
+{
+    private final static TinyLog log = new TinyLog (Batch.class);
+
+    final static String BATCH_COMMAND = "batch";
+
+    private static class BatchLine
+    {
+        int line_number;
+        String text;
+        String[] args;
+        int status;
+        ByteArrayOutputStream stdout;
+        ByteArrayOutputStream stderr;
+    }
+
+    // Splits a line like a (very) simple shell: whitespace, quotes and backslashes
+    static String[] tokenize (String line)
+    {
+        List<String> tokens = new ArrayList<> ();
+        StringBuilder token = null;
+        char quote = 0;
+
+        for (int i = 0; i < line.length (); i++)
+        {
+            char ch = line.charAt (i);
+
+            if (quote != 0)
+            {
+                if (ch == quote)
+                {
+                    quote = 0;
+                }
+                else if (ch == '\\' && quote == '"' && i + 1 < line.length ())
+                {
+                    token.append (line.charAt (++i));
+                }
+                else
+                {
+                    token.append (ch);
+                }
+            }
+            else if (Character.isWhitespace (ch))
+            {
+                if (token != null)
+                {
+                    tokens.add (token.toString ());
+                    token = null;
+                }
+            }
+            else
+            {
+                if (token == null)
+                {
+                    token = new StringBuilder ();
+                }
+
+                if (ch == '"' || ch == '\'')
+                {
+                    quote = ch;
+                }
+                else if (ch == '\\' && i + 1 < line.length ())
+                {
+                    token.append (line.charAt (++i));
+                }
+                else
+                {
+                    token.append (ch);
+                }
+            }
+        }
+
+        if (token != null)
+        {
+            tokens.add (token.toString ());
+        }
+        return (tokens.toArray (new String [tokens.size ()]));
+    }
+
+    private static List<BatchLine> read_script (InputStream is)
+        throws IOException
+    {
+        BufferedReader reader = new BufferedReader (new InputStreamReader (is, StandardCharsets.UTF_8));
+        List<BatchLine> script = new ArrayList<> ();
+        String text;
+        int line_number = 0;
+
+        while ((text = reader.readLine ()) != null)
+        {
+            line_number++;
+            text = text.trim ();
+
+            if (text.isEmpty () || text.startsWith ("#"))
+            {
+                continue;
+            }
+
+            BatchLine line = new BatchLine ();
+            line.line_number = line_number;
+            line.text = text;
+            line.args = tokenize (text);
+
+            if (line.args.length > 0)
+            {
+                script.add (line);
+            }
+        }
+        return (script);
+    }
+
+    private static void report (PrintStream err, BatchLine line)
+    {
+        err.println ("[exit " + line.status + "] line " + line.line_number + ": " + line.text);
+    }
+
+    private static int run_sequential (List<BatchLine> script, InputStream stdin, PrintStream out, PrintStream err,
+                                       boolean stop_on_error)
+        throws InterruptedException
+    {
+        int batch_status = 0;
+
+        for (BatchLine line: script)
+        {
+            line.status = new CommandInvocation (stdin, out, err).run (line.args);
+            report (err, line);
+
+            if (line.status != 0)
+            {
+                if (batch_status == 0)
+                {
+                    batch_status = line.status;
+                }
+
+                if (stop_on_error)
+                {
+                    break;
+                }
+            }
+        }
+        return (batch_status);
+    }
+
+    private static int run_parallel (List<BatchLine> script, PrintStream out, PrintStream err, int threads)
+        throws InterruptedException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool (threads);
+        List<Future<BatchLine>> results = new ArrayList<> ();
+        int batch_status = 0;
+
+        try
+        {
+            for (final BatchLine line: script)
+            {
+                results.add (executor.submit (new Callable<BatchLine> ()
+                {
+                    @Override
+                    public BatchLine call ()
+                        throws Exception
+                    {
+                        line.stdout = new ByteArrayOutputStream ();
+                        line.stderr = new ByteArrayOutputStream ();
+                        InputStream no_stdin = new ByteArrayInputStream (new byte [0]);
+                        line.status = new CommandInvocation (no_stdin, line.stdout, line.stderr).run (line.args);
+                        return (line);
+                    }
+                }));
+            }
+
+            for (Future<BatchLine> result: results)
+            {
+                BatchLine line;
+
+                try
+                {
+                    line = result.get ();
+                }
+                catch (ExecutionException e)
+                {
+                    // Invocations report their own failures, this is unexpected
+                    log.error ("Exception running batch: {}", e.getCause ().toString ());
+                    return (1);
+                }
+
+                line.stdout.writeTo (out);
+                line.stderr.writeTo (err);
+                out.flush ();
+                report (err, line);
+
+                if (line.status != 0 && batch_status == 0)
+                {
+                    batch_status = line.status;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            err.println ("Error: Unable to write batch output: " + e.toString ());
+            return (1);
+        }
+        finally
+        {
+            executor.shutdownNow ();
+        }
+        return (batch_status);
+    }
+
+    private static void usage ()
+    {
+        System.err.println ("Usage: ladmin batch [--parallel[=<threads>]] [--stop-on-error] <file|->");
+    }
+
+    static int run (String[] args)
+    {
+        int threads = 0;
+        boolean stop_on_error = false;
+        String script_name = null;
+
+        for (String arg: args)
+        {
+            if (arg.equals ("--parallel"))
+            {
+                threads = Runtime.getRuntime ().availableProcessors ();
+            }
+            else if (arg.startsWith ("--parallel="))
+            {
+                try
+                {
+                    threads = Integer.parseInt (arg.substring ("--parallel=".length ()));
+                }
+                catch (NumberFormatException e)
+                {
+                    threads = -1;
+                }
+
+                if (threads <= 0)
+                {
+                    usage ();
+                    return (1);
+                }
+            }
+            else if (arg.equals ("--stop-on-error"))
+            {
+                stop_on_error = true;
+            }
+            else if (script_name == null)
+            {
+                script_name = arg;
+            }
+            else
+            {
+                usage ();
+                return (1);
+            }
+        }
+
+        if (script_name == null)
+        {
+            usage ();
+            return (1);
+        }
+
+        // The real streams, before every command gets its own
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        InputStream in = System.in;
+        boolean script_on_stdin = script_name.equals ("-");
+        List<BatchLine> script;
+
+        try (InputStream is = script_on_stdin? in: new FileInputStream (script_name))
+        {
+            script = read_script (is);
+        }
+        catch (IOException e)
+        {
+            err.println ("Error: Unable to read batch '" + script_name + "': " + e.toString ());
+            return (1);
+        }
+
+        CommandInvocation.install ();
+
+        try
+        {
+            if (threads > 0)
+            {
+                return (run_parallel (script, out, err, threads));
+            }
+
+            // Commands get our stdin, unless the script itself came from it
+            InputStream stdin = script_on_stdin? new ByteArrayInputStream (new byte [0]): in;
+            return (run_sequential (script, stdin, out, err, stop_on_error));
+        }
+        catch (InterruptedException e)
+        {
+            err.println ("Error: Batch interrupted");
+            return (1);
+        }
+    }
+}
+
+// EOF
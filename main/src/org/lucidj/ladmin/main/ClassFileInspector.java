@@ -0,0 +1,409 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+//--------------------------------------------------------------------------------
+// Minimal class file reader: walks the constant pool and the method table
+// looking for 'public static void main(String[])', so we can find command
+// entry points without loading (and initializing) any class. Like
+// Class.getMethod(), an inherited main() counts: the superclasses are followed
+// as long as the given ClassSource (the command jar) has them. The constant
+// pool also tells whether a class may call System.exit(), Runtime.exit() or
+// Runtime.halt(), see CommandInvocation.
+//--------------------------------------------------------------------------------
+class ClassFileInspector
+{
+    private final static int CLASS_MAGIC = 0xcafebabe;
+
+    private final static int ACC_PUBLIC = 0x0001;
+    private final static int ACC_STATIC = 0x0008;
+
+    // No class from these packages declares a main() worth inheriting
+    private final static String JDK_PACKAGE = "java/";
+    private final static int MAX_SUPERCLASSES = 16;
+
+    private final static String MAIN_NAME = "main";
+    private final static String MAIN_DESCRIPTOR = "([Ljava/lang/String;)V";
+
+    private final static String SYSTEM_CLASS = "java/lang/System";
+    private final static String RUNTIME_CLASS = "java/lang/Runtime";
+
+    private final static int CONSTANT_Utf8 = 1;
+    private final static int CONSTANT_Integer = 3;
+    private final static int CONSTANT_Float = 4;
+    private final static int CONSTANT_Long = 5;
+    private final static int CONSTANT_Double = 6;
+    private final static int CONSTANT_Class = 7;
+    private final static int CONSTANT_String = 8;
+    private final static int CONSTANT_Fieldref = 9;
+    private final static int CONSTANT_Methodref = 10;
+    private final static int CONSTANT_InterfaceMethodref = 11;
+    private final static int CONSTANT_NameAndType = 12;
+    private final static int CONSTANT_MethodHandle = 15;
+    private final static int CONSTANT_MethodType = 16;
+    private final static int CONSTANT_Dynamic = 17;
+    private final static int CONSTANT_InvokeDynamic = 18;
+    private final static int CONSTANT_Module = 19;
+    private final static int CONSTANT_Package = 20;
+
+    private static void skip_members (DataInputStream in)
+        throws IOException
+    {
+        int count = in.readUnsignedShort ();
+
+        for (int i = 0; i < count; i++)
+        {
+            in.readUnsignedShort ();        // access_flags
+            in.readUnsignedShort ();        // name_index
+            in.readUnsignedShort ();        // descriptor_index
+            skip_attributes (in);
+        }
+    }
+
+    private static void skip_attributes (DataInputStream in)
+        throws IOException
+    {
+        int count = in.readUnsignedShort ();
+
+        for (int i = 0; i < count; i++)
+        {
+            in.readUnsignedShort ();        // attribute_name_index
+            int length = in.readInt ();
+
+            if (in.skipBytes (length) != length)
+            {
+                throw new IOException ("Truncated class file");
+            }
+        }
+    }
+
+    // Where the superclasses are read from, given their internal names
+    interface ClassSource
+    {
+        // null when the class isn't there
+        byte[] read (String internal_name)
+            throws IOException;
+    }
+
+    static ClassSource sourceOf (final NestedJar jar)
+    {
+        return (new ClassSource ()
+        {
+            @Override
+            public byte[] read (String internal_name)
+                throws IOException
+            {
+                NestedJar.Entry entry = jar.getEntry (internal_name + ".class");
+                return (entry == null? null: jar.read (entry));
+            }
+        });
+    }
+
+    static ClassSource sourceOf (final JarFile jar)
+    {
+        return (new ClassSource ()
+        {
+            @Override
+            public byte[] read (String internal_name)
+                throws IOException
+            {
+                JarEntry entry = jar.getJarEntry (internal_name + ".class");
+
+                if (entry == null)
+                {
+                    return (null);
+                }
+
+                try (InputStream is = jar.getInputStream (entry))
+                {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+                    byte[] buffer = new byte [8192];
+                    int count;
+
+                    while ((count = is.read (buffer)) != -1)
+                    {
+                        bytes.write (buffer, 0, count);
+                    }
+                    return (bytes.toByteArray ());
+                }
+            }
+        });
+    }
+
+    static boolean hasMainMethod (byte[] class_bytes, ClassSource source)
+    {
+        return (hasMainMethod (new ByteArrayInputStream (class_bytes), source));
+    }
+
+    // The stream is read up to the method table and left open
+    static boolean hasMainMethod (InputStream is, ClassSource source)
+    {
+        Inspection inspection = inspect (is);
+
+        for (int depth = 0; !inspection.has_main && inspection.super_class != null; depth++)
+        {
+            if (depth == MAX_SUPERCLASSES || inspection.super_class.startsWith (JDK_PACKAGE))
+            {
+                return (false);
+            }
+
+            try
+            {
+                byte[] super_bytes = source.read (inspection.super_class);
+
+                if (super_bytes == null)
+                {
+                    // Outside the command jar, nothing to inspect
+                    return (false);
+                }
+                inspection = inspect (new ByteArrayInputStream (super_bytes));
+            }
+            catch (IOException e)
+            {
+                return (false);
+            }
+        }
+        return (inspection.has_main);
+    }
+
+    private static class Inspection
+    {
+        boolean has_main;
+        String super_class;             // Internal name, null for java/lang/Object or invalid classes
+    }
+
+    private static class ConstantPool
+    {
+        String[] utf8;
+        int[] class_name;               // CONSTANT_Class -> name
+        int[] ref_class;                // CONSTANT_Methodref -> class
+        int[] ref_name_and_type;        // CONSTANT_Methodref -> name and type
+        int[] name;                     // CONSTANT_NameAndType -> name
+
+        String className (int index)
+        {
+            return (utf8 [class_name [index]]);
+        }
+    }
+
+    // null when the pool has something we don't know how to skip
+    private static ConstantPool read_pool (DataInputStream in)
+        throws IOException
+    {
+        int pool_count = in.readUnsignedShort ();
+        ConstantPool pool = new ConstantPool ();
+        pool.utf8 = new String [pool_count];
+        pool.class_name = new int [pool_count];
+        pool.ref_class = new int [pool_count];
+        pool.ref_name_and_type = new int [pool_count];
+        pool.name = new int [pool_count];
+
+        for (int i = 1; i < pool_count; i++)
+        {
+            int tag = in.readUnsignedByte ();
+
+            switch (tag)
+            {
+                case CONSTANT_Utf8:
+                {
+                    pool.utf8 [i] = in.readUTF ();
+                    break;
+                }
+                case CONSTANT_Long:
+                case CONSTANT_Double:
+                {
+                    // Takes two slots
+                    in.readLong ();
+                    i++;
+                    break;
+                }
+                case CONSTANT_Methodref:
+                {
+                    pool.ref_class [i] = in.readUnsignedShort ();
+                    pool.ref_name_and_type [i] = in.readUnsignedShort ();
+                    break;
+                }
+                case CONSTANT_NameAndType:
+                {
+                    pool.name [i] = in.readUnsignedShort ();
+                    in.readUnsignedShort ();        // descriptor_index
+                    break;
+                }
+                case CONSTANT_Integer:
+                case CONSTANT_Float:
+                case CONSTANT_Fieldref:
+                case CONSTANT_InterfaceMethodref:
+                case CONSTANT_Dynamic:
+                case CONSTANT_InvokeDynamic:
+                {
+                    in.readInt ();
+                    break;
+                }
+                case CONSTANT_Class:
+                {
+                    pool.class_name [i] = in.readUnsignedShort ();
+                    break;
+                }
+                case CONSTANT_String:
+                case CONSTANT_MethodType:
+                case CONSTANT_Module:
+                case CONSTANT_Package:
+                {
+                    in.readUnsignedShort ();
+                    break;
+                }
+                case CONSTANT_MethodHandle:
+                {
+                    in.readUnsignedByte ();
+                    in.readUnsignedShort ();
+                    break;
+                }
+                default:
+                {
+                    // Unknown constant, we can't go any further
+                    return (null);
+                }
+            }
+        }
+        return (pool);
+    }
+
+    // Whether the class refers to a method that ends the whole JVM. Unreadable
+    // classes are taken as calling it, just in case.
+    static boolean callsExit (byte[] class_bytes)
+    {
+        DataInputStream in = new DataInputStream (new ByteArrayInputStream (class_bytes));
+
+        try
+        {
+            if (in.readInt () != CLASS_MAGIC)
+            {
+                return (true);
+            }
+            in.readUnsignedShort ();        // minor_version
+            in.readUnsignedShort ();        // major_version
+
+            ConstantPool pool = read_pool (in);
+
+            if (pool == null)
+            {
+                return (true);
+            }
+
+            for (int i = 1; i < pool.ref_class.length; i++)
+            {
+                if (pool.ref_class [i] == 0)
+                {
+                    continue;
+                }
+
+                String class_name = pool.className (pool.ref_class [i]);
+                String method_name = pool.utf8 [pool.name [pool.ref_name_and_type [i]]];
+
+                if ((SYSTEM_CLASS.equals (class_name) && method_name.equals ("exit"))
+                    || (RUNTIME_CLASS.equals (class_name) && (method_name.equals ("exit") || method_name.equals ("halt"))))
+                {
+                    return (true);
+                }
+            }
+            return (false);
+        }
+        catch (IOException | ArrayIndexOutOfBoundsException e)
+        {
+            return (true);
+        }
+    }
+
+    private static Inspection inspect (InputStream is)
+    {
+        DataInputStream in = new DataInputStream (is);
+        Inspection inspection = new Inspection ();
+
+        try
+        {
+            if (in.readInt () != CLASS_MAGIC)
+            {
+                return (inspection);
+            }
+            in.readUnsignedShort ();        // minor_version
+            in.readUnsignedShort ();        // major_version
+
+            ConstantPool pool = read_pool (in);
+
+            if (pool == null)
+            {
+                return (inspection);
+            }
+
+            in.readUnsignedShort ();        // access_flags
+            in.readUnsignedShort ();        // this_class
+            int super_class = in.readUnsignedShort ();
+
+            if (super_class != 0)
+            {
+                inspection.super_class = pool.className (super_class);
+            }
+
+            int interfaces_count = in.readUnsignedShort ();
+
+            for (int i = 0; i < interfaces_count; i++)
+            {
+                in.readUnsignedShort ();
+            }
+
+            skip_members (in);              // fields
+
+            //---------
+            // Methods
+            //---------
+
+            int methods_count = in.readUnsignedShort ();
+
+            for (int i = 0; i < methods_count; i++)
+            {
+                int access_flags = in.readUnsignedShort ();
+                String name = pool.utf8 [in.readUnsignedShort ()];
+                String descriptor = pool.utf8 [in.readUnsignedShort ()];
+                skip_attributes (in);
+
+                if (MAIN_NAME.equals (name)
+                    && MAIN_DESCRIPTOR.equals (descriptor)
+                    && (access_flags & (ACC_PUBLIC | ACC_STATIC)) == (ACC_PUBLIC | ACC_STATIC))
+                {
+                    inspection.has_main = true;
+                    break;
+                }
+            }
+        }
+        catch (IOException | ArrayIndexOutOfBoundsException e)
+        {
+            // Not a valid class file
+            inspection.super_class = null;
+        }
+        return (inspection);
+    }
+}
+
+// EOF
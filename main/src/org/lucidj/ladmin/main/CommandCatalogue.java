@@ -0,0 +1,555 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.main;
+
+import org.lucidj.libladmin.shared.ConfigLocator;
+import org.lucidj.libladmin.shared.FrameworkLocator;
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+//--------------------------------------------------------------------------------
+// Catalogue of every command available from the external plugins, the framework
+// jar and the root jar (/plugins and /commands), with its jar, main class and
+// description. The embedded commands come from the command manifests when
+// available, otherwise from reading the class files, and are kept on
+// <config>/ladmin-catalogue.idx keyed on the same jar fingerprints used by
+// CommandIndex; the external plugins come from PluginDirectory. Listing the
+// commands never loads a class.
+//
+// Cache format, one tab separated record per line:
+//
+//     key      <format>|<root fingerprint>|<framework fingerprint>
+//     command  <name>  <source>  <jar path>  <main class>  <description>  <profile>
+//
+// The commands declaring a JVM profile are also written on <config>/ladmin-profiles
+// as <command>=<profile> lines, read by the launcher script before java starts.
+// Its first line is "# key <catalogue key>|<plugins fingerprint>", so it gets
+// rebuilt when ladmin, the framework or the plugins change.
+//--------------------------------------------------------------------------------
+class CommandCatalogue
+{
+    private final static TinyLog log = new TinyLog (CommandCatalogue.class);
+
+    private final static String CATALOGUE_FILENAME = "ladmin-catalogue.idx";
+    private final static String CATALOGUE_FORMAT = "2";
+    private final static String PROFILES_FILENAME = "ladmin-profiles";
+    private final static String PROFILES_KEY_PREFIX = "# key ";
+    private final static int MAX_SUGGESTION_DISTANCE = 2;
+
+    final static String HELP_COMMAND = "help";
+    final static String COMMANDS_COMMAND = "commands";
+
+    private List<Entry> commands = new ArrayList<> ();
+    private Set<String> command_names = new HashSet<> ();
+
+    static class Entry
+    {
+        String name;
+        String source;
+        String jar_path;
+        String main_class;
+        String description;
+        String profile;
+    }
+
+    private CommandCatalogue ()
+    {
+        // Use open()
+    }
+
+    private void add (String name, String source, String jar_path, String main_class,
+                      String description, String profile)
+    {
+        name = name.toLowerCase ();
+
+        // The first occurrence has precedence, like on the command lookup
+        if (!command_names.add (name))
+        {
+            return;
+        }
+
+        Entry entry = new Entry ();
+        entry.name = name;
+        entry.source = source;
+        entry.jar_path = jar_path;
+        entry.main_class = main_class;
+        entry.description = (description == null)? "": description;
+        entry.profile = (profile == null)? "": profile;
+        commands.add (entry);
+    }
+
+    List<Entry> getCommands ()
+    {
+        return (commands);
+    }
+
+    //-------
+    // Build
+    //-------
+
+    private void scan_jar (URL jar_url, String source)
+        throws IOException
+    {
+        NestedJar jar = Main.get_embedded_jar (jar_url);
+        ClassFileInspector.ClassSource classes = ClassFileInspector.sourceOf (jar);
+        Manifest manifest = jar.getManifest ();
+        String jar_path = jar_url.getPath ();
+        String main_class = (manifest == null)? null: manifest.getMainAttributes ().getValue (Attributes.Name.MAIN_CLASS);
+
+        if (main_class != null)
+        {
+            String jar_name = jar_path.substring (jar_path.lastIndexOf ('/') + 1, jar_path.lastIndexOf ('.'));
+            String class_entry = main_class.replace ('.', '/') + ".class";
+            NestedJar.Entry entry = jar.getEntry (class_entry);
+
+            // Same rule used by Main: a Main-Class outside the jar is trusted
+            if (entry == null || ClassFileInspector.hasMainMethod (jar.read (entry), classes))
+            {
+                add (jar_name, source, jar_path, main_class, CommandManifest.getDescription (manifest, class_entry),
+                    CommandManifest.getProfile (manifest, class_entry));
+            }
+        }
+
+        List<NestedJar.Entry> entries = new ArrayList<> (jar.getEntries ());
+
+        // Keep the listing stable, the central directory comes unordered
+        Collections.sort (entries, new Comparator<NestedJar.Entry> ()
+        {
+            @Override
+            public int compare (NestedJar.Entry e1, NestedJar.Entry e2)
+            {
+                return (e1.name.compareTo (e2.name));
+            }
+        });
+
+        for (NestedJar.Entry entry: entries)
+        {
+            if (!entry.name.endsWith (".class") || entry.name.contains ("$")
+                || !ClassFileInspector.hasMainMethod (jar.read (entry), classes))
+            {
+                continue;
+            }
+
+            String full_class_name = entry.name.substring (0, entry.name.length () - 6).replace ('/', '.');
+            String short_class_name = full_class_name.substring (full_class_name.lastIndexOf ('.') + 1);
+            add (short_class_name, source, jar_path, full_class_name, CommandManifest.getDescription (manifest, entry.name),
+                CommandManifest.getProfile (manifest, entry.name));
+        }
+    }
+
+    private void add_source (URI source_jar, String source)
+    {
+        CommandManifest manifest = CommandManifest.load (source_jar);
+
+        if (manifest != null)
+        {
+            // Jar records come before class records, so they win the same way as on lookup
+            for (String[] record: manifest.getCommands ())
+            {
+                add (record [1], source, record [2], record [3], field (record, 4), field (record, 5));
+            }
+            return;
+        }
+
+        // Command plugins have search order precedence over the internal commands
+        List<URL> command_jars = new ArrayList<> (Main.locate_jars (source_jar, "/plugins", true));
+        command_jars.addAll (Main.locate_jars (source_jar, "/commands", true));
+
+        for (URL jar_url: command_jars)
+        {
+            try
+            {
+                scan_jar (jar_url, source);
+            }
+            catch (IOException e)
+            {
+                log.warn ("Exception scanning {}: {}", jar_url, e.toString ());
+            }
+        }
+    }
+
+    // Optional record fields may be missing altogether
+    private static String field (String[] record, int index)
+    {
+        return (index < record.length? record [index]: "");
+    }
+
+    //-------
+    // Cache
+    //-------
+
+    private static Path get_catalogue_path ()
+    {
+        Path config_path = ConfigLocator.getConfigPath ();
+        return (config_path == null? null: config_path.resolve (CATALOGUE_FILENAME));
+    }
+
+    private boolean load (Path catalogue_path, String key)
+    {
+        if (catalogue_path == null || !Files.exists (catalogue_path))
+        {
+            return (false);
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader (catalogue_path, StandardCharsets.UTF_8))
+        {
+            String line = reader.readLine ();
+
+            if (line == null || !line.equals ("key\t" + key))
+            {
+                log.debug ("Command catalogue is stale: {}", catalogue_path);
+                return (false);
+            }
+
+            while ((line = reader.readLine ()) != null)
+            {
+                String[] record = line.split ("\t", -1);
+
+                if (record [0].equals ("command") && record.length >= 7)
+                {
+                    add (record [1], record [2], record [3], record [4], record [5], record [6]);
+                }
+            }
+            return (true);
+        }
+        catch (IOException e)
+        {
+            log.debug ("Exception loading {}: {}", catalogue_path, e.toString ());
+            commands.clear ();
+            command_names.clear ();
+            return (false);
+        }
+    }
+
+    private void save (Path catalogue_path, String key)
+    {
+        if (catalogue_path == null)
+        {
+            return;
+        }
+
+        try
+        {
+            // Write and rename, so concurrent invocations never see a partial catalogue
+            Path temp_path = Files.createTempFile (catalogue_path.getParent (), CATALOGUE_FILENAME, ".tmp");
+
+            try (Writer writer = Files.newBufferedWriter (temp_path, StandardCharsets.UTF_8);
+                 PrintWriter out = new PrintWriter (writer))
+            {
+                out.print ("key\t" + key + "\n");
+
+                for (Entry entry: commands)
+                {
+                    out.print ("command\t" + entry.name + "\t" + entry.source + "\t" + entry.jar_path
+                        + "\t" + entry.main_class + "\t" + entry.description + "\t" + entry.profile + "\n");
+                }
+            }
+            Files.move (temp_path, catalogue_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            log.debug ("Exception saving {}: {}", catalogue_path, e.toString ());
+        }
+    }
+
+    // Rewritten only when some command profile or the key changes
+    private void save_profiles (String profiles_key)
+    {
+        Path config_path = ConfigLocator.getConfigPath ();
+
+        if (config_path == null)
+        {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder (PROFILES_KEY_PREFIX).append (profiles_key).append ('\n');
+
+        for (Entry entry: commands)
+        {
+            if (!entry.profile.isEmpty ())
+            {
+                sb.append (entry.name).append ('=').append (entry.profile).append ('\n');
+            }
+        }
+
+        Path profiles_path = config_path.resolve (PROFILES_FILENAME);
+        byte[] profiles = sb.toString ().getBytes (StandardCharsets.UTF_8);
+
+        try
+        {
+            if (Files.exists (profiles_path) && Arrays.equals (Files.readAllBytes (profiles_path), profiles))
+            {
+                return;
+            }
+
+            Path temp_path = Files.createTempFile (config_path, PROFILES_FILENAME, ".tmp");
+            Files.write (temp_path, profiles);
+            Files.move (temp_path, profiles_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            log.debug ("Exception saving {}: {}", profiles_path, e.toString ());
+        }
+    }
+
+    private static File get_framework_jar (File root_jar)
+    {
+        File[] available_framework_jars = FrameworkLocator.locateFrameworks (root_jar.getParentFile ());
+        return ((available_framework_jars != null)? available_framework_jars [0]: null);
+    }
+
+    private static String get_catalogue_key (File root_jar, File framework_jar)
+    {
+        return (CATALOGUE_FORMAT + "|" + CommandIndex.fingerprint (root_jar) + "|" + CommandIndex.fingerprint (framework_jar));
+    }
+
+    private static String get_profiles_key (String catalogue_key, File root_jar)
+    {
+        return (catalogue_key + "|" + PluginDirectory.fingerprint (root_jar.getParentFile ()));
+    }
+
+    private static String read_profiles_key (Path profiles_path)
+    {
+        try (BufferedReader reader = Files.newBufferedReader (profiles_path, StandardCharsets.UTF_8))
+        {
+            String line = reader.readLine ();
+
+            if (line != null && line.startsWith (PROFILES_KEY_PREFIX))
+            {
+                return (line.substring (PROFILES_KEY_PREFIX.length ()));
+            }
+        }
+        catch (IOException ignore) {};
+        return (null);
+    }
+
+    // Builds the catalogue if the launcher has no command profiles to read yet,
+    // or they were written for other jars
+    static void ensureProfiles ()
+    {
+        Path config_path = ConfigLocator.getConfigPath ();
+
+        if (config_path == null)
+        {
+            return;
+        }
+
+        File root_jar = new File (Main.get_root_jar_uri ());
+        String profiles_key = get_profiles_key (get_catalogue_key (root_jar, get_framework_jar (root_jar)), root_jar);
+
+        if (!profiles_key.equals (read_profiles_key (config_path.resolve (PROFILES_FILENAME))))
+        {
+            log.debug ("Command profiles outdated, rebuilding");
+            open ();
+        }
+    }
+
+    static CommandCatalogue open ()
+    {
+        URI root_jar_uri = Main.get_root_jar_uri ();
+        File root_jar = new File (root_jar_uri);
+        File framework_jar = get_framework_jar (root_jar);
+
+        CommandCatalogue embedded = new CommandCatalogue ();
+        Path catalogue_path = get_catalogue_path ();
+        String key = get_catalogue_key (root_jar, framework_jar);
+
+        if (!embedded.load (catalogue_path, key))
+        {
+            // The commands found inside the framework jar have precedence over the built-in commands
+            if (framework_jar != null)
+            {
+                embedded.add_source (framework_jar.toURI (), "framework");
+            }
+            embedded.add_source (root_jar_uri, "root");
+            embedded.save (catalogue_path, key);
+        }
+
+        // External plugins keep their own incremental index and come before everything else
+        CommandCatalogue catalogue = new CommandCatalogue ();
+
+        for (String[] record: PluginDirectory.open (root_jar.getParentFile ()).getCommands ())
+        {
+            catalogue.add (record [1], "plugin", record [2], record [3], field (record, 4), field (record, 5));
+        }
+
+        for (Entry entry: embedded.getCommands ())
+        {
+            catalogue.add (entry.name, entry.source, entry.jar_path, entry.main_class, entry.description, entry.profile);
+        }
+        catalogue.save_profiles (get_profiles_key (key, root_jar));
+        return (catalogue);
+    }
+
+    //-------------
+    // Suggestions
+    //-------------
+
+    static int levenshtein (String s1, String s2)
+    {
+        int[] previous = new int [s2.length () + 1];
+        int[] current = new int [s2.length () + 1];
+
+        for (int j = 0; j <= s2.length (); j++)
+        {
+            previous [j] = j;
+        }
+
+        for (int i = 1; i <= s1.length (); i++)
+        {
+            current [0] = i;
+
+            for (int j = 1; j <= s2.length (); j++)
+            {
+                int cost = (s1.charAt (i - 1) == s2.charAt (j - 1))? 0: 1;
+                current [j] = Math.min (Math.min (current [j - 1] + 1, previous [j] + 1), previous [j - 1] + cost);
+            }
+
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return (previous [s2.length ()]);
+    }
+
+    // Commands starting with the given text or, lacking those, the ones spelled alike
+    List<Entry> suggest (String text)
+    {
+        String prefix = text.toLowerCase ();
+        List<Entry> suggestions = new ArrayList<> ();
+
+        for (Entry entry: commands)
+        {
+            if (entry.name.startsWith (prefix))
+            {
+                suggestions.add (entry);
+            }
+        }
+
+        if (suggestions.isEmpty ())
+        {
+            for (Entry entry: commands)
+            {
+                int distance = levenshtein (prefix, entry.name);
+
+                if (distance <= MAX_SUGGESTION_DISTANCE && distance < entry.name.length ())
+                {
+                    suggestions.add (entry);
+                }
+            }
+        }
+        return (suggestions);
+    }
+
+    //--------
+    // Output
+    //--------
+
+    private static void print_commands (PrintStream out, List<Entry> commands)
+    {
+        int name_width = 0;
+        int description_width = 0;
+
+        for (Entry entry: commands)
+        {
+            name_width = Math.max (name_width, entry.name.length ());
+            description_width = Math.max (description_width, entry.description.length ());
+        }
+
+        String format = (description_width == 0)?
+            "  %-" + name_width + "s%s  %s%n": "  %-" + name_width + "s  %-" + description_width + "s  %s%n";
+
+        for (Entry entry: commands)
+        {
+            String origin = entry.jar_path + " " + entry.main_class;
+
+            if (entry.source.equals ("framework"))
+            {
+                origin = "[framework] " + origin;
+            }
+            out.printf (format, entry.name, entry.description, origin);
+        }
+    }
+
+    // ladmin help|commands [<prefix>]
+    static int printHelp (String prog_name, String[] args)
+    {
+        CommandCatalogue catalogue = open ();
+        List<Entry> commands = catalogue.getCommands ();
+
+        if (args.length > 0)
+        {
+            commands = catalogue.suggest (args [0]);
+
+            if (commands.isEmpty ())
+            {
+                System.err.println ("No commands matching '" + args [0] + "'");
+                return (1);
+            }
+        }
+        else
+        {
+            System.out.println ("Usage: " + prog_name + " <command> [args...]");
+            System.out.println ();
+            System.out.println ("Available commands:");
+        }
+        print_commands (System.out, commands);
+        return (0);
+    }
+
+    // Printed after 'command not found'
+    static void printSuggestions (String command)
+    {
+        List<Entry> suggestions = open ().suggest (command);
+
+        if (suggestions.isEmpty ())
+        {
+            System.err.println ("Try 'ladmin " + HELP_COMMAND + "' for the available commands");
+            return;
+        }
+
+        System.err.println ("Did you mean:");
+
+        for (Entry entry: suggestions)
+        {
+            System.err.println ("    " + entry.name + (entry.description.isEmpty ()? "": "  -  " + entry.description));
+        }
+    }
+}
+
+// EOF
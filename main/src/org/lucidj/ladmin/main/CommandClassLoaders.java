@@ -0,0 +1,165 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.main;
+
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//--------------------------------------------------------------------------------
+// Layered command classloaders. The libraries get one classloader, shared by
+// every command using the same library set, and each resolved command gets a
+// child classloader over its own jar (plus the framework jar, when the command
+// lives there). The child is created only when the command is about to run and
+// searches its jars before the libraries, keeping the old run classpath order:
+// framework, command jar, libraries. Libraries are never loaded twice, while
+// the command classes stay isolated from the other commands.
+//--------------------------------------------------------------------------------
+class CommandClassLoaders
+{
+    private final static TinyLog log = new TinyLog (CommandClassLoaders.class);
+
+    private final static Map<String, ClassLoader> libraries_loaders = new ConcurrentHashMap<> ();
+
+    // Classes the command jars must never override
+    static boolean isParentOnly (String name)
+    {
+        return (name.startsWith ("java.") || name.startsWith ("org.lucidj.ladmin.main."));
+    }
+
+    private static class ChildFirstURLClassLoader extends URLClassLoader
+    {
+        static
+        {
+            registerAsParallelCapable ();
+        }
+
+        ChildFirstURLClassLoader (URL[] urls, ClassLoader parent)
+        {
+            super (urls, parent);
+        }
+
+        @Override
+        protected Class<?> loadClass (String name, boolean resolve)
+            throws ClassNotFoundException
+        {
+            synchronized (getClassLoadingLock (name))
+            {
+                Class<?> cls = findLoadedClass (name);
+
+                if (cls == null && !isParentOnly (name))
+                {
+                    try
+                    {
+                        cls = findClass (name);
+                    }
+                    catch (ClassNotFoundException ignore) {};
+                }
+
+                if (cls == null)
+                {
+                    cls = super.loadClass (name, false);
+                }
+
+                if (resolve)
+                {
+                    resolveClass (cls);
+                }
+                return (cls);
+            }
+        }
+    }
+
+    private static URL[] to_loader_urls (URL[] urls, Map<String, URI> handler_to_uri)
+    {
+        if (JarCache.isEnabled ())
+        {
+            JarCache jar_cache = JarCache.open ();
+
+            if (jar_cache != null)
+            {
+                // Plain file: URLs instead of nested jar access
+                urls = jar_cache.getFileURLs (urls, handler_to_uri);
+                jar_cache.startCleanup ();
+            }
+        }
+        return (urls);
+    }
+
+    private static ClassLoader create_loader (URL[] urls, Map<String, URI> handler_to_uri,
+                                              ClassLoader parent, boolean child_first)
+    {
+        for (int i = 0; i < urls.length; i++)
+        {
+            log.debug ("Classpath URL[{}]: {}", i, urls [i]);
+        }
+
+        if (NestedJarClassLoader.isEnabled ())
+        {
+            try
+            {
+                return (new NestedJarClassLoader (urls, handler_to_uri, parent, child_first));
+            }
+            catch (IOException e)
+            {
+                log.warn ("Exception creating in-memory classloader: {}", e.toString ());
+            }
+        }
+        return (child_first? new ChildFirstURLClassLoader (urls, parent): new URLClassLoader (urls, parent));
+    }
+
+    // The shared classloader for a library set, created on first use
+    static ClassLoader getLibrariesLoader (URL[] libraries, Map<String, URI> handler_to_uri)
+    {
+        String key = Arrays.toString (libraries);
+        ClassLoader loader = libraries_loaders.get (key);
+
+        if (loader == null)
+        {
+            synchronized (libraries_loaders)
+            {
+                if ((loader = libraries_loaders.get (key)) == null)
+                {
+                    URL[] urls = to_loader_urls (libraries, handler_to_uri);
+                    loader = create_loader (urls, handler_to_uri, ClassLoader.getSystemClassLoader (), false);
+                    libraries_loaders.put (key, loader);
+                }
+            }
+        }
+        else
+        {
+            log.debug ("Reusing libraries classloader: {}", loader);
+        }
+        return (loader);
+    }
+
+    // A new classloader for the command jars, on top of the libraries classloader
+    static ClassLoader newCommandLoader (URL[] command_jars, URL[] libraries, Map<String, URI> handler_to_uri)
+    {
+        ClassLoader libraries_loader = getLibrariesLoader (libraries, handler_to_uri);
+        URL[] urls = to_loader_urls (command_jars, handler_to_uri);
+        return (create_loader (urls, handler_to_uri, libraries_loader, true));
+    }
+}
+
+// EOF
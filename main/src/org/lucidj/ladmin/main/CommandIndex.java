@@ -0,0 +1,256 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.main;
+
+import org.lucidj.libladmin.shared.ConfigLocator;
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+//--------------------------------------------------------------------------------
+// Persistent command index. Every command resolved through the full jar scan is
+// remembered on the user config dir, so the next invocation can go straight to
+// the command jar and main class without opening a single embedded jar. The
+// whole index is keyed on the root jar and framework jar fingerprints: if any
+// of them changes (size, mtime or content tail), the index is discarded.
+//--------------------------------------------------------------------------------
+class CommandIndex
+{
+    private final static TinyLog log = new TinyLog (CommandIndex.class);
+
+    private final static String INDEX_FILENAME = "ladmin-command-index.properties";
+    private final static String INDEX_KEY = "index.key";
+    private final static int FINGERPRINT_TAIL_SIZE = 64 * 1024;
+
+    private final static Map<String, String> fingerprints = new ConcurrentHashMap<> ();
+
+    private Path index_path;
+    private String index_key;
+    private Properties index = new Properties ();
+    private boolean dirty;
+
+    static class Entry
+    {
+        boolean inside_framework;
+        String jar_path;
+        String main_class;
+        List<String> libraries;
+    }
+
+    CommandIndex (File root_jar, File framework_jar)
+    {
+        Path config_path = ConfigLocator.getConfigPath ();
+
+        if (config_path == null)
+        {
+            // No place to keep the index, we'll always scan
+            log.debug ("Config path not available, command index disabled");
+            return;
+        }
+
+        index_path = config_path.resolve (INDEX_FILENAME);
+        index_key = fingerprint (root_jar) + "|" + fingerprint (framework_jar);
+        load ();
+    }
+
+    // The fingerprint is cheap: size, mtime and the CRC of the jar tail, which
+    // contains the zip central directory (and thus every embedded jar CRC)
+    static String fingerprint (File file)
+    {
+        if (file == null)
+        {
+            return ("none");
+        }
+
+        // The index, the catalogue and the jar cache all ask for the same jars, so
+        // the tail is read once for each size and mtime the jar is seen with
+        String stat_key = file.getAbsolutePath () + ":" + file.length () + ":" + file.lastModified ();
+        String fingerprint = fingerprints.get (stat_key);
+
+        if (fingerprint != null)
+        {
+            return (fingerprint);
+        }
+
+        CRC32 crc = new CRC32 ();
+
+        try (RandomAccessFile raf = new RandomAccessFile (file, "r"))
+        {
+            long length = raf.length ();
+            byte[] tail = new byte [(int)Math.min (length, FINGERPRINT_TAIL_SIZE)];
+            raf.seek (length - tail.length);
+            raf.readFully (tail);
+            crc.update (tail);
+        }
+        catch (IOException e)
+        {
+            log.debug ("Exception fingerprinting {}: {}", file, e.toString ());
+            return ("none");
+        }
+
+        fingerprint = stat_key + ":" + Long.toHexString (crc.getValue ());
+        fingerprints.put (stat_key, fingerprint);
+        return (fingerprint);
+    }
+
+    private void load ()
+    {
+        if (!Files.exists (index_path))
+        {
+            return;
+        }
+
+        try (InputStream is = Files.newInputStream (index_path))
+        {
+            index.load (is);
+        }
+        catch (IOException e)
+        {
+            log.debug ("Exception loading {}: {}", index_path, e.toString ());
+            index.clear ();
+        }
+
+        if (!index_key.equals (index.getProperty (INDEX_KEY)))
+        {
+            // Something changed, start from scratch
+            log.debug ("Command index is stale: {}", index_path);
+            index.clear ();
+            dirty = true;
+        }
+    }
+
+    Entry lookup (String command)
+    {
+        String prefix = "command." + command + ".";
+        String jar_path = index.getProperty (prefix + "jar");
+        String main_class = index.getProperty (prefix + "main");
+        String source = index.getProperty (prefix + "source");
+
+        if (jar_path == null || main_class == null || source == null)
+        {
+            return (null);
+        }
+
+        String libraries = index.getProperty ("libraries." + source);
+
+        if (libraries == null)
+        {
+            return (null);
+        }
+
+        Entry entry = new Entry ();
+        entry.inside_framework = source.equals ("framework");
+        entry.jar_path = jar_path;
+        entry.main_class = main_class;
+        entry.libraries = libraries.isEmpty ()?
+            Collections.<String>emptyList (): Arrays.asList (libraries.split (","));
+        log.debug ("Command index hit: {} -> {} {}", command, jar_path, main_class);
+        return (entry);
+    }
+
+    void put (String command, boolean inside_framework, String jar_path, String main_class, List<String> libraries)
+    {
+        if (index_path == null)
+        {
+            return;
+        }
+
+        String source = inside_framework? "framework": "root";
+        String prefix = "command." + command + ".";
+        StringBuilder sb = new StringBuilder ();
+
+        for (String library: libraries)
+        {
+            if (sb.length () > 0)
+            {
+                sb.append (',');
+            }
+            sb.append (library);
+        }
+
+        index.setProperty ("libraries." + source, sb.toString ());
+        index.setProperty (prefix + "source", source);
+        index.setProperty (prefix + "jar", jar_path);
+        index.setProperty (prefix + "main", main_class);
+        dirty = true;
+    }
+
+    void remove (String command)
+    {
+        String prefix = "command." + command + ".";
+
+        for (String key: new ArrayList<> (index.stringPropertyNames ()))
+        {
+            if (key.startsWith (prefix))
+            {
+                index.remove (key);
+                dirty = true;
+            }
+        }
+    }
+
+    void save ()
+    {
+        if (index_path == null || !dirty)
+        {
+            return;
+        }
+
+        index.setProperty (INDEX_KEY, index_key);
+
+        try
+        {
+            // Write and rename, so concurrent invocations never see a partial index
+            Path temp_path = Files.createTempFile (index_path.getParent (), INDEX_FILENAME, ".tmp");
+
+            try
+            {
+                try (OutputStream os = Files.newOutputStream (temp_path))
+                {
+                    index.store (os, "ladmin command index -- automatically generated");
+                }
+                Files.move (temp_path, index_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                dirty = false;
+            }
+            finally
+            {
+                Files.deleteIfExists (temp_path);
+            }
+        }
+        catch (IOException e)
+        {
+            log.debug ("Exception saving {}: {}", index_path, e.toString ());
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,571 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.main;
+
+import org.lucidj.libladmin.shared.CommandExit;
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//--------------------------------------------------------------------------------
+// Runs a command as if it had a JVM of its own, so many commands can share one
+// (the daemon and batch modes). Each invocation runs on its own thread group
+// with its own System.in/out/err (switched by the thread group of the caller),
+// and lasts while it has non-daemon threads. Threads of shared services are
+// kept out of it (see ServiceThreads). CommandExit.exit() only ends its invocation. Commands
+// whose jar calls System.exit() directly (see ClassFileInspector) would end
+// the whole JVM, so they run on a JVM of their own instead. Commands are
+// resolved through Main once, and every invocation gets a new command
+// classloader over the resolved jars, so no static state survives from one
+// run to the next (the libraries classloader is always shared, see
+// CommandClassLoaders).
+//--------------------------------------------------------------------------------
+class CommandInvocation
+{
+    private final static TinyLog log = new TinyLog (CommandInvocation.class);
+
+    private final static Map<String, Main.ResolvedCommand> resolved_commands = new ConcurrentHashMap<> ();
+    private final static Map<URL, Boolean> jars_calling_exit = new ConcurrentHashMap<> ();
+
+    // How long leftover command threads get to unwind after the exit
+    private final static long EXIT_GRACE_MS = 5000;
+    private static boolean installed;
+
+    // The streams of the JVM itself, before being switched
+    private static InputStream jvm_stdin;
+    private static OutputStream jvm_stdout;
+    private static OutputStream jvm_stderr;
+
+    private final InputStream stdin;
+    private final OutputStream stdout;
+    private final OutputStream stderr;
+    private Integer exit_code;
+
+    // Thrown on the command threads to unwind CommandExit.exit(). It's an Error,
+    // so the usual catch (Exception e) on commands doesn't stop it.
+    static class ExitTrap extends Error
+    {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        ExitTrap (int status)
+        {
+            super ("CommandExit.exit(" + status + ") trapped by ladmin");
+            this.status = status;
+        }
+    }
+
+    CommandInvocation (InputStream stdin, OutputStream stdout, OutputStream stderr)
+    {
+        this.stdin = stdin;
+        this.stdout = stdout;
+        this.stderr = stderr;
+    }
+
+    // System.out and System.err replacement writing to the invocation of the current thread
+    private static class SwitchOutputStream extends OutputStream
+    {
+        private final OutputStream default_stream;
+        private final boolean is_stderr;
+
+        SwitchOutputStream (OutputStream default_stream, boolean is_stderr)
+        {
+            this.default_stream = default_stream;
+            this.is_stderr = is_stderr;
+        }
+
+        private OutputStream target ()
+        {
+            CommandInvocation invocation = current ();
+
+            if (invocation == null)
+            {
+                return (default_stream);
+            }
+            return (is_stderr? invocation.stderr: invocation.stdout);
+        }
+
+        @Override
+        public void write (int b)
+            throws IOException
+        {
+            target ().write (b);
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len)
+            throws IOException
+        {
+            target ().write (b, off, len);
+        }
+
+        @Override
+        public void flush ()
+            throws IOException
+        {
+            target ().flush ();
+        }
+    }
+
+    // System.in replacement reading from the invocation of the current thread
+    private static class SwitchInputStream extends InputStream
+    {
+        private final InputStream default_stream;
+
+        SwitchInputStream (InputStream default_stream)
+        {
+            this.default_stream = default_stream;
+        }
+
+        private InputStream source ()
+        {
+            CommandInvocation invocation = current ();
+            return (invocation == null? default_stream: invocation.stdin);
+        }
+
+        @Override
+        public int read ()
+            throws IOException
+        {
+            return (source ().read ());
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len)
+            throws IOException
+        {
+            return (source ().read (b, off, len));
+        }
+
+        @Override
+        public int available ()
+            throws IOException
+        {
+            return (source ().available ());
+        }
+    }
+
+    private static class InvocationGroup extends ThreadGroup
+    {
+        final CommandInvocation invocation;
+
+        InvocationGroup (String name, CommandInvocation invocation)
+        {
+            super (name);
+            this.invocation = invocation;
+        }
+
+        @Override
+        public void uncaughtException (Thread t, Throwable e)
+        {
+            if (!(e instanceof ExitTrap))
+            {
+                super.uncaughtException (t, e);
+            }
+        }
+    }
+
+    // The invocation of the current thread, or null outside any
+    private static CommandInvocation current ()
+    {
+        for (ThreadGroup group = Thread.currentThread ().getThreadGroup (); group != null; group = group.getParent ())
+        {
+            if (group instanceof InvocationGroup)
+            {
+                return (((InvocationGroup)group).invocation);
+            }
+        }
+        return (null);
+    }
+
+    private static void install_exit_handler ()
+    {
+        CommandExit.setHandler (new CommandExit.Handler ()
+        {
+            @Override
+            public void exit (int status)
+            {
+                CommandInvocation invocation = current ();
+
+                if (invocation != null)
+                {
+                    invocation.exit (status);
+                    throw new ExitTrap (status);
+                }
+            }
+        });
+    }
+
+    // Switches the standard streams and handles CommandExit, once per JVM
+    static synchronized void install ()
+    {
+        if (installed)
+        {
+            return;
+        }
+        jvm_stdin = System.in;
+        jvm_stdout = System.out;
+        jvm_stderr = System.err;
+        System.setOut (new PrintStream (new SwitchOutputStream (jvm_stdout, false), true));
+        System.setErr (new PrintStream (new SwitchOutputStream (jvm_stderr, true), true));
+        System.setIn (new SwitchInputStream (jvm_stdin));
+        install_exit_handler ();
+        installed = true;
+    }
+
+    private synchronized void exit (int status)
+    {
+        // The first exit wins, like the real thing
+        if (exit_code == null)
+        {
+            exit_code = status;
+            notifyAll ();
+        }
+    }
+
+    private synchronized int await_exit_code ()
+        throws InterruptedException
+    {
+        while (exit_code == null)
+        {
+            wait ();
+        }
+        return (exit_code);
+    }
+
+    private static Thread first_alive (ThreadGroup group)
+    {
+        Thread[] threads = new Thread [group.activeCount () + 8];
+        int count = group.enumerate (threads, true);
+
+        for (int i = 0; i < count; i++)
+        {
+            // Daemon threads don't hold the JVM either
+            if (!threads [i].isDaemon () && threads [i].isAlive ())
+            {
+                return (threads [i]);
+            }
+        }
+        return (null);
+    }
+
+    // Waits for the exit and for the non-daemon command threads to unwind,
+    // so nothing they still print mixes with whatever runs next
+    private int await_exit (ThreadGroup group)
+        throws InterruptedException
+    {
+        int status = await_exit_code ();
+
+        // Wake up whatever the command left behind, it's over
+        group.interrupt ();
+
+        long deadline = System.currentTimeMillis () + EXIT_GRACE_MS;
+        Thread pending;
+
+        while ((pending = first_alive (group)) != null)
+        {
+            long remaining = deadline - System.currentTimeMillis ();
+
+            if (remaining <= 0)
+            {
+                log.debug ("Invocation thread '{}' still running after exit", pending.getName ());
+                break;
+            }
+            pending.join (remaining);
+        }
+        return (status);
+    }
+
+    private static Main.ResolvedCommand resolve_command (String command)
+    {
+        Main.ResolvedCommand resolved = resolved_commands.get (command);
+
+        if (resolved != null && (resolved = resolved.reload ()) != null)
+        {
+            log.debug ("Reusing resolution for '{}'", command);
+            return (resolved);
+        }
+
+        resolved = Main.resolve_command (command);
+        resolved_commands.put (command, resolved);
+        return (resolved);
+    }
+
+    // Whether any class on the command jar may end the JVM, once per jar
+    private static boolean calls_exit (URL jar_url)
+    {
+        Boolean calls_exit = jars_calling_exit.get (jar_url);
+
+        if (calls_exit != null)
+        {
+            return (calls_exit);
+        }
+
+        calls_exit = false;
+
+        try
+        {
+            NestedJar jar = jar_url.getProtocol ().equals ("file")
+                ? NestedJar.open (new File (jar_url.toURI ()))
+                : Main.get_embedded_jar (jar_url);
+
+            for (NestedJar.Entry entry: jar.getEntries ())
+            {
+                if (entry.name.endsWith (".class") && ClassFileInspector.callsExit (jar.read (entry)))
+                {
+                    log.debug ("{} calls System.exit() on {}", jar_url, entry.name);
+                    calls_exit = true;
+                    break;
+                }
+            }
+        }
+        catch (IOException | URISyntaxException e)
+        {
+            // Can't tell, so the command gets a JVM of its own
+            log.debug ("Exception inspecting {}: {}", jar_url, e.toString ());
+            calls_exit = true;
+        }
+        jars_calling_exit.put (jar_url, calls_exit);
+        return (calls_exit);
+    }
+
+    // Copies from -> to until the end of from, on a daemon thread
+    private static Thread pump (final InputStream from, final OutputStream to, final boolean close_to, String name)
+    {
+        Thread pump_thread = new Thread (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                byte[] buffer = new byte [8192];
+                int count;
+
+                try
+                {
+                    while ((count = from.read (buffer)) != -1)
+                    {
+                        to.write (buffer, 0, count);
+                        to.flush ();
+                    }
+
+                    if (close_to)
+                    {
+                        to.close ();
+                    }
+                }
+                catch (IOException e)
+                {
+                    log.debug ("Exception on {}: {}", Thread.currentThread ().getName (), e.toString ());
+                }
+            }
+        });
+        pump_thread.setName (name);
+        pump_thread.setDaemon (true);
+        pump_thread.start ();
+        return (pump_thread);
+    }
+
+    // Runs ladmin <command> <args...> on a new JVM wired to this invocation
+    private int run_forked (String[] args)
+        throws InterruptedException
+    {
+        List<String> command_line = new ArrayList<> ();
+        command_line.add (System.getProperty ("java.home") + File.separator + "bin" + File.separator + "java");
+
+        // Same ladmin settings, except forwarding to the daemon (maybe ourselves)
+        for (String name: System.getProperties ().stringPropertyNames ())
+        {
+            if (name.startsWith ("ladmin.") || name.startsWith ("tinylog"))
+            {
+                command_line.add ("-D" + name + "=" + System.getProperty (name));
+            }
+        }
+        command_line.add ("-Dladmin.daemon=false");
+        command_line.add ("-cp");
+        command_line.add (new File (Main.get_root_jar_uri ()).getPath ());
+        command_line.add (Main.class.getName ());
+        command_line.addAll (Arrays.asList (args));
+
+        ProcessBuilder builder = new ProcessBuilder (command_line);
+
+        // Our own terminal is simply handed over
+        if (stdin == jvm_stdin)
+        {
+            builder.redirectInput (ProcessBuilder.Redirect.INHERIT);
+        }
+        if (stdout == jvm_stdout)
+        {
+            builder.redirectOutput (ProcessBuilder.Redirect.INHERIT);
+        }
+        if (stderr == jvm_stderr)
+        {
+            builder.redirectError (ProcessBuilder.Redirect.INHERIT);
+        }
+
+        Process process;
+
+        try
+        {
+            System.out.flush ();
+            System.err.flush ();
+            process = builder.start ();
+        }
+        catch (IOException e)
+        {
+            System.err.println ("Error: Unable to run '" + args [0] + "' on a new JVM: " + e.toString ());
+            return (1);
+        }
+
+        List<Thread> output_pumps = new ArrayList<> ();
+
+        if (stdin != jvm_stdin)
+        {
+            pump (stdin, process.getOutputStream (), true, "ladmin " + args [0] + " stdin");
+        }
+        if (stdout != jvm_stdout)
+        {
+            output_pumps.add (pump (process.getInputStream (), stdout, false, "ladmin " + args [0] + " stdout"));
+        }
+        if (stderr != jvm_stderr)
+        {
+            output_pumps.add (pump (process.getErrorStream (), stderr, false, "ladmin " + args [0] + " stderr"));
+        }
+
+        try
+        {
+            int status = process.waitFor ();
+
+            for (Thread output_pump: output_pumps)
+            {
+                output_pump.join ();
+            }
+            return (status);
+        }
+        finally
+        {
+            process.destroy ();
+        }
+    }
+
+    // Like the JVM itself, an invocation lasts while it has non-daemon threads
+    private static void wait_for_threads (ThreadGroup group)
+        throws InterruptedException
+    {
+        Thread self = Thread.currentThread ();
+
+        for (;;)
+        {
+            Thread[] threads = new Thread [group.activeCount () + 8];
+            int count = group.enumerate (threads, true);
+            Thread pending = null;
+
+            for (int i = 0; i < count; i++)
+            {
+                if (threads [i] != self && !threads [i].isDaemon () && threads [i].isAlive ())
+                {
+                    pending = threads [i];
+                    break;
+                }
+            }
+
+            if (pending == null)
+            {
+                return;
+            }
+            pending.join ();
+        }
+    }
+
+    private void execute (String[] args, ThreadGroup group)
+    {
+        String command = args [0];
+        String[] command_args = Arrays.copyOfRange (args, 1, args.length);
+
+        try
+        {
+            Main.ResolvedCommand resolved = resolve_command (command);
+
+            if (calls_exit (resolved.jar_url))
+            {
+                log.debug ("Command '{}' may call System.exit(), running it on a new JVM", command);
+                exit (run_forked (args));
+                return;
+            }
+            Main.run_command (resolved, command_args);
+            wait_for_threads (group);
+            exit (0);
+        }
+        catch (ExitTrap e)
+        {
+            // Exit code already recorded
+        }
+        catch (InterruptedException e)
+        {
+            // Another command thread called System.exit(), it's over
+            exit (1);
+        }
+        catch (Throwable e)
+        {
+            e.printStackTrace (System.err);
+            exit (1);
+        }
+        finally
+        {
+            System.out.flush ();
+            System.err.flush ();
+        }
+    }
+
+    // Runs <command> <args...> and returns its exit code
+    int run (final String[] args)
+        throws InterruptedException
+    {
+        install ();
+
+        final ThreadGroup group = new InvocationGroup ("ladmin " + args [0], this);
+
+        Thread command_thread = new Thread (group, new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                execute (args, group);
+            }
+        });
+        command_thread.setName ("ladmin " + args [0]);
+        command_thread.setDaemon (false);       // Inherited by the command threads
+        command_thread.start ();
+
+        int status = await_exit (group);
+        log.debug ("Invocation '{}' exit code {}", args [0], status);
+        return (status);
+    }
+}
+
+// EOF
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.main;
+
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+//--------------------------------------------------------------------------------
+// The command manifest is generated at build time and embedded on ladmin.jar
+// (or any framework jar) as META-INF/ladmin/commands.idx. It lists every
+// library and every command found on /plugins and /commands, so the command
+// lookup becomes a simple map probe instead of the jar-by-jar heuristic scan.
+//
+// Format, one tab separated record per line, in search precedence order:
+//
+//     library  <path>
+//     jar      <jar name>    <path>  <main class>  [<description>  <profile>]
+//     class    <class name>  <path>  <main class>  [<description>  <profile>]
+//
+// The description and the JVM profile (see main/resources/ladmin) come from
+// the Ladmin-Description and Ladmin-Profile manifest attributes, taken from
+// the class entry section or else from the main attributes of the jar.
+//--------------------------------------------------------------------------------
+class CommandManifest
+{
+    private final static TinyLog log = new TinyLog (CommandManifest.class);
+
+    final static String MANIFEST_ENTRY = "META-INF/ladmin/commands.idx";
+    final static Attributes.Name DESCRIPTION = new Attributes.Name ("Ladmin-Description");
+    final static Attributes.Name PROFILE = new Attributes.Name ("Ladmin-Profile");
+
+    private List<String> libraries = new ArrayList<> ();
+    private List<String[]> commands = new ArrayList<> ();
+    private Map<String, String[]> jar_commands = new HashMap<> ();
+    private Map<String, String[]> short_class_commands = new HashMap<> ();
+    private Map<String, String[]> full_class_commands = new HashMap<> ();
+
+    private CommandManifest ()
+    {
+        // Use load()
+    }
+
+    static CommandManifest load (URI source_jar)
+    {
+        try
+        {
+            // Shares the central directory with the rest of the command discovery
+            NestedJar jar = NestedJar.open (new File (source_jar));
+            NestedJar.Entry entry = jar.getEntry (MANIFEST_ENTRY);
+
+            if (entry == null)
+            {
+                log.debug ("No command manifest on {}", source_jar);
+                return (null);
+            }
+
+            try (InputStream is = jar.getInputStream (entry))
+            {
+                return (parse (is));
+            }
+        }
+        catch (IOException e)
+        {
+            log.debug ("Exception reading command manifest from {}: {}", source_jar, e.toString ());
+            return (null);
+        }
+    }
+
+    private void add_record (String line)
+    {
+        if (line.isEmpty () || line.startsWith ("#"))
+        {
+            return;
+        }
+
+        String[] record = line.split ("\t");
+
+        if (record [0].equals ("library") && record.length >= 2)
+        {
+            libraries.add (record [1]);
+        }
+        else if (record [0].equals ("jar") && record.length >= 4)
+        {
+            commands.add (record);
+
+            // The first occurrence has precedence
+            jar_commands.putIfAbsent (record [1], record);
+        }
+        else if (record [0].equals ("class") && record.length >= 4)
+        {
+            commands.add (record);
+
+            String full_class_name = record [3];
+            short_class_commands.putIfAbsent (record [1].toLowerCase (), record);
+            full_class_commands.putIfAbsent (full_class_name, record);
+        }
+    }
+
+    private static CommandManifest parse (InputStream is)
+        throws IOException
+    {
+        CommandManifest manifest = new CommandManifest ();
+        BufferedReader reader = new BufferedReader (new InputStreamReader (is, StandardCharsets.UTF_8));
+        String line;
+
+        while ((line = reader.readLine ()) != null)
+        {
+            manifest.add_record (line);
+        }
+        return (manifest);
+    }
+
+    // A manifest made from records in the same format, like the ones from scanJar()
+    static CommandManifest fromRecords (List<String> records)
+    {
+        CommandManifest manifest = new CommandManifest ();
+
+        for (String record: records)
+        {
+            manifest.add_record (record);
+        }
+        return (manifest);
+    }
+
+    List<String> getLibraries ()
+    {
+        return (libraries);
+    }
+
+    // Every jar and class record, in search precedence order
+    List<String[]> getCommands ()
+    {
+        return (commands);
+    }
+
+    // Command attribute as a single line: entry section first, then the main attributes
+    private static String get_command_attribute (Manifest manifest, String entry_name, Attributes.Name name)
+    {
+        if (manifest == null)
+        {
+            return ("");
+        }
+
+        Attributes attrs = (entry_name == null)? null: manifest.getAttributes (entry_name);
+        String value = (attrs == null)? null: attrs.getValue (name);
+
+        if (value == null)
+        {
+            value = manifest.getMainAttributes ().getValue (name);
+        }
+        return (value == null? "": value.replaceAll ("\\s+", " ").trim ());
+    }
+
+    static String getDescription (Manifest manifest, String entry_name)
+    {
+        return (get_command_attribute (manifest, entry_name, DESCRIPTION));
+    }
+
+    static String getProfile (Manifest manifest, String entry_name)
+    {
+        return (get_command_attribute (manifest, entry_name, PROFILE).toLowerCase ());
+    }
+
+    // Returns { jar path, main class } or null if the command is unknown
+    String[] lookup (String command)
+    {
+        // Same precedence used by the heuristic scan: jar name, then class name
+        String[] record = jar_commands.get (command);
+
+        if (record == null)
+        {
+            // Short class names are case independent, full class names may be mixed case
+            record = short_class_commands.get (command.toLowerCase ());
+
+            if (record == null)
+            {
+                record = full_class_commands.get (command);
+            }
+        }
+        return (record == null? null: new String[] { record [2], record [3] });
+    }
+
+    //=================================================================================================================
+    // BUILD TIME GENERATOR
+    //=================================================================================================================
+
+    private static List<File> list_jars (File dir)
+    {
+        File[] jars = dir.listFiles (new FilenameFilter ()
+        {
+            @Override
+            public boolean accept (File dir, String name)
+            {
+                return (name.endsWith (".jar"));
+            }
+        });
+
+        if (jars == null)
+        {
+            return (new ArrayList<> ());
+        }
+
+        // Keep the output stable across builds
+        Arrays.sort (jars);
+        return (Arrays.asList (jars));
+    }
+
+    private static String jar_path (File base_dir, File jar)
+    {
+        return ("/" + base_dir.toPath ().relativize (jar.toPath ()).toString ().replace ('\\', '/'));
+    }
+
+    // Adds the jar record (self-executable jar) and the class records (every class
+    // with a valid main(), read straight from the class files) of the given jar
+    static void scanJar (File jar, String jar_path, List<String> jar_records, List<String> class_records)
+        throws IOException
+    {
+        try (JarFile jar_file = new JarFile (jar))
+        {
+            ClassFileInspector.ClassSource classes = ClassFileInspector.sourceOf (jar_file);
+            Manifest jar_mf = jar_file.getManifest ();
+            String main_class = (jar_mf == null)? null: jar_mf.getMainAttributes ().getValue (Attributes.Name.MAIN_CLASS);
+
+            if (main_class != null)
+            {
+                String class_entry_name = main_class.replace ('.', '/') + ".class";
+                JarEntry class_entry = jar_file.getJarEntry (class_entry_name);
+                boolean valid_main = true;
+
+                // Same rule used by Main: a Main-Class outside the jar is trusted
+                if (class_entry != null)
+                {
+                    try (InputStream is = jar_file.getInputStream (class_entry))
+                    {
+                        valid_main = ClassFileInspector.hasMainMethod (is, classes);
+                    }
+                }
+
+                if (valid_main)
+                {
+                    String jar_name = jar.getName ().toLowerCase ();
+                    jar_name = jar_name.substring (0, jar_name.lastIndexOf (".jar"));
+                    jar_records.add ("jar\t" + jar_name + "\t" + jar_path + "\t" + main_class
+                        + "\t" + getDescription (jar_mf, class_entry_name) + "\t" + getProfile (jar_mf, class_entry_name));
+                }
+            }
+
+            Enumeration<JarEntry> entries = jar_file.entries ();
+
+            while (entries.hasMoreElements ())
+            {
+                JarEntry jar_entry = entries.nextElement ();
+                String entry_name = jar_entry.getName ();
+
+                if (!entry_name.endsWith (".class") || entry_name.contains ("$"))
+                {
+                    continue;
+                }
+
+                String full_class_name = entry_name.substring (0, entry_name.length () - 6).replace ('/', '.');
+                String short_class_name = full_class_name.substring (full_class_name.lastIndexOf ('.') + 1);
+
+                try (InputStream is = jar_file.getInputStream (jar_entry))
+                {
+                    if (ClassFileInspector.hasMainMethod (is, classes))
+                    {
+                        class_records.add ("class\t" + short_class_name + "\t" + jar_path + "\t" + full_class_name
+                            + "\t" + getDescription (jar_mf, entry_name) + "\t" + getProfile (jar_mf, entry_name));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void generate (File base_dir, PrintWriter out)
+        throws IOException
+    {
+        List<File> library_jars = list_jars (new File (base_dir, "libraries"));
+
+        // Command plugins have search order precedence over the internal commands
+        List<File> command_jars = new ArrayList<> (list_jars (new File (base_dir, "plugins")));
+        command_jars.addAll (list_jars (new File (base_dir, "commands")));
+
+        out.println ("# ladmin command manifest -- automatically generated");
+
+        for (File jar: library_jars)
+        {
+            out.println ("library\t" + jar_path (base_dir, jar));
+        }
+
+        List<String> jar_records = new ArrayList<> ();
+        List<String> class_records = new ArrayList<> ();
+
+        for (File jar: command_jars)
+        {
+            scanJar (jar, jar_path (base_dir, jar), jar_records, class_records);
+        }
+
+        // Self-executable jars first, they win over class names
+        for (String record: jar_records)
+        {
+            out.println (record);
+        }
+
+        for (String record: class_records)
+        {
+            out.println (record);
+        }
+    }
+
+    // Invoked by main/build.xml: CommandManifest <artifacts dir> <output file>
+    public static void main (String[] args)
+        throws IOException
+    {
+        if (args.length != 2)
+        {
+            System.err.println ("Usage: CommandManifest <base dir> <output file>");
+            System.exit (1);
+        }
+
+        File output = new File (args [1]);
+        output.getParentFile ().mkdirs ();
+
+        try (PrintWriter out = new PrintWriter (output, "UTF-8"))
+        {
+            generate (new File (args [0]), out);
+        }
+        System.out.println ("Command manifest: " + output);
+    }
+}
+
+// EOF
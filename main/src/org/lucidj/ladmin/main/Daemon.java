@@ -0,0 +1,250 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.main;
+
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.Properties;
+
+//--------------------------------------------------------------------------------
+// Resident ladmin: a long-lived JVM serving command invocations forwarded by
+// DaemonClient, so the JVM startup, command discovery and JIT warmup are paid
+// only once. Each connection becomes a CommandInvocation wired to the client
+// stdin/stdout/stderr, so commands run concurrently and CommandExit.exit()
+// only ends the invocation that called it.
+//
+// Start with 'ladmin --daemon', and use it with LADMIN_DAEMON=true or
+// -Dladmin.daemon=true. Commands run with the daemon working directory
+// and environment, and the daemon should be restarted after upgrades.
+//--------------------------------------------------------------------------------
+class Daemon
+{
+    private final static TinyLog log = new TinyLog (Daemon.class);
+
+    final static String DAEMON_OPTION = "--daemon";
+
+    private final static int STDIN_PIPE_SIZE = 64 * 1024;
+
+    private static String token;
+
+    private static class FrameOutputStream extends OutputStream
+    {
+        private final DataOutputStream out;
+        private final int frame_type;
+
+        FrameOutputStream (DataOutputStream out, int frame_type)
+        {
+            this.out = out;
+            this.frame_type = frame_type;
+        }
+
+        @Override
+        public void write (int b)
+            throws IOException
+        {
+            write (new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len)
+            throws IOException
+        {
+            DaemonChannel.writeFrame (out, frame_type, b, off, len);
+        }
+    }
+
+    private static void pump_stdin (final DataInputStream in, PipedInputStream stdin)
+        throws IOException
+    {
+        final PipedOutputStream stdin_pipe = new PipedOutputStream (stdin);
+
+        Thread pump_thread = new Thread (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                try
+                {
+                    for (;;)
+                    {
+                        int frame_type = in.readUnsignedByte ();
+                        byte[] data = new byte [in.readInt ()];
+                        in.readFully (data);
+
+                        if (frame_type == DaemonChannel.FRAME_STDIN_EOF)
+                        {
+                            break;
+                        }
+                        else if (frame_type == DaemonChannel.FRAME_STDIN)
+                        {
+                            stdin_pipe.write (data);
+                            stdin_pipe.flush ();
+                        }
+                    }
+                }
+                catch (IOException ignore)
+                {
+                    // Client gone or command finished
+                }
+                finally
+                {
+                    try
+                    {
+                        stdin_pipe.close ();
+                    }
+                    catch (IOException ignore) {};
+                }
+            }
+        });
+        pump_thread.setName ("ladmin stdin pump");
+        pump_thread.setDaemon (true);
+        pump_thread.start ();
+    }
+
+    private static void handle (SocketChannel channel)
+    {
+        try (SocketChannel connection = channel)
+        {
+            DataInputStream in = new DataInputStream (new BufferedInputStream (DaemonChannel.newInputStream (connection)));
+            DataOutputStream out = new DataOutputStream (new BufferedOutputStream (DaemonChannel.newOutputStream (connection)));
+
+            if (!token.equals (in.readUTF ()))
+            {
+                log.warn ("Rejected connection with invalid token");
+                return;
+            }
+
+            final String[] args = new String [in.readInt ()];
+
+            for (int i = 0; i < args.length; i++)
+            {
+                args [i] = in.readUTF ();
+            }
+
+            if (args.length == 0)
+            {
+                return;
+            }
+
+            log.debug ("Invocation: {}", (Object)args);
+
+            PipedInputStream stdin = new PipedInputStream (STDIN_PIPE_SIZE);
+            pump_stdin (in, stdin);
+
+            CommandInvocation invocation = new CommandInvocation (stdin,
+                new FrameOutputStream (out, DaemonChannel.FRAME_STDOUT),
+                new FrameOutputStream (out, DaemonChannel.FRAME_STDERR));
+            int exit_code = invocation.run (args);
+            stdin.close ();
+
+            byte[] exit_data = new byte[]
+            {
+                (byte)(exit_code >>> 24), (byte)(exit_code >>> 16), (byte)(exit_code >>> 8), (byte)exit_code
+            };
+            DaemonChannel.writeFrame (out, DaemonChannel.FRAME_EXIT, exit_data, 0, exit_data.length);
+        }
+        catch (IOException | InterruptedException e)
+        {
+            log.debug ("Exception serving invocation: {}", e.toString ());
+        }
+    }
+
+    static int serve ()
+    {
+        final Path rendezvous_path = DaemonChannel.getRendezvousPath ();
+
+        if (rendezvous_path == null)
+        {
+            System.err.println ("Error: Configuration directory not available");
+            return (1);
+        }
+
+        if (DaemonClient.isRunning ())
+        {
+            System.err.println ("Error: ladmin daemon already running");
+            return (1);
+        }
+
+        final Properties rendezvous = new Properties ();
+        ServerSocketChannel server;
+
+        try
+        {
+            token = DaemonChannel.newToken ();
+            rendezvous.setProperty ("token", token);
+            server = DaemonChannel.bind (rendezvous_path, rendezvous);
+            DaemonChannel.storeRendezvous (rendezvous_path, rendezvous);
+        }
+        catch (IOException e)
+        {
+            System.err.println ("Error: Unable to start ladmin daemon: " + e.toString ());
+            return (1);
+        }
+
+        Runtime.getRuntime ().addShutdownHook (new Thread ()
+        {
+            @Override
+            public void run ()
+            {
+                DaemonChannel.removeRendezvous (rendezvous_path, rendezvous);
+            }
+        });
+
+        System.out.println ("ladmin daemon listening on "
+            + rendezvous.getProperty ("transport") + ":" + rendezvous.getProperty ("address"));
+
+        CommandInvocation.install ();
+
+        for (;;)
+        {
+            try
+            {
+                final SocketChannel channel = server.accept ();
+
+                Thread connection_thread = new Thread (new Runnable ()
+                {
+                    @Override
+                    public void run ()
+                    {
+                        handle (channel);
+                    }
+                });
+                connection_thread.setName ("ladmin connection");
+                connection_thread.setDaemon (true);
+                connection_thread.start ();
+            }
+            catch (IOException e)
+            {
+                log.error ("Exception accepting connection: {}", e.toString ());
+                return (1);
+            }
+        }
+    }
+}
+
+// EOF
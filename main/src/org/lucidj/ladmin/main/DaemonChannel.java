@@ -0,0 +1,337 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.main;
+
+import org.lucidj.libladmin.shared.ConfigLocator;
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.Properties;
+
+//--------------------------------------------------------------------------------
+// Transport between the ladmin client and the resident daemon. Unix domain
+// sockets are used when the JVM supports them (JDK 16+, reached by reflection
+// since we target Java 8), otherwise a loopback TCP socket. Either way the
+// daemon publishes where it listens on <config>/ladmin-daemon.properties,
+// together with a random token the client must present, and the file is
+// readable only by its owner.
+//
+// After the client header (token, argc, args) both sides exchange frames:
+//
+//     <type byte> <payload length int> <payload>
+//--------------------------------------------------------------------------------
+class DaemonChannel
+{
+    private final static TinyLog log = new TinyLog (DaemonChannel.class);
+
+    private final static String RENDEZVOUS_FILENAME = "ladmin-daemon.properties";
+    private final static String SOCKET_FILENAME = "ladmin-daemon.sock";
+
+    final static String TRANSPORT_UNIX = "unix";
+    final static String TRANSPORT_TCP = "tcp";
+
+    final static int FRAME_STDIN = 'I';         // Client -> daemon
+    final static int FRAME_STDIN_EOF = 'E';     // Client -> daemon
+    final static int FRAME_STDOUT = 'O';        // Daemon -> client
+    final static int FRAME_STDERR = 'R';        // Daemon -> client
+    final static int FRAME_EXIT = 'X';          // Daemon -> client, int exit code
+
+    static Path getRendezvousPath ()
+    {
+        Path config_path = ConfigLocator.getConfigPath ();
+        return (config_path == null? null: config_path.resolve (RENDEZVOUS_FILENAME));
+    }
+
+    static Properties loadRendezvous ()
+    {
+        Path rendezvous_path = getRendezvousPath ();
+
+        if (rendezvous_path == null || !Files.exists (rendezvous_path))
+        {
+            return (null);
+        }
+
+        Properties rendezvous = new Properties ();
+
+        try (InputStream is = Files.newInputStream (rendezvous_path))
+        {
+            rendezvous.load (is);
+            return (rendezvous);
+        }
+        catch (IOException e)
+        {
+            log.debug ("Exception loading {}: {}", rendezvous_path, e.toString ());
+            return (null);
+        }
+    }
+
+    static void storeRendezvous (Path rendezvous_path, Properties rendezvous)
+        throws IOException
+    {
+        Path temp_path = Files.createTempFile (rendezvous_path.getParent (), RENDEZVOUS_FILENAME, ".tmp");
+
+        try
+        {
+            try
+            {
+                Files.setPosixFilePermissions (temp_path, PosixFilePermissions.fromString ("rw-------"));
+            }
+            catch (UnsupportedOperationException ignore)
+            {
+                // Not a posix filesystem, the config dir is all we have
+            };
+
+            try (OutputStream os = Files.newOutputStream (temp_path))
+            {
+                rendezvous.store (os, "ladmin daemon -- automatically generated");
+            }
+            Files.move (temp_path, rendezvous_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists (temp_path);
+        }
+    }
+
+    static String newToken ()
+    {
+        byte[] token = new byte [16];
+        new SecureRandom ().nextBytes (token);
+        StringBuilder sb = new StringBuilder ();
+
+        for (byte b: token)
+        {
+            sb.append (String.format ("%02x", b & 0xff));
+        }
+        return (sb.toString ());
+    }
+
+    private static ProtocolFamily unix_family ()
+    {
+        // Throws IllegalArgumentException before JDK 16
+        return (StandardProtocolFamily.valueOf ("UNIX"));
+    }
+
+    private static SocketAddress unix_address (Path socket_path)
+        throws ReflectiveOperationException
+    {
+        Class<?> address_class = Class.forName ("java.net.UnixDomainSocketAddress");
+        return ((SocketAddress)address_class.getMethod ("of", Path.class).invoke (null, socket_path));
+    }
+
+    private static ServerSocketChannel bind_unix (Path socket_path)
+        throws ReflectiveOperationException, IOException
+    {
+        ProtocolFamily family = unix_family ();
+        SocketAddress address = unix_address (socket_path);
+        ServerSocketChannel server = (ServerSocketChannel)ServerSocketChannel.class
+            .getMethod ("open", ProtocolFamily.class).invoke (null, family);
+
+        try
+        {
+            // A socket file left behind by a dead daemon would fail the bind
+            Files.deleteIfExists (socket_path);
+            server.bind (address);
+            return (server);
+        }
+        catch (IOException e)
+        {
+            server.close ();
+            throw e;
+        }
+    }
+
+    // Binds the daemon socket, filling the rendezvous with its address
+    static ServerSocketChannel bind (Path rendezvous_path, Properties rendezvous)
+        throws IOException
+    {
+        Path socket_path = rendezvous_path.resolveSibling (SOCKET_FILENAME);
+
+        try
+        {
+            ServerSocketChannel server = bind_unix (socket_path);
+            rendezvous.setProperty ("transport", TRANSPORT_UNIX);
+            rendezvous.setProperty ("address", socket_path.toString ());
+            return (server);
+        }
+        catch (ReflectiveOperationException | IllegalArgumentException | UnsupportedOperationException | IOException e)
+        {
+            log.debug ("Unix domain sockets not available ({}), using loopback tcp", e.toString ());
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open ();
+        server.bind (new InetSocketAddress (InetAddress.getLoopbackAddress (), 0));
+        rendezvous.setProperty ("transport", TRANSPORT_TCP);
+        rendezvous.setProperty ("address", Integer.toString (((InetSocketAddress)server.getLocalAddress ()).getPort ()));
+        return (server);
+    }
+
+    static SocketChannel connect (Properties rendezvous)
+        throws IOException
+    {
+        String transport = rendezvous.getProperty ("transport");
+        String address = rendezvous.getProperty ("address");
+
+        if (TRANSPORT_UNIX.equals (transport))
+        {
+            try
+            {
+                SocketChannel channel = (SocketChannel)SocketChannel.class
+                    .getMethod ("open", ProtocolFamily.class).invoke (null, unix_family ());
+
+                try
+                {
+                    channel.connect (unix_address (Paths.get (address)));
+                    return (channel);
+                }
+                catch (IOException e)
+                {
+                    channel.close ();
+                    throw e;
+                }
+            }
+            catch (ReflectiveOperationException | IllegalArgumentException e)
+            {
+                throw new IOException ("Unix domain sockets not available: " + e.toString ());
+            }
+        }
+        else if (TRANSPORT_TCP.equals (transport))
+        {
+            try
+            {
+                return (SocketChannel.open (new InetSocketAddress (InetAddress.getLoopbackAddress (), Integer.parseInt (address))));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IOException ("Invalid daemon port: " + address);
+            }
+        }
+        throw new IOException ("Unknown daemon transport: " + transport);
+    }
+
+    static void removeRendezvous (Path rendezvous_path, Properties rendezvous)
+    {
+        try
+        {
+            Files.deleteIfExists (rendezvous_path);
+
+            if (TRANSPORT_UNIX.equals (rendezvous.getProperty ("transport")))
+            {
+                Files.deleteIfExists (rendezvous_path.resolveSibling (SOCKET_FILENAME));
+            }
+        }
+        catch (IOException ignore) {};
+    }
+
+    // Channels.newInputStream() and newOutputStream() share the channel blocking
+    // lock, so a thread blocked reading would stall the writers. Socket channels
+    // can read and write concurrently, so we go straight to the channel.
+    static InputStream newInputStream (final SocketChannel channel)
+    {
+        return (new InputStream ()
+        {
+            @Override
+            public int read ()
+                throws IOException
+            {
+                byte[] b = new byte [1];
+                return (read (b, 0, 1) == -1? -1: b [0] & 0xff);
+            }
+
+            @Override
+            public int read (byte[] b, int off, int len)
+                throws IOException
+            {
+                if (len == 0)
+                {
+                    return (0);
+                }
+                return (channel.read (ByteBuffer.wrap (b, off, len)));
+            }
+
+            @Override
+            public void close ()
+                throws IOException
+            {
+                channel.close ();
+            }
+        });
+    }
+
+    static OutputStream newOutputStream (final SocketChannel channel)
+    {
+        return (new OutputStream ()
+        {
+            @Override
+            public void write (int b)
+                throws IOException
+            {
+                write (new byte[] { (byte)b }, 0, 1);
+            }
+
+            @Override
+            public void write (byte[] b, int off, int len)
+                throws IOException
+            {
+                ByteBuffer buffer = ByteBuffer.wrap (b, off, len);
+
+                while (buffer.hasRemaining ())
+                {
+                    channel.write (buffer);
+                }
+            }
+
+            @Override
+            public void close ()
+                throws IOException
+            {
+                channel.close ();
+            }
+        });
+    }
+
+    static void writeFrame (DataOutputStream out, int type, byte[] data, int off, int len)
+        throws IOException
+    {
+        synchronized (out)
+        {
+            out.writeByte (type);
+            out.writeInt (len);
+            out.write (data, off, len);
+            out.flush ();
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.main;
+
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.SocketChannel;
+import java.util.Properties;
+
+//--------------------------------------------------------------------------------
+// Thin client for the resident ladmin: forwards the arguments and stdin to the
+// daemon, replays the stdout/stderr it sends back and returns the command
+// exit code. Nothing here touches the command discovery, so the client costs
+// little more than the JVM startup.
+//
+// Enable with -Dladmin.daemon=true or LADMIN_DAEMON=true.
+//--------------------------------------------------------------------------------
+class DaemonClient
+{
+    private final static TinyLog log = new TinyLog (DaemonClient.class);
+
+    static boolean isEnabled ()
+    {
+        String env_default = System.getenv ("LADMIN_DAEMON");
+        return (Boolean.parseBoolean (System.getProperty ("ladmin.daemon", env_default)));
+    }
+
+    static boolean isRunning ()
+    {
+        Properties rendezvous = DaemonChannel.loadRendezvous ();
+
+        if (rendezvous == null)
+        {
+            return (false);
+        }
+
+        try
+        {
+            // Someone answering is all we want to know
+            DaemonChannel.connect (rendezvous).close ();
+            return (true);
+        }
+        catch (IOException e)
+        {
+            return (false);
+        }
+    }
+
+    private static void forward_stdin (final DataOutputStream out)
+    {
+        Thread stdin_thread = new Thread (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                byte[] buffer = new byte [8192];
+
+                try
+                {
+                    int count;
+
+                    while ((count = System.in.read (buffer)) != -1)
+                    {
+                        DaemonChannel.writeFrame (out, DaemonChannel.FRAME_STDIN, buffer, 0, count);
+                    }
+                    DaemonChannel.writeFrame (out, DaemonChannel.FRAME_STDIN_EOF, buffer, 0, 0);
+                }
+                catch (IOException ignore)
+                {
+                    // The command is over
+                }
+            }
+        });
+        stdin_thread.setName ("ladmin stdin");
+        stdin_thread.setDaemon (true);
+        stdin_thread.start ();
+    }
+
+    // Returns the command exit code, or null if there's no daemon to run it
+    static Integer run (String[] args)
+    {
+        Properties rendezvous = DaemonChannel.loadRendezvous ();
+
+        if (rendezvous == null)
+        {
+            log.debug ("ladmin daemon not running");
+            return (null);
+        }
+
+        SocketChannel channel;
+
+        try
+        {
+            channel = DaemonChannel.connect (rendezvous);
+        }
+        catch (IOException e)
+        {
+            log.debug ("ladmin daemon not available: {}", e.toString ());
+            return (null);
+        }
+
+        try (SocketChannel connection = channel)
+        {
+            DataInputStream in = new DataInputStream (new BufferedInputStream (DaemonChannel.newInputStream (connection)));
+            DataOutputStream out = new DataOutputStream (new BufferedOutputStream (DaemonChannel.newOutputStream (connection)));
+
+            synchronized (out)
+            {
+                out.writeUTF (rendezvous.getProperty ("token", ""));
+                out.writeInt (args.length);
+
+                for (String arg: args)
+                {
+                    out.writeUTF (arg);
+                }
+                out.flush ();
+            }
+
+            forward_stdin (out);
+
+            for (;;)
+            {
+                int frame_type = in.readUnsignedByte ();
+                byte[] data = new byte [in.readInt ()];
+                in.readFully (data);
+
+                if (frame_type == DaemonChannel.FRAME_EXIT)
+                {
+                    return (new DataInputStream (new ByteArrayInputStream (data)).readInt ());
+                }
+
+                PrintStream target = (frame_type == DaemonChannel.FRAME_STDERR)? System.err: System.out;
+                target.write (data, 0, data.length);
+                target.flush ();
+            }
+        }
+        catch (EOFException e)
+        {
+            System.err.println ("Error: ladmin daemon connection lost");
+            return (1);
+        }
+        catch (IOException e)
+        {
+            System.err.println ("Error: ladmin daemon failure: " + e.toString ());
+            return (1);
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,447 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.main;
+
+import org.lucidj.libladmin.shared.ConfigLocator;
+import org.lucidj.libladmin.shared.ServiceThreads;
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+//--------------------------------------------------------------------------------
+// Content-addressed cache for the embedded jars. When enabled, every embedded
+// jar is extracted once into <config>/ladmin-jars/<sha-256>.jar and the run
+// classloader gets a plain file: URL, so class loading doesn't go through the
+// nested jar inflation anymore. Each embedded jar, identified by the
+// fingerprint of its source jar (see CommandIndex) and its entry name, is
+// mapped to its SHA-256, which lets a warm invocation find the cached file
+// without opening the source jar. The map also records the size and mtime
+// the cached file had when its SHA-256 was last checked, so the file is only
+// hashed again when these change, and a damaged file gets extracted again.
+// Entries not used for a while are removed by a background cleanup.
+//
+// Enable with -Dladmin.jarcache=true or LADMIN_JARCACHE=true.
+//--------------------------------------------------------------------------------
+class JarCache
+{
+    private final static TinyLog log = new TinyLog (JarCache.class);
+
+    private final static String CACHE_DIRNAME = "ladmin-jars";
+    private final static String MAP_FILENAME = "jarcache-2.properties";
+    private final static String OLD_MAP_FILENAME = "jarcache.properties";         // Keyed by CRC and size
+    private final static String CLEANUP_STAMP = "cleanup.stamp";
+    private final static long CLEANUP_INTERVAL = 24 * 60 * 60 * 1000L;        // Once a day
+    private final static long RETENTION_TIME = 7 * 24 * 60 * 60 * 1000L;      // Unused for a week
+
+    private Path cache_path;
+    private Path map_path;
+    private Properties entry_to_sha = new Properties ();          // entry key -> sha:size:mtime
+    private boolean dirty;
+
+    private JarCache (Path cache_path)
+    {
+        this.cache_path = cache_path;
+        this.map_path = cache_path.resolve (MAP_FILENAME);
+
+        if (Files.exists (map_path))
+        {
+            try (InputStream is = Files.newInputStream (map_path))
+            {
+                entry_to_sha.load (is);
+            }
+            catch (IOException e)
+            {
+                log.debug ("Exception loading {}: {}", map_path, e.toString ());
+            }
+        }
+    }
+
+    static boolean isEnabled ()
+    {
+        String env_default = System.getenv ("LADMIN_JARCACHE");
+        return (Boolean.parseBoolean (System.getProperty ("ladmin.jarcache", env_default)));
+    }
+
+    static JarCache open ()
+    {
+        Path config_path = ConfigLocator.getConfigPath ();
+
+        if (config_path == null)
+        {
+            return (null);
+        }
+
+        Path cache_path = config_path.resolve (CACHE_DIRNAME);
+
+        try
+        {
+            Files.createDirectories (cache_path);
+        }
+        catch (IOException e)
+        {
+            log.debug ("Unable to create {}: {}", cache_path, e.toString ());
+            return (null);
+        }
+        return (new JarCache (cache_path));
+    }
+
+    private static String to_hex (byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder ();
+
+        for (byte b: bytes)
+        {
+            sb.append (String.format ("%02x", b & 0xff));
+        }
+        return (sb.toString ());
+    }
+
+    private static MessageDigest new_digest ()
+        throws IOException
+    {
+        try
+        {
+            return (MessageDigest.getInstance ("SHA-256"));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException (e);
+        }
+    }
+
+    // Whether the cached file still has the contents its name says
+    private static boolean verify (Path jar_path, String sha)
+        throws IOException
+    {
+        MessageDigest digest = new_digest ();
+
+        try (InputStream is = Files.newInputStream (jar_path))
+        {
+            byte[] buffer = new byte [8192];
+            int count;
+
+            while ((count = is.read (buffer)) != -1)
+            {
+                digest.update (buffer, 0, count);
+            }
+        }
+
+        if (!to_hex (digest.digest ()).equals (sha))
+        {
+            log.warn ("Cached jar {} is damaged, extracting again", jar_path);
+            Files.deleteIfExists (jar_path);
+            return (false);
+        }
+        return (true);
+    }
+
+    private Path extract (ZipFile zip, ZipEntry entry)
+        throws IOException
+    {
+        MessageDigest digest = new_digest ();
+
+        Path temp_path = Files.createTempFile (cache_path, "extract", ".tmp");
+
+        try
+        {
+            try (InputStream is = zip.getInputStream (entry);
+                 OutputStream os = new DigestOutputStream (Files.newOutputStream (temp_path), digest))
+            {
+                byte[] buffer = new byte [8192];
+                int count;
+
+                while ((count = is.read (buffer)) != -1)
+                {
+                    os.write (buffer, 0, count);
+                }
+            }
+
+            String sha = to_hex (digest.digest ());
+            Path jar_path = cache_path.resolve (sha + ".jar");
+
+            if (Files.exists (jar_path) && verify (jar_path, sha))
+            {
+                // Same content was extracted before, possibly from another source jar
+                Files.delete (temp_path);
+            }
+            else
+            {
+                Files.move (temp_path, jar_path, StandardCopyOption.ATOMIC_MOVE);
+                log.debug ("Extracted {} -> {}", entry.getName (), jar_path);
+            }
+            return (jar_path);
+        }
+        finally
+        {
+            Files.deleteIfExists (temp_path);
+        }
+    }
+
+    private static String entry_name (URL embedded_url)
+    {
+        String path = embedded_url.getPath ();
+        return (path.startsWith ("/")? path.substring (1): path);
+    }
+
+    // Records the cached file as checked, as it is now
+    private void set_verified (String entry_key, String sha, Path jar_path)
+        throws IOException
+    {
+        BasicFileAttributes attrs = Files.readAttributes (jar_path, BasicFileAttributes.class);
+        entry_to_sha.setProperty (entry_key, sha + ":" + attrs.size () + ":" + attrs.lastModifiedTime ().toMillis ());
+        dirty = true;
+    }
+
+    // The cached file for the entry, using only the map and a stat of the file
+    private Path find_cached_jar (String entry_key)
+        throws IOException
+    {
+        String[] record = entry_to_sha.getProperty (entry_key, "").split (":");
+        Path jar_path = cache_path.resolve (record [0] + ".jar");
+
+        if (record [0].isEmpty () || !Files.exists (jar_path))
+        {
+            return (null);
+        }
+
+        BasicFileAttributes attrs = Files.readAttributes (jar_path, BasicFileAttributes.class);
+        long now = System.currentTimeMillis ();
+
+        if (record.length != 3
+            || !record [1].equals (Long.toString (attrs.size ()))
+            || !record [2].equals (Long.toString (attrs.lastModifiedTime ().toMillis ())))
+        {
+            // Changed since it was checked, or never checked
+            if (!verify (jar_path, record [0]))
+            {
+                return (null);
+            }
+            set_verified (entry_key, record [0], jar_path);
+        }
+
+        if (attrs.lastModifiedTime ().toMillis () + CLEANUP_INTERVAL < now)
+        {
+            // Mark as recently used so the cleanup keeps it, once a day is enough
+            Files.setLastModifiedTime (jar_path, FileTime.fromMillis (now));
+            set_verified (entry_key, record [0], jar_path);
+        }
+        return (jar_path);
+    }
+
+    // Maps the embedded jar URLs into file: URLs, keeping the original URL for
+    // anything that isn't embedded or that we fail to extract. The handlers map
+    // tells which source jar stands behind each jarjar protocol.
+    URL[] getFileURLs (URL[] embedded_urls, Map<String, URI> handler_to_uri)
+    {
+        URL[] file_urls = embedded_urls.clone ();
+
+        for (Map.Entry<String, URI> handler: handler_to_uri.entrySet ())
+        {
+            File source_jar = new File (handler.getValue ());
+            String source_fingerprint = null;
+
+            // The source jar is opened only when something is missing from the cache
+            ZipFile zip = null;
+
+            try
+            {
+                for (int i = 0; i < embedded_urls.length; i++)
+                {
+                    if (!embedded_urls [i].getProtocol ().equals (handler.getKey ()))
+                    {
+                        continue;
+                    }
+
+                    if (source_fingerprint == null)
+                    {
+                        // Already computed by the command index on this run
+                        source_fingerprint = CommandIndex.fingerprint (source_jar);
+                    }
+
+                    try
+                    {
+                        String entry_key = source_fingerprint + "!" + entry_name (embedded_urls [i]);
+                        Path jar_path = find_cached_jar (entry_key);
+
+                        if (jar_path == null)
+                        {
+                            if (zip == null)
+                            {
+                                zip = new ZipFile (source_jar);
+                            }
+
+                            ZipEntry entry = zip.getEntry (entry_name (embedded_urls [i]));
+
+                            if (entry == null)
+                            {
+                                continue;
+                            }
+
+                            jar_path = extract (zip, entry);
+                            String file_name = jar_path.getFileName ().toString ();
+                            set_verified (entry_key, file_name.substring (0, file_name.length () - 4), jar_path);
+                        }
+                        file_urls [i] = jar_path.toUri ().toURL ();
+                    }
+                    catch (IOException e)
+                    {
+                        log.debug ("Exception caching {}: {}", embedded_urls [i], e.toString ());
+                    }
+                }
+            }
+            finally
+            {
+                if (zip != null)
+                {
+                    try
+                    {
+                        zip.close ();
+                    }
+                    catch (IOException ignore) {};
+                }
+            }
+        }
+        save ();
+        return (file_urls);
+    }
+
+    private void save ()
+    {
+        if (!dirty)
+        {
+            return;
+        }
+
+        // Forget the jars the cleanup removed, older source jars go away with them
+        for (String entry_key: entry_to_sha.stringPropertyNames ())
+        {
+            String sha = entry_to_sha.getProperty (entry_key).split (":") [0];
+
+            if (!Files.exists (cache_path.resolve (sha + ".jar")))
+            {
+                entry_to_sha.remove (entry_key);
+            }
+        }
+
+        try
+        {
+            Path temp_path = Files.createTempFile (cache_path, MAP_FILENAME, ".tmp");
+
+            try
+            {
+                try (OutputStream os = Files.newOutputStream (temp_path))
+                {
+                    entry_to_sha.store (os, "ladmin jar cache -- automatically generated");
+                }
+                Files.move (temp_path, map_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                dirty = false;
+            }
+            finally
+            {
+                Files.deleteIfExists (temp_path);
+            }
+        }
+        catch (IOException e)
+        {
+            log.debug ("Exception saving {}: {}", map_path, e.toString ());
+        }
+    }
+
+    private void cleanup ()
+    {
+        long expired = System.currentTimeMillis () - RETENTION_TIME;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream (cache_path, "*.{jar,tmp}"))
+        {
+            for (Path path: stream)
+            {
+                if (Files.getLastModifiedTime (path).toMillis () < expired)
+                {
+                    log.debug ("Removing unused {}", path);
+                    Files.deleteIfExists (path);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            log.debug ("Exception cleaning up {}: {}", cache_path, e.toString ());
+        }
+
+        try
+        {
+            Files.deleteIfExists (cache_path.resolve (OLD_MAP_FILENAME));
+        }
+        catch (IOException ignore) {};
+    }
+
+    void startCleanup ()
+    {
+        Path stamp_path = cache_path.resolve (CLEANUP_STAMP);
+
+        try
+        {
+            if (Files.exists (stamp_path)
+                && Files.getLastModifiedTime (stamp_path).toMillis () + CLEANUP_INTERVAL > System.currentTimeMillis ())
+            {
+                // Cleaned up recently
+                return;
+            }
+
+            if (!Files.exists (stamp_path))
+            {
+                Files.createFile (stamp_path);
+            }
+            Files.setLastModifiedTime (stamp_path, FileTime.fromMillis (System.currentTimeMillis ()));
+        }
+        catch (IOException e)
+        {
+            return;
+        }
+
+        // Stale entries will simply be extracted again, so the map doesn't need fixing
+        Thread cleanup_thread = ServiceThreads.newThread (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                cleanup ();
+            }
+        }, "Jar cache cleanup");
+        cleanup_thread.setPriority (Thread.MIN_PRIORITY);
+        cleanup_thread.start ();
+    }
+}
+
+// EOF
@@ -16,32 +16,25 @@
 
 package org.lucidj.ladmin.main;
 
+import org.lucidj.libladmin.shared.CommandExit;
 import org.lucidj.libladmin.shared.FrameworkLocator;
 import org.lucidj.libladmin.shared.TinyLog;
 
 import java.awt.GraphicsEnvironment;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.*;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
-import java.util.stream.Stream;
 
 public class Main
 {
@@ -54,6 +47,7 @@ public class Main
     private static List<URL> jar_commands_list;
     private static URL command_jar_url;
     private static String command_main_class;
+    private static boolean command_found_inside_framework;
 
     private final static boolean RUNNING_ON_WINDOWS = System.getProperty ("os.name").startsWith ("Win");
 
@@ -94,6 +88,24 @@ public class Main
         });
     }
 
+    private static String get_handler (URI source_jar)
+    {
+        // Build fake protocol handler using a prefix plus jar hash code
+        String handler = "jarjar-" + Integer.toHexString (source_jar.hashCode ());
+
+        if (handler_to_uri.put (handler, source_jar) == null)
+        {
+            log.debug ("Protocol '{}' -> {}", handler, source_jar);
+        }
+        return (handler);
+    }
+
+    static URL get_embedded_jar_url (URI source_jar, String path)
+        throws MalformedURLException
+    {
+        return (new URL (get_handler (source_jar) + ":" + path));
+    }
+
     static List<URL> locate_jars (URI source_jar, String dir)
     {
         // These jars are NOT optional
@@ -102,68 +114,74 @@ public class Main
 
     static List<URL> locate_jars (URI source_jar, String dir, boolean optional)
     {
-        URI embedded_dir;
+        StartupProfiler.Phase phase = StartupProfiler.begin ("locate_jars " + dir);
+
+        try
+        {
+            return (list_embedded_jars (source_jar, dir, optional));
+        }
+        finally
+        {
+            phase.end ();
+        }
+    }
+
+    private static List<URL> list_embedded_jars (URI source_jar, String dir, boolean optional)
+    {
         List<URL> found_jars = new ArrayList<> ();
         int log_level = optional? TinyLog.LOG_INFO: TinyLog.LOG_ERROR;
+        NestedJar source;
 
         try
         {
-            embedded_dir = new URI ("jar:" + source_jar + "!" + dir);
+            // The central directory is parsed once, then shared by every lookup
+            source = NestedJar.open (new File (source_jar));
         }
-        catch (URISyntaxException e)
+        catch (IOException | IllegalArgumentException e)
         {
-            // We return an empty list on error
-            log.log (log_level, "Embedded directory {} not found: {}", dir, e.toString());
+            // Here we may have a serious issue, so we return null
+            log.log (log_level, "Exception searching bundles on {}: {}", source_jar, e.toString());
             return (optional? found_jars: null);
         }
 
-        // Build fake protocol handler using a prefix plus jar hash code
-        String handler = "jarjar-" + Integer.toHexString (source_jar.hashCode ());
-        handler_to_uri.put (handler, source_jar);
-        log.debug ("Protocol '{}' -> {}", handler, source_jar);
+        String handler = get_handler (source_jar);
+        String dir_prefix = dir.substring (1) + "/";
+        boolean dir_found = false;
 
-        try (FileSystem jar_fs = FileSystems.newFileSystem (embedded_dir, Collections.emptyMap ()))
-        {
-            Path embedded_dir_path = jar_fs.getPath (dir);
+        //------------------
+        // List dir entries
+        //------------------
 
-            if (embedded_dir_path == null)
+        for (NestedJar.Entry entry: source.getEntries ())
+        {
+            if (!entry.name.startsWith (dir_prefix))
             {
-                // We return an empty list on error
-                log.log (log_level, "Embedded directory {} not available", dir);
-                return (optional? found_jars: null);
+                continue;
             }
-            Stream<Path> walk = Files.walk (embedded_dir_path, 1);
 
-            //------------------
-            // List dir entries
-            //------------------
+            String embedded_jar_filename = entry.name.substring (dir_prefix.length ());
+            dir_found = true;
 
-            for (Iterator<Path> it = walk.iterator(); it.hasNext();)
+            if (embedded_jar_filename.endsWith (".jar") && embedded_jar_filename.indexOf ('/') == -1)
             {
-                Path embedded_jar = it.next ();
-                String embedded_jar_filename = embedded_jar.getFileName ().toString ();
-
-                if (embedded_jar_filename.endsWith (".jar"))
+                try
                 {
-                    // Install and start the embedded bundles
-                    try
-                    {
-                        // I'm starting to think I like ugly tricks...
-                        String jar_embedded_uri = handler + ":" + dir + "/" + embedded_jar.getFileName();
-                        URL jar_embedded_url = new URL (jar_embedded_uri);
-                        found_jars.add (jar_embedded_url);
-                    }
-                    catch (MalformedURLException e)
-                    {
-                        log.warn ("Exception mapping {}: {}", embedded_jar.getFileName(), e.toString());
-                    }
+                    // I'm starting to think I like ugly tricks...
+                    String jar_embedded_uri = handler + ":" + dir + "/" + embedded_jar_filename;
+                    URL jar_embedded_url = new URL (jar_embedded_uri);
+                    found_jars.add (jar_embedded_url);
+                }
+                catch (MalformedURLException e)
+                {
+                    log.warn ("Exception mapping {}: {}", embedded_jar_filename, e.toString());
                 }
             }
         }
-        catch (IOException e)
+
+        if (!dir_found)
         {
-            // Here we may have a serious issue, so we return null
-            log.log (log_level, "Exception searching bundles on {}: {}", embedded_dir, e.toString());
+            // We return an empty list on error
+            log.log (log_level, "Embedded directory {} not available on {}", dir, source_jar);
             return (optional? found_jars: null);
         }
 
@@ -174,6 +192,25 @@ public class Main
         return (found_jars);
     }
 
+    static NestedJar get_embedded_jar (URL jar_url)
+        throws IOException
+    {
+        URI source_jar = handler_to_uri.get (jar_url.getProtocol ());
+
+        if (source_jar == null)
+        {
+            throw new IOException ("Unknown jar protocol: " + jar_url);
+        }
+
+        NestedJar jar = NestedJar.open (new File (source_jar)).getNestedJar (jar_url.getPath ());
+
+        if (jar == null)
+        {
+            throw new FileNotFoundException (jar_url.toString ());
+        }
+        return (jar);
+    }
+
     private static URL get_jar_by_name (String name)
     {
         for (URL url: jar_commands_list)
@@ -199,17 +236,18 @@ public class Main
         return (null);
     }
 
-    private static String search_main_class_by_name (ClassLoader classloader, URL jar_url, String class_name)
+    private static String search_main_class_by_name (URL jar_url, String class_name)
     {
         log.debug ("jar_url={} class_name={}", jar_url, class_name);
 
-        try (JarInputStream jar_is = new JarInputStream (jar_url.openStream()))
+        try
         {
-            JarEntry jar_entry;
+            // Only the embedded jar central directory is needed to list the classes
+            NestedJar jar = get_embedded_jar (jar_url);
 
-            while ((jar_entry = jar_is.getNextJarEntry()) != null)
+            for (NestedJar.Entry jar_entry: jar.getEntries ())
             {
-                String entry_name = jar_entry.getName ();
+                String entry_name = jar_entry.name;
 
                 int dot_class_index = entry_name.lastIndexOf (".class");
 
@@ -233,8 +271,9 @@ public class Main
                 // We make great effor to keep embedded jars isolated, but we DON'T TRY
                 // to support multiple jars with the _same_ main class name. We would need
                 // to isolate the command jars during the search phase, which is overkill.
-                // The condition below will be true only if the class have a valid main().
-                if (get_jar_entry_point (classloader, full_class_name) != null)
+                // The condition below will be true only if the class have a valid main(),
+                // checked straight on the class file so nothing gets loaded or initialized.
+                if (ClassFileInspector.hasMainMethod (jar.read (jar_entry), ClassFileInspector.sourceOf (jar)))
                 {
                     log.debug ("Found {}", full_class_name);
                     return (full_class_name);
@@ -248,11 +287,16 @@ public class Main
         return (null);
     }
 
-    private static Method get_jar_entry_point (ClassLoader classloader, String class_name)
+    static Method get_jar_entry_point (ClassLoader classloader, String class_name)
     {
         Class<?> cls;
         Method method;
 
+        if (class_name == null)
+        {
+            return (null);
+        }
+
         try
         {
             cls = classloader.loadClass (class_name);
@@ -284,18 +328,28 @@ public class Main
         return (null);
     }
 
-    private static String get_jar_main_class (ClassLoader classloader, URL jar_url)
+    private static String get_jar_main_class (URL jar_url)
     {
-        try (JarInputStream jar_is = new JarInputStream (jar_url.openStream ()))
+        try
         {
-            Manifest jar_mf = jar_is.getManifest ();
+            NestedJar jar = get_embedded_jar (jar_url);
+            Manifest jar_mf = jar.getManifest ();
 
             if (jar_mf != null)
             {
                 Attributes attrs = jar_mf.getMainAttributes ();
                 String main_class = attrs.getValue ("Main-Class");
 
-                if (get_jar_entry_point (classloader, main_class) != null)
+                if (main_class == null)
+                {
+                    return (null);
+                }
+
+                NestedJar.Entry class_entry = jar.getEntry (main_class.replace ('.', '/') + ".class");
+
+                // A Main-Class living on some library can't be inspected here,
+                // so it's trusted and get_jar_entry_point() validates it on run
+                if (class_entry == null || ClassFileInspector.hasMainMethod (jar.read (class_entry), ClassFileInspector.sourceOf (jar)))
                 {
                     log.debug ("jar_url={} main_class={}", jar_url, main_class);
                     return (main_class);
@@ -306,8 +360,212 @@ public class Main
         return (null);
     }
 
+    private static boolean locate_command_on_index (CommandIndex command_index, String command,
+                                                    URI root_jar_uri, File framework_jar)
+    {
+        CommandIndex.Entry entry = command_index.lookup (command);
+
+        if (entry == null || (entry.inside_framework && framework_jar == null))
+        {
+            return (false);
+        }
+
+        URI source_jar = entry.inside_framework? framework_jar.toURI (): root_jar_uri;
+
+        try
+        {
+            jar_libraries_list = new ArrayList<> ();
+
+            for (String library: entry.libraries)
+            {
+                jar_libraries_list.add (get_embedded_jar_url (source_jar, library));
+            }
+            command_jar_url = get_embedded_jar_url (source_jar, entry.jar_path);
+        }
+        catch (MalformedURLException e)
+        {
+            log.debug ("Invalid command index entry for {}: {}", command, e.toString ());
+            return (false);
+        }
+
+        command_main_class = entry.main_class;
+        command_found_inside_framework = entry.inside_framework;
+        return (true);
+    }
+
+    private static List<URL> get_root_libraries (URI root_jar_uri)
+    {
+        CommandManifest manifest = CommandManifest.load (root_jar_uri);
+
+        if (manifest == null)
+        {
+            return (locate_jars (root_jar_uri, "/libraries", true));
+        }
+
+        List<URL> libraries = new ArrayList<> ();
+
+        for (String library: manifest.getLibraries ())
+        {
+            try
+            {
+                libraries.add (get_embedded_jar_url (root_jar_uri, library));
+            }
+            catch (MalformedURLException e)
+            {
+                log.warn ("Invalid library {} on {}: {}", library, root_jar_uri, e.toString ());
+            }
+        }
+        return (libraries);
+    }
+
+    private static boolean locate_command_on_plugins (String command, URI root_jar_uri, File jar_dir)
+    {
+        String[] found = PluginDirectory.open (jar_dir).lookup (command);
+
+        if (found == null)
+        {
+            return (false);
+        }
+
+        try
+        {
+            // External plugins are plain files, no nested jar access needed
+            command_jar_url = new File (found [0]).toURI ().toURL ();
+        }
+        catch (MalformedURLException e)
+        {
+            log.warn ("Invalid plugin {}: {}", found [0], e.toString ());
+            return (false);
+        }
+
+        // Plugins run on top of the ladmin libraries
+        jar_libraries_list = get_root_libraries (root_jar_uri);
+        command_main_class = found [1];
+        command_found_inside_framework = false;
+
+        log.debug ("Found command_jar_url => {} (plugin)", command_jar_url);
+        log.debug ("Found command_main_class => {} (plugin)", command_main_class);
+        return (true);
+    }
+
+    private static boolean locate_command (String command, URI root_jar_uri, File framework_jar)
+    {
+        command_found_inside_framework = false;
+
+        if (framework_jar != null)
+        {
+            // We have at least 1 framework jar available, try the latest
+            URI framework_jar_uri = framework_jar.toURI ();
+            log.debug ("Locating command '{}' inside {}", command, framework_jar_uri);
+            command_found_inside_framework = locate_command_on_jar (command, framework_jar_uri, true);
+        }
+
+        // The commands found inside the framework jar have precedence over the built-in commands
+        if (!command_found_inside_framework)
+        {
+            log.debug ("Locating command '{}' inside {}", command, root_jar_uri);
+            return (locate_command_on_jar (command, root_jar_uri, false));
+        }
+        return (true);
+    }
+
+    private static void store_command_on_index (CommandIndex command_index, String command)
+    {
+        if (command_main_class == null)
+        {
+            // A jar was found by name, but without a usable main class
+            return;
+        }
+
+        List<String> libraries = new ArrayList<> ();
+
+        for (URL url: jar_libraries_list)
+        {
+            libraries.add (url.getPath ());
+        }
+
+        String jar_path = command_jar_url.getPath ();
+        command_index.put (command, command_found_inside_framework, jar_path, command_main_class, libraries);
+        command_index.save ();
+    }
+
+    private static URL[] get_run_command_jars (File framework_jar)
+    {
+        // Command jar first, preceded by the framework if the command is inside it
+        List<URL> command_jars = new ArrayList<> ();
+        command_jars.add (command_jar_url);
+
+        if (command_found_inside_framework)
+        {
+            try
+            {
+                command_jars.add (0, framework_jar.toURI ().toURL ());
+            }
+            catch (MalformedURLException e)
+            {
+                System.err.println ("Error: Framework '" + framework_jar + "' generates " + e.toString());
+                CommandExit.exit (1);
+            }
+        }
+        return (command_jars.toArray (new URL [command_jars.size ()]));
+    }
+
+    private static URL[] get_run_libraries ()
+    {
+        return (jar_libraries_list.toArray (new URL [jar_libraries_list.size ()]));
+    }
+
+    private static ClassLoader create_run_classloader (URL[] command_jars, URL[] libraries)
+    {
+        // The libraries classloader is shared, only the command layer is new
+        return (CommandClassLoaders.newCommandLoader (command_jars, libraries, handler_to_uri));
+    }
+
+    private static boolean locate_command_on_manifest (CommandManifest manifest, String command, URI source_jar)
+    {
+        String[] found = manifest.lookup (command);
+
+        try
+        {
+            jar_libraries_list = new ArrayList<> ();
+
+            for (String library: manifest.getLibraries ())
+            {
+                jar_libraries_list.add (get_embedded_jar_url (source_jar, library));
+            }
+
+            if (found == null)
+            {
+                log.debug ("Command '{}' not listed on {} manifest", command, source_jar);
+                return (false);
+            }
+            command_jar_url = get_embedded_jar_url (source_jar, found [0]);
+            command_main_class = found [1];
+        }
+        catch (MalformedURLException e)
+        {
+            log.warn ("Invalid command manifest on {}: {}", source_jar, e.toString ());
+            return (false);
+        }
+
+        log.debug ("Found command_jar_url => {} (manifest)", command_jar_url);
+        log.debug ("Found command_main_class => {} (manifest)", command_main_class);
+        return (true);
+    }
+
     private static boolean locate_command_on_jar (String command, URI source_jar, boolean optional)
     {
+        // Jars built with a command manifest don't need any directory walking
+        CommandManifest manifest = CommandManifest.load (source_jar);
+
+        if (manifest != null)
+        {
+            StartupProfiler.Phase phase = StartupProfiler.begin ("manifest lookup");
+            boolean found = locate_command_on_manifest (manifest, command, source_jar);
+            phase.end ();
+            return (found);
+        }
+
         jar_libraries_list = locate_jars (source_jar, "/libraries", optional);
         List<URL> plugins_cmd_list = locate_jars (source_jar, "/plugins", true);
         List<URL> internal_cmd_list = locate_jars (source_jar, "/commands", optional);
@@ -316,18 +574,15 @@ public class Main
         if (jar_libraries_list == null || plugins_cmd_list == null || internal_cmd_list == null)
         {
             // Abort - the error message was already printed
-            System.exit (1);
+            CommandExit.exit (1);
         }
 
         // Command plugins have search order precedence over the internal commands
         jar_commands_list = new ArrayList<> (plugins_cmd_list);
         jar_commands_list.addAll (internal_cmd_list);
 
-        // We create a classloader with all the jars for command lookup
-        List<URL> jar_full_list = new ArrayList<> (jar_libraries_list);
-        jar_full_list.addAll (jar_commands_list);
-        URL[] jar_full_array = jar_full_list.toArray (new URL [jar_full_list.size ()]);
-        ClassLoader full_classloader = new URLClassLoader (jar_full_array);
+        // No classloader is needed for the lookup: main() is found by reading the class
+        // files, so the only class ever loaded is the command itself on the run classloader
 
         // Heuristics
         //
@@ -345,13 +600,15 @@ public class Main
         // Search by jar name
         //--------------------
 
+        StartupProfiler.Phase phase = StartupProfiler.begin ("jar-name lookup");
         command_jar_url = get_jar_by_name (command);
         command_main_class = null;
 
         if (command_jar_url != null)
         {
-            command_main_class = get_jar_main_class (full_classloader, command_jar_url);
+            command_main_class = get_jar_main_class (command_jar_url);
         }
+        phase.end ();
 
         //----------------------
         // Search by class name
@@ -359,14 +616,17 @@ public class Main
 
         if (command_main_class == null)
         {
+            phase = StartupProfiler.begin ("main-class search");
+
             for (URL jar_url: jar_commands_list)
             {
-                if ((command_main_class = search_main_class_by_name (full_classloader, jar_url, command)) != null)
+                if ((command_main_class = search_main_class_by_name (jar_url, command)) != null)
                 {
                     command_jar_url = jar_url;
                     break;
                 }
             }
+            phase.end ();
         }
 
         log.debug ("Found command_jar_url => {}", command_jar_url);
@@ -374,64 +634,58 @@ public class Main
         return (command_jar_url != null);
     }
 
-    public static void main (String[] args)
+    // A command ready to run: the run classloader is kept inside main
+    static class ResolvedCommand
     {
-        long start_timestamp = System.currentTimeMillis ();
-
-        String command;
-        String[] command_args;
-        URI root_jar_uri = null;
+        String name;
+        URL jar_url;
+        String main_class;
+        URL[] command_jars;
+        URL[] libraries;
+        Method main;
+
+        // The same command on a new command classloader, so no static state
+        // is left from previous runs; the libraries classloader is still shared
+        ResolvedCommand reload ()
+        {
+            ResolvedCommand reloaded = new ResolvedCommand ();
+            reloaded.name = name;
+            reloaded.jar_url = jar_url;
+            reloaded.main_class = main_class;
+            reloaded.command_jars = command_jars;
+            reloaded.libraries = libraries;
+            reloaded.main = get_jar_entry_point (create_run_classloader (command_jars, libraries), main_class);
+            return (reloaded.main == null? null: reloaded);
+        }
+    }
 
+    static URI get_root_jar_uri ()
+    {
         try
         {
-            root_jar_uri = root_jar_url.toURI ();
+            return (root_jar_url.toURI ());
         }
         catch (URISyntaxException e)
         {
             System.err.println ("Error: Unable to get '" + root_jar_url + "' URI location");
-            System.exit (1);
+            CommandExit.exit (1);
+            return (null);
         }
+    }
 
-        if (args.length == 0)
-        {
-            String root_filename = root_jar_url.getFile ();
-            String prog_name = root_filename.substring (root_filename.lastIndexOf ('/') + 1);
-
-            // No args anyway
-            command_args = args;
-
-            // Strip .exe if needed
-            if (RUNNING_ON_WINDOWS)
-            {
-                if (prog_name.substring (prog_name.length () - 4).equalsIgnoreCase (".exe"))
-                {
-                    prog_name = prog_name.substring (0, prog_name.length () - 4);
-                }
-            }
+    private static void command_not_found (String command)
+    {
+        System.err.println ("Error: Command '" + command + "' not found");
+        CommandCatalogue.printSuggestions (command);
+        CommandExit.exit (1);
+    }
 
-            if (!prog_name.equals (DEFAULT_PROG_NAME))
-            {
-                // The program name is not the default, use it as a command
-                command = prog_name;
-            }
-            else if (!GraphicsEnvironment.isHeadless () || RUNNING_ON_WINDOWS)
-            {
-                // We should have a GUI available
-                command = "gui";
-            }
-            else
-            {
-                // We need to scan all command jars, looking for commands and print them
-                System.out.println ("TODO: Print command list and help");
-                return;
-            }
-        }
-        else
-        {
-            // Extract the command we should run and shift the arguments
-            command = args [0];
-            command_args = Arrays.copyOfRange (args, 1, args.length);
-        }
+    // Command discovery shares the static state above, so it's serialized
+    static synchronized ResolvedCommand resolve_command (String command)
+    {
+        StartupProfiler.Phase phase = StartupProfiler.begin ("uri resolution");
+        URI root_jar_uri = get_root_jar_uri ();
+        phase.end ();
 
         //-----------------------------------------------------------------
         // Locate the desired command inside this jar or the framework jar
@@ -440,89 +694,115 @@ public class Main
         // We assume all frameworks located alongside ladmin
         File jar_file = new File (root_jar_uri);
         File jar_dir = jar_file.getParentFile ();
+        phase = StartupProfiler.begin ("framework location");
         File[] available_framework_jars = FrameworkLocator.locateFrameworks (jar_dir);
-        boolean command_found_inside_framework = false;
-
-        if (available_framework_jars != null)
-        {
-            // We have at least 1 framework jar available, try the latest
-            URI framework_jar = available_framework_jars [0].toURI();
-            log.debug ("Locating command '{}' inside {}", command, framework_jar);
-            command_found_inside_framework = locate_command_on_jar (command, framework_jar, true);
-        }
-
-        // The commands found inside the framework jar have precedence over the built-in commands
-        if (!command_found_inside_framework)
+        File framework_jar = (available_framework_jars != null)? available_framework_jars [0]: null;
+        phase.end ();
+
+        // External plugins have precedence over everything embedded
+        phase = StartupProfiler.begin ("plugin lookup");
+        boolean command_found_on_plugins = locate_command_on_plugins (command, root_jar_uri, jar_dir);
+        phase.end ();
+
+        // Then the command index, it avoids scanning any embedded jar
+        phase = StartupProfiler.begin ("command index");
+        CommandIndex command_index = new CommandIndex (jar_file, framework_jar);
+        boolean command_found_on_index = !command_found_on_plugins
+            && locate_command_on_index (command_index, command, root_jar_uri, framework_jar);
+        phase.end ();
+
+        if (!command_found_on_plugins && !command_found_on_index)
         {
-            log.debug ("Locating command '{}' inside {}", command, root_jar_uri);
+            phase = StartupProfiler.begin ("command search");
 
-            if (!locate_command_on_jar (command, root_jar_uri, false))
+            if (!locate_command (command, root_jar_uri, framework_jar))
             {
-                System.err.println ("Error: Command '" + command + "' not found");
-                System.exit (1);
+                command_not_found (command);
             }
+            store_command_on_index (command_index, command);
+            phase.end ();
         }
 
         //------------------------------------------------------------------------
         // Run main() with a classpath composed only of libraries and command jar
         //------------------------------------------------------------------------
 
-        // Search class path: command jar first, followed by libraries
-        List<URL> jar_run_list = new ArrayList<> (jar_libraries_list);
-        jar_run_list.add (0, command_jar_url);
+        phase = StartupProfiler.begin ("classloader creation");
+        URL[] run_command_jars = get_run_command_jars (framework_jar);
+        URL[] run_libraries = get_run_libraries ();
+        ClassLoader run_classloader = create_run_classloader (run_command_jars, run_libraries);
+        phase.end ();
 
-        // If the command is inside the framework, it takes search precedence
-        if (command_found_inside_framework)
+        phase = StartupProfiler.begin ("main() reflection");
+        Method main = get_jar_entry_point (run_classloader, command_main_class);
+        phase.end ();
+
+        if (main == null && command_found_on_index)
         {
-            try
-            {
-                jar_run_list.add (0, available_framework_jars [0].toURI ().toURL ());
-            }
-            catch (MalformedURLException e)
+            // The index entry went stale somehow, drop it and do the full scan
+            log.debug ("Command index entry for '{}' is invalid, rescanning", command);
+            command_index.remove (command);
+
+            if (!locate_command (command, root_jar_uri, framework_jar))
             {
-                System.err.println ("Error: Framework '" + available_framework_jars [0] + "' generates " + e.toString());
-                System.exit (1);
+                command_index.save ();
+                command_not_found (command);
             }
+            store_command_on_index (command_index, command);
+            run_command_jars = get_run_command_jars (framework_jar);
+            run_libraries = get_run_libraries ();
+            run_classloader = create_run_classloader (run_command_jars, run_libraries);
+            main = get_jar_entry_point (run_classloader, command_main_class);
         }
 
-        // Create the classloader
-        URL[] jar_run_array = jar_run_list.toArray (new URL [jar_run_list.size ()]);
-        URLClassLoader run_classloader = new URLClassLoader (jar_run_array);
-        Method main = get_jar_entry_point (run_classloader, command_main_class);
-
+        log.debug ("Command discovery read {} bytes from {} jars", NestedJar.getBytesRead (), NestedJar.getJarsOpened ());
         log.debug ("Will invoke method: {}", main);
         log.debug ("Using classloader: {}", run_classloader);
-        for (int i = 0; i < jar_run_array.length; i++)
-        {
-            log.debug ("Classpath URL[{}]: {}", i, jar_run_array [i]);
-        }
 
         if (main == null)
         {
             System.err.println ("Error: Valid main() not found on: " + command_main_class);
-            System.exit (1);
+            CommandExit.exit (1);
         }
 
-        long loading_time = System.currentTimeMillis () - start_timestamp;
-        log.info ("Loading time: {}ms", String.format ("%d.%03d", loading_time / 1000, loading_time % 1000));
+        ResolvedCommand resolved = new ResolvedCommand ();
+        resolved.name = command;
+        resolved.jar_url = command_jar_url;
+        resolved.main_class = command_main_class;
+        resolved.command_jars = run_command_jars;
+        resolved.libraries = run_libraries;
+        resolved.main = main;
+        return (resolved);
+    }
+
+    static void run_command (ResolvedCommand resolved, String[] command_args)
+    {
+        StartupProfiler.Phase phase = StartupProfiler.begin ("command runtime");
 
         try
         {
-            main.invoke (null, new Object[] { command_args });
+            resolved.main.invoke (null, new Object[] { command_args });
+            phase.end ();
         }
         catch (IllegalAccessException e)
         {
             System.err.println ("Error: Unable to invoke main(): " + e.toString ());
-            System.exit (1);
+            CommandExit.exit (1);
         }
         catch (InvocationTargetException e)
         {
             // TODO: STORE LAST EXCEPTION INFO TO BE ABLE TO 'ladmin report'
             Throwable cause = e.getCause ();
+
+            if (cause instanceof CommandInvocation.ExitTrap)
+            {
+                // A CommandExit.exit() inside the daemon or batch, it's no crash
+                throw (CommandInvocation.ExitTrap)cause;
+            }
             System.err.println ("---");
-            System.err.println ("Exception thrown by " + command + ": " + cause.toString ());
-            System.err.println ("Module : " + command_jar_url);
-            System.err.println ("Class  : " + command_main_class);
+            System.err.println ("Exception thrown by " + resolved.name + ": " + cause.toString ());
+            System.err.println ("Module : " + resolved.jar_url);
+            System.err.println ("Class  : " + resolved.main_class);
             System.err.print   ("Args   :");
             if (command_args.length == 0)
             {
@@ -537,8 +817,112 @@ public class Main
                 System.err.println ();
             }
             cause.printStackTrace (System.err);
-            System.exit (1);
+            CommandExit.exit (1);
+        }
+    }
+
+    public static void main (String[] args)
+    {
+        long start_timestamp = System.currentTimeMillis ();
+
+        // Also removes the CDS log of the launcher, before anything can exit
+        StartupProfiler.getCdsMode ();
+
+        String command;
+        String[] command_args;
+
+        if (args.length > 0 && args [0].equals (StartupProfiler.PROFILE_OPTION))
+        {
+            // Profiling stays local, it's about this very JVM startup
+            StartupProfiler.enable ();
+            args = Arrays.copyOfRange (args, 1, args.length);
+        }
+
+        if (args.length > 0 && args [0].equals (Daemon.DAEMON_OPTION))
+        {
+            // Resident mode, serving commands until killed
+            System.exit (Daemon.serve ());
+        }
+
+        if (args.length > 0 && args [0].equals (Batch.BATCH_COMMAND))
+        {
+            // Many commands on this same JVM
+            System.exit (Batch.run (Arrays.copyOfRange (args, 1, args.length)));
+        }
+
+        if (args.length > 0 && (args [0].equals (CommandCatalogue.HELP_COMMAND)
+            || args [0].equals (CommandCatalogue.COMMANDS_COMMAND)))
+        {
+            // Listed from the command catalogue, no command class gets loaded
+            System.exit (CommandCatalogue.printHelp (DEFAULT_PROG_NAME, Arrays.copyOfRange (args, 1, args.length)));
+        }
+
+        // Interactive commands want the terminal of this very process
+        boolean interactive = System.getProperty ("ladmin.profile", "default").equals ("interactive");
+
+        if (args.length > 0 && DaemonClient.isEnabled () && !StartupProfiler.isEnabled () && !interactive)
+        {
+            // Use the resident ladmin when available, otherwise run locally
+            Integer exit_code = DaemonClient.run (args);
+
+            if (exit_code != null)
+            {
+                System.exit (exit_code);
+            }
+        }
+
+        if (args.length == 0)
+        {
+            String root_filename = root_jar_url.getFile ();
+            String prog_name = root_filename.substring (root_filename.lastIndexOf ('/') + 1);
+
+            // No args anyway
+            command_args = args;
+
+            // Strip .exe if needed
+            if (RUNNING_ON_WINDOWS)
+            {
+                if (prog_name.substring (prog_name.length () - 4).equalsIgnoreCase (".exe"))
+                {
+                    prog_name = prog_name.substring (0, prog_name.length () - 4);
+                }
+            }
+
+            if (!prog_name.equals (DEFAULT_PROG_NAME))
+            {
+                // The program name is not the default, use it as a command
+                command = prog_name;
+            }
+            else if (!GraphicsEnvironment.isHeadless () || RUNNING_ON_WINDOWS)
+            {
+                // We should have a GUI available
+                command = "gui";
+            }
+            else
+            {
+                // Print every command available, from the command catalogue
+                System.exit (CommandCatalogue.printHelp (prog_name, args));
+                return;
+            }
+        }
+        else
+        {
+            // Extract the command we should run and shift the arguments
+            command = args [0];
+            command_args = Arrays.copyOfRange (args, 1, args.length);
         }
+
+        ResolvedCommand resolved = resolve_command (command);
+
+        // The launcher script tells whether the class data sharing archive was used and the JVM profile
+        long loading_time = System.currentTimeMillis () - start_timestamp;
+        log.info ("Loading time: {}ms (cds: {}, profile: {})", String.format ("%d.%03d", loading_time / 1000, loading_time % 1000),
+            StartupProfiler.getCdsMode (), System.getProperty ("ladmin.profile", "default"));
+
+        // The launcher only knows the command profiles after the catalogue is built once
+        CommandCatalogue.ensureProfiles ();
+
+        run_command (resolved, command_args);
     }
 }
 
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.main;
+
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+//--------------------------------------------------------------------------------
+// A jar held entirely on a ByteBuffer: either a memory mapped file, a slice of
+// the mapped outer jar (STORED embedded jars) or the inflated bytes of an
+// embedded jar (DEFLATED embedded jars). The central directory is parsed once
+// into a name -> entry map, so every lookup is a hash probe and every read
+// goes straight to the entry data. Jars are cached for the whole process,
+// file jars as long as their size and mtime don't change.
+//--------------------------------------------------------------------------------
+class NestedJar
+{
+    private final static TinyLog log = new TinyLog (NestedJar.class);
+
+    private final static int LOCAL_HEADER_SIG = 0x04034b50;
+    private final static int CENTRAL_HEADER_SIG = 0x02014b50;
+    private final static int END_HEADER_SIG = 0x06054b50;
+    private final static int END_HEADER_SIZE = 22;
+    private final static int MAX_COMMENT_SIZE = 0xffff;
+
+    final static int METHOD_STORED = 0;
+    final static int METHOD_DEFLATED = 8;
+
+    private final static Map<String, NestedJar> file_jars = new ConcurrentHashMap<> ();
+    private final static AtomicLong bytes_read = new AtomicLong ();
+    private final static AtomicInteger jars_opened = new AtomicInteger ();
+
+    private final String name;
+    private final ByteBuffer data;
+    private final int base_offset;
+    private final Map<String, Entry> entries;
+    private final Map<String, NestedJar> nested_jars = new ConcurrentHashMap<> ();
+    private long file_length;
+    private long file_mtime;
+
+    static class Entry
+    {
+        String name;
+        int method;
+        long crc;
+        int compressed_size;
+        int size;
+        int local_offset;
+    }
+
+    private NestedJar (String name, ByteBuffer data)
+        throws IOException
+    {
+        this.name = name;
+        this.data = data.asReadOnlyBuffer ().order (ByteOrder.LITTLE_ENDIAN);
+
+        int end_pos = find_end_header ();
+        int cen_size = this.data.getInt (end_pos + 12);
+        int cen_offset = this.data.getInt (end_pos + 16);
+
+        // Jars may have a prefix (like our ladmin launcher script), so the
+        // offsets are relative to the real zip start, like ZipFile does
+        this.base_offset = end_pos - cen_size - cen_offset;
+        this.entries = Collections.unmodifiableMap (read_central_directory (base_offset + cen_offset, cen_size));
+        bytes_read.addAndGet (cen_size + END_HEADER_SIZE);
+        jars_opened.incrementAndGet ();
+        log.trace ("Indexed {}: {} entries", name, entries.size ());
+    }
+
+    static NestedJar open (File file)
+        throws IOException
+    {
+        String key = file.getCanonicalPath ();
+        NestedJar jar = file_jars.get (key);
+        long length = file.length ();
+        long mtime = file.lastModified ();
+
+        // A long running daemon sees jars being replaced: the index (and the
+        // mapping) of the old file must not be used for the new one. Anyone
+        // still holding the old jar keeps reading the old mapping
+        if (jar == null || jar.file_length != length || jar.file_mtime != mtime)
+        {
+            try (FileChannel channel = FileChannel.open (file.toPath (), StandardOpenOption.READ))
+            {
+                ByteBuffer mapped = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+                jar = new NestedJar (file.getPath (), mapped);
+            }
+            jar.file_length = length;
+            jar.file_mtime = mtime;
+            file_jars.put (key, jar);
+        }
+        return (jar);
+    }
+
+    private int find_end_header ()
+        throws ZipException
+    {
+        int limit = Math.max (0, data.limit () - END_HEADER_SIZE - MAX_COMMENT_SIZE);
+
+        for (int pos = data.limit () - END_HEADER_SIZE; pos >= limit; pos--)
+        {
+            if (data.getInt (pos) == END_HEADER_SIG)
+            {
+                return (pos);
+            }
+        }
+        throw new ZipException ("End header not found: " + name);
+    }
+
+    private Map<String, Entry> read_central_directory (int cen_pos, int cen_size)
+        throws ZipException
+    {
+        Map<String, Entry> entry_map = new LinkedHashMap<> ();
+        int pos = cen_pos;
+        int end = cen_pos + cen_size;
+
+        while (pos < end)
+        {
+            if (data.getInt (pos) != CENTRAL_HEADER_SIG)
+            {
+                throw new ZipException ("Invalid central directory on " + name);
+            }
+
+            Entry entry = new Entry ();
+            entry.method = data.getShort (pos + 10) & 0xffff;
+            entry.crc = data.getInt (pos + 16) & 0xffffffffL;
+            entry.compressed_size = data.getInt (pos + 20);
+            entry.size = data.getInt (pos + 24);
+            int name_len = data.getShort (pos + 28) & 0xffff;
+            int extra_len = data.getShort (pos + 30) & 0xffff;
+            int comment_len = data.getShort (pos + 32) & 0xffff;
+            entry.local_offset = data.getInt (pos + 42);
+
+            byte[] name_bytes = new byte [name_len];
+            ByteBuffer name_buffer = data.duplicate ();
+            name_buffer.position (pos + 46);
+            name_buffer.get (name_bytes);
+            entry.name = new String (name_bytes, StandardCharsets.UTF_8);
+
+            entry_map.put (entry.name, entry);
+            pos += 46 + name_len + extra_len + comment_len;
+        }
+        return (entry_map);
+    }
+
+    // Bytes actually read from jars (central directories and entries) by this process
+    static long getBytesRead ()
+    {
+        return (bytes_read.get ());
+    }
+
+    static int getJarsOpened ()
+    {
+        return (jars_opened.get ());
+    }
+
+    String getName ()
+    {
+        return (name);
+    }
+
+    Entry getEntry (String entry_name)
+    {
+        return (entries.get (entry_name));
+    }
+
+    Collection<Entry> getEntries ()
+    {
+        return (entries.values ());
+    }
+
+    private ByteBuffer get_data (Entry entry)
+        throws ZipException
+    {
+        int local_pos = base_offset + entry.local_offset;
+
+        if (data.getInt (local_pos) != LOCAL_HEADER_SIG)
+        {
+            throw new ZipException ("Invalid local header for " + entry.name + " on " + name);
+        }
+
+        int name_len = data.getShort (local_pos + 26) & 0xffff;
+        int extra_len = data.getShort (local_pos + 28) & 0xffff;
+        ByteBuffer entry_data = data.duplicate ();
+        entry_data.position (local_pos + 30 + name_len + extra_len);
+        entry_data.limit (entry_data.position () + entry.compressed_size);
+        return (entry_data.slice ().order (ByteOrder.LITTLE_ENDIAN));
+    }
+
+    byte[] read (Entry entry)
+        throws IOException
+    {
+        ByteBuffer entry_data = get_data (entry);
+        byte[] compressed = new byte [entry.compressed_size];
+        entry_data.get (compressed);
+        bytes_read.addAndGet (compressed.length);
+
+        if (entry.method == METHOD_STORED)
+        {
+            return (compressed);
+        }
+        else if (entry.method != METHOD_DEFLATED)
+        {
+            throw new ZipException ("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+
+        Inflater inflater = new Inflater (true);
+
+        try
+        {
+            byte[] inflated = new byte [entry.size];
+            inflater.setInput (compressed);
+
+            for (int count = 0; count < inflated.length; )
+            {
+                int inflated_count = inflater.inflate (inflated, count, inflated.length - count);
+
+                if (inflated_count == 0 && (inflater.finished () || inflater.needsInput ()))
+                {
+                    throw new ZipException ("Truncated entry " + entry.name + " on " + name);
+                }
+                count += inflated_count;
+            }
+            return (inflated);
+        }
+        catch (DataFormatException e)
+        {
+            throw new ZipException ("Invalid entry " + entry.name + " on " + name + ": " + e.getMessage ());
+        }
+        finally
+        {
+            inflater.end ();
+        }
+    }
+
+    // Reads straight from the buffer, no copy
+    private static class BufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        BufferInputStream (ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read ()
+        {
+            return (buffer.hasRemaining ()? buffer.get () & 0xff: -1);
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len)
+        {
+            if (len == 0)
+            {
+                return (0);
+            }
+
+            if (!buffer.hasRemaining ())
+            {
+                return (-1);
+            }
+
+            int count = Math.min (len, buffer.remaining ());
+            buffer.get (b, off, count);
+            return (count);
+        }
+
+        @Override
+        public long skip (long n)
+        {
+            int count = (int)Math.max (0, Math.min (n, buffer.remaining ()));
+            buffer.position (buffer.position () + count);
+            return (count);
+        }
+
+        @Override
+        public int available ()
+        {
+            return (buffer.remaining ());
+        }
+    }
+
+    InputStream getInputStream (Entry entry)
+        throws IOException
+    {
+        if (entry.method == METHOD_STORED)
+        {
+            // Stored entries are streamed from the mapped jar itself
+            bytes_read.addAndGet (entry.compressed_size);
+            return (new BufferInputStream (get_data (entry)));
+        }
+        return (new ByteArrayInputStream (read (entry)));
+    }
+
+    Manifest getManifest ()
+        throws IOException
+    {
+        Entry entry = getEntry (JarFile.MANIFEST_NAME);
+
+        if (entry == null)
+        {
+            return (null);
+        }
+
+        try (InputStream is = getInputStream (entry))
+        {
+            return (new Manifest (is));
+        }
+    }
+
+    // Returns the embedded jar at path, reading its bytes only once
+    NestedJar getNestedJar (String path)
+        throws IOException
+    {
+        String entry_name = path.startsWith ("/")? path.substring (1): path;
+        NestedJar jar = nested_jars.get (entry_name);
+
+        if (jar == null)
+        {
+            Entry entry = getEntry (entry_name);
+
+            if (entry == null)
+            {
+                return (null);
+            }
+
+            if (entry.method == METHOD_STORED)
+            {
+                // Zero copy: the embedded jar is a window on the outer jar
+                jar = new NestedJar (name + "!/" + entry_name, get_data (entry));
+            }
+            else
+            {
+                // Built without stored embedded jars, the whole jar is inflated on the heap
+                log.debug ("Inflating compressed embedded jar {} ({} bytes)", entry_name, entry.size);
+                jar = new NestedJar (name + "!/" + entry_name, ByteBuffer.wrap (read (entry)));
+            }
+            nested_jars.put (entry_name, jar);
+        }
+        return (jar);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return (name);
+    }
+}
+
+// EOF
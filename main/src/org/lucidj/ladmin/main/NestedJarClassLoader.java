@@ -0,0 +1,344 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.main;
+
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.security.CodeSource;
+import java.security.SecureClassLoader;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+//--------------------------------------------------------------------------------
+// Classloader working straight from the NestedJar indexes, as an alternative
+// to URLClassLoader over jarjar- URLs (which resolves a JarURLConnection on
+// every class and resource load).
+//
+// Enable with -Dladmin.loader=memory or LADMIN_LOADER=memory.
+//--------------------------------------------------------------------------------
+class NestedJarClassLoader extends SecureClassLoader
+{
+    private final static TinyLog log = new TinyLog (NestedJarClassLoader.class);
+
+    private final Map<String, URI> handler_to_uri;
+    private final boolean child_first;
+    private final Set<String> defined_packages = ConcurrentHashMap.newKeySet ();
+    private volatile List<LoaderJar> search_path = Collections.emptyList ();
+
+    static
+    {
+        registerAsParallelCapable ();
+    }
+
+    private static class LoaderJar
+    {
+        URL url;
+        NestedJar jar;
+        CodeSource code_source;
+        Manifest manifest;
+        URLStreamHandler handler;
+
+        @Override
+        public String toString ()
+        {
+            return (url.toString ());
+        }
+    }
+
+    // With child_first the jars are searched before the parent classloader
+    NestedJarClassLoader (URL[] urls, Map<String, URI> handler_to_uri, ClassLoader parent, boolean child_first)
+        throws IOException
+    {
+        super (parent);
+        this.handler_to_uri = handler_to_uri;
+        this.child_first = child_first;
+        set_search_path (urls);
+    }
+
+    static boolean isEnabled ()
+    {
+        String env_default = System.getenv ("LADMIN_LOADER");
+        return ("memory".equalsIgnoreCase (System.getProperty ("ladmin.loader", env_default)));
+    }
+
+    private LoaderJar open_jar (URL url)
+        throws IOException
+    {
+        NestedJar jar;
+
+        if (url.getProtocol ().equals ("file"))
+        {
+            try
+            {
+                jar = NestedJar.open (new File (url.toURI ()));
+            }
+            catch (URISyntaxException e)
+            {
+                throw new MalformedURLException (e.getMessage ());
+            }
+        }
+        else
+        {
+            URI source_jar = handler_to_uri.get (url.getProtocol ());
+
+            if (source_jar == null)
+            {
+                throw new MalformedURLException ("Unknown jar protocol: " + url);
+            }
+
+            if ((jar = NestedJar.open (new File (source_jar)).getNestedJar (url.getPath ())) == null)
+            {
+                throw new FileNotFoundException (url.toString ());
+            }
+        }
+
+        final LoaderJar loader_jar = new LoaderJar ();
+        loader_jar.url = url;
+        loader_jar.jar = jar;
+        loader_jar.code_source = new CodeSource (url, (Certificate[])null);
+        loader_jar.manifest = jar.getManifest ();
+        loader_jar.handler = new URLStreamHandler ()
+        {
+            @Override
+            protected URLConnection openConnection (URL resource_url)
+                throws IOException
+            {
+                String path = resource_url.getPath ();
+                final NestedJar.Entry entry = loader_jar.jar.getEntry (path.substring (path.indexOf ("!/") + 2));
+
+                if (entry == null)
+                {
+                    throw new FileNotFoundException (resource_url.toString ());
+                }
+
+                return (new URLConnection (resource_url)
+                {
+                    @Override
+                    public void connect ()
+                    {
+                        connected = true;
+                    }
+
+                    @Override
+                    public int getContentLength ()
+                    {
+                        return (entry.size);
+                    }
+
+                    @Override
+                    public InputStream getInputStream ()
+                        throws IOException
+                    {
+                        return (loader_jar.jar.getInputStream (entry));
+                    }
+                });
+            }
+        };
+        return (loader_jar);
+    }
+
+    // Opens the jars visible by this classloader, in search order. Each layer
+    // (see CommandClassLoaders) gets its own loader, so the search path is set
+    // once, on construction.
+    private void set_search_path (URL[] urls)
+        throws IOException
+    {
+        List<LoaderJar> new_search_path = new ArrayList<> ();
+
+        for (URL url: urls)
+        {
+            new_search_path.add (open_jar (url));
+        }
+        search_path = new_search_path;
+    }
+
+    // Packages are tracked here rather than asked to getPackage(), which is
+    // deprecated and also sees the packages of the parent classloaders
+    private void define_package (String package_name, LoaderJar loader_jar)
+    {
+        if (defined_packages.contains (package_name))
+        {
+            return;
+        }
+
+        String spec_title = null, spec_version = null, spec_vendor = null;
+        String impl_title = null, impl_version = null, impl_vendor = null;
+
+        if (loader_jar.manifest != null)
+        {
+            Attributes attrs = loader_jar.manifest.getMainAttributes ();
+            spec_title = attrs.getValue (Attributes.Name.SPECIFICATION_TITLE);
+            spec_version = attrs.getValue (Attributes.Name.SPECIFICATION_VERSION);
+            spec_vendor = attrs.getValue (Attributes.Name.SPECIFICATION_VENDOR);
+            impl_title = attrs.getValue (Attributes.Name.IMPLEMENTATION_TITLE);
+            impl_version = attrs.getValue (Attributes.Name.IMPLEMENTATION_VERSION);
+            impl_vendor = attrs.getValue (Attributes.Name.IMPLEMENTATION_VENDOR);
+        }
+
+        try
+        {
+            definePackage (package_name, spec_title, spec_version, spec_vendor,
+                impl_title, impl_version, impl_vendor, null);
+        }
+        catch (IllegalArgumentException ignore)
+        {
+            // Defined concurrently by another thread
+        };
+        defined_packages.add (package_name);
+    }
+
+    @Override
+    protected Class<?> findClass (String name)
+        throws ClassNotFoundException
+    {
+        String entry_name = name.replace ('.', '/') + ".class";
+
+        for (LoaderJar loader_jar: search_path)
+        {
+            NestedJar.Entry entry = loader_jar.jar.getEntry (entry_name);
+
+            if (entry == null)
+            {
+                continue;
+            }
+
+            try
+            {
+                byte[] class_bytes = loader_jar.jar.read (entry);
+                int last_dot = name.lastIndexOf ('.');
+
+                if (last_dot != -1)
+                {
+                    define_package (name.substring (0, last_dot), loader_jar);
+                }
+                log.trace ("Defining {} from {}", name, loader_jar.jar);
+                return (defineClass (name, class_bytes, 0, class_bytes.length, loader_jar.code_source));
+            }
+            catch (IOException e)
+            {
+                throw new ClassNotFoundException (name, e);
+            }
+        }
+        throw new ClassNotFoundException (name);
+    }
+
+    @Override
+    protected Class<?> loadClass (String name, boolean resolve)
+        throws ClassNotFoundException
+    {
+        if (!child_first)
+        {
+            return (super.loadClass (name, resolve));
+        }
+
+        synchronized (getClassLoadingLock (name))
+        {
+            Class<?> cls = findLoadedClass (name);
+
+            if (cls == null && !CommandClassLoaders.isParentOnly (name))
+            {
+                try
+                {
+                    cls = findClass (name);
+                }
+                catch (ClassNotFoundException ignore) {};
+            }
+
+            if (cls == null)
+            {
+                cls = super.loadClass (name, false);
+            }
+
+            if (resolve)
+            {
+                resolveClass (cls);
+            }
+            return (cls);
+        }
+    }
+
+    private URL get_resource_url (LoaderJar loader_jar, String name)
+    {
+        try
+        {
+            return (new URL ("ladmin-mem", null, -1, "/" + loader_jar.url + "!/" + name, loader_jar.handler));
+        }
+        catch (MalformedURLException e)
+        {
+            return (null);
+        }
+    }
+
+    @Override
+    protected URL findResource (String name)
+    {
+        for (LoaderJar loader_jar: search_path)
+        {
+            if (loader_jar.jar.getEntry (name) != null)
+            {
+                return (get_resource_url (loader_jar, name));
+            }
+        }
+        return (null);
+    }
+
+    @Override
+    protected Enumeration<URL> findResources (String name)
+    {
+        List<URL> urls = new ArrayList<> ();
+
+        for (LoaderJar loader_jar: search_path)
+        {
+            if (loader_jar.jar.getEntry (name) != null)
+            {
+                URL url = get_resource_url (loader_jar, name);
+
+                if (url != null)
+                {
+                    urls.add (url);
+                }
+            }
+        }
+        return (Collections.enumeration (urls));
+    }
+
+    @Override
+    public String toString ()
+    {
+        return ("NestedJarClassLoader" + search_path);
+    }
+}
+
+// EOF
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.main;
+
+import org.lucidj.libladmin.shared.ConfigLocator;
+import org.lucidj.libladmin.shared.TinyLog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+//--------------------------------------------------------------------------------
+// External command plugins: jars dropped on <config>/plugins or on the plugins
+// directory next to ladmin.jar, usable without repackaging anything. The user
+// plugins come first, then the installed ones, and both have precedence over
+// the embedded commands. Each plugin jar is scanned once, the same way the
+// command manifest is generated, and its records are kept on
+// <config>/ladmin-plugins.idx with the jar size and mtime, so only new or
+// changed jars are read again. Being plain files, plugins run from file: URLs.
+//
+// Index format, one tab separated record per line, each plugin followed by
+// its command records:
+//
+//     plugin   <path>  <size>  <mtime>
+//     jar      <jar name>    <path>  <main class>  <description>  <profile>
+//     class    <class name>  <path>  <main class>  <description>  <profile>
+//--------------------------------------------------------------------------------
+class PluginDirectory
+{
+    private final static TinyLog log = new TinyLog (PluginDirectory.class);
+
+    private final static String PLUGINS_DIRNAME = "plugins";
+    private final static String INDEX_FILENAME = "ladmin-plugins.idx";
+
+    private static Map<String, PluginJar> plugin_jars;
+
+    private static class PluginJar
+    {
+        String path;
+        long size;
+        long mtime;
+        List<String> jar_records = new ArrayList<> ();
+        List<String> class_records = new ArrayList<> ();
+    }
+
+    private static Path get_index_path ()
+    {
+        Path config_path = ConfigLocator.getConfigPath ();
+        return (config_path == null? null: config_path.resolve (INDEX_FILENAME));
+    }
+
+    static List<File> getPluginDirs (File jar_dir)
+    {
+        List<File> plugin_dirs = new ArrayList<> ();
+        Path config_path = ConfigLocator.getConfigPath ();
+
+        if (config_path != null)
+        {
+            plugin_dirs.add (config_path.resolve (PLUGINS_DIRNAME).toFile ());
+        }
+        plugin_dirs.add (new File (jar_dir, PLUGINS_DIRNAME));
+        return (plugin_dirs);
+    }
+
+    private static void load_index ()
+    {
+        plugin_jars = new LinkedHashMap<> ();
+        Path index_path = get_index_path ();
+
+        if (index_path == null || !Files.exists (index_path))
+        {
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader (index_path, StandardCharsets.UTF_8))
+        {
+            PluginJar plugin_jar = null;
+            String line;
+
+            while ((line = reader.readLine ()) != null)
+            {
+                String[] record = line.split ("\t");
+
+                if (record [0].equals ("plugin") && record.length == 4)
+                {
+                    plugin_jar = new PluginJar ();
+                    plugin_jar.path = record [1];
+                    plugin_jar.size = Long.parseLong (record [2]);
+                    plugin_jar.mtime = Long.parseLong (record [3]);
+                    plugin_jars.put (plugin_jar.path, plugin_jar);
+                }
+                else if (plugin_jar != null && record [0].equals ("jar"))
+                {
+                    plugin_jar.jar_records.add (line);
+                }
+                else if (plugin_jar != null && record [0].equals ("class"))
+                {
+                    plugin_jar.class_records.add (line);
+                }
+            }
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            log.debug ("Exception loading {}: {}", index_path, e.toString ());
+            plugin_jars.clear ();
+        }
+    }
+
+    private static void save_index ()
+    {
+        Path index_path = get_index_path ();
+
+        if (index_path == null)
+        {
+            return;
+        }
+
+        try
+        {
+            // Write and rename, so concurrent invocations never see a partial index
+            Path temp_path = Files.createTempFile (index_path.getParent (), INDEX_FILENAME, ".tmp");
+
+            try (Writer writer = Files.newBufferedWriter (temp_path, StandardCharsets.UTF_8);
+                 PrintWriter out = new PrintWriter (writer))
+            {
+                out.print ("# ladmin plugin index -- automatically generated\n");
+
+                for (PluginJar plugin_jar: plugin_jars.values ())
+                {
+                    out.print ("plugin\t" + plugin_jar.path + "\t" + plugin_jar.size + "\t" + plugin_jar.mtime + "\n");
+
+                    for (String record: plugin_jar.jar_records)
+                    {
+                        out.print (record + "\n");
+                    }
+
+                    for (String record: plugin_jar.class_records)
+                    {
+                        out.print (record + "\n");
+                    }
+                }
+            }
+            Files.move (temp_path, index_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            log.debug ("Exception saving {}: {}", index_path, e.toString ());
+        }
+    }
+
+    private static List<File> list_plugin_jars (File jar_dir)
+    {
+        List<File> jars = new ArrayList<> ();
+
+        for (File plugin_dir: getPluginDirs (jar_dir))
+        {
+            File[] jar_array = plugin_dir.listFiles (new FileFilter ()
+            {
+                @Override
+                public boolean accept (File file)
+                {
+                    return (file.getName ().toLowerCase ().endsWith (".jar") && file.isFile ());
+                }
+            });
+
+            if (jar_array != null)
+            {
+                // Keep the search order stable
+                Arrays.sort (jar_array);
+                jars.addAll (Arrays.asList (jar_array));
+            }
+        }
+        return (jars);
+    }
+
+    // Changes whenever a plugin jar is added, removed or replaced
+    static String fingerprint (File jar_dir)
+    {
+        CRC32 crc = new CRC32 ();
+
+        for (File jar: list_plugin_jars (jar_dir))
+        {
+            String id = jar.getAbsolutePath () + ":" + jar.length () + ":" + jar.lastModified () + "\n";
+            crc.update (id.getBytes (StandardCharsets.UTF_8));
+        }
+        return (Long.toHexString (crc.getValue ()));
+    }
+
+    // The commands of every plugin jar, re-indexing only the jars that changed
+    static synchronized CommandManifest open (File jar_dir)
+    {
+        if (plugin_jars == null)
+        {
+            load_index ();
+        }
+
+        Map<String, PluginJar> current_jars = new LinkedHashMap<> ();
+        boolean dirty = false;
+
+        for (File jar: list_plugin_jars (jar_dir))
+        {
+            String path = jar.getAbsolutePath ();
+            PluginJar plugin_jar = plugin_jars.get (path);
+
+            if (plugin_jar == null || plugin_jar.size != jar.length () || plugin_jar.mtime != jar.lastModified ())
+            {
+                plugin_jar = new PluginJar ();
+                plugin_jar.path = path;
+                plugin_jar.size = jar.length ();
+                plugin_jar.mtime = jar.lastModified ();
+
+                try
+                {
+                    log.debug ("Indexing plugin {}", path);
+                    CommandManifest.scanJar (jar, path, plugin_jar.jar_records, plugin_jar.class_records);
+                }
+                catch (IOException e)
+                {
+                    // Recorded anyway, so a broken jar isn't read again until it changes
+                    log.warn ("Exception reading plugin {}: {}", path, e.toString ());
+                }
+                dirty = true;
+            }
+
+            current_jars.put (path, plugin_jar);
+        }
+
+        if (current_jars.size () != plugin_jars.size ())
+        {
+            // Some plugin jar was removed
+            dirty = true;
+        }
+
+        plugin_jars = current_jars;
+
+        if (dirty)
+        {
+            save_index ();
+        }
+
+        // Same precedence of the command manifest: jar names first, then class names
+        List<String> records = new ArrayList<> ();
+
+        for (PluginJar plugin_jar: plugin_jars.values ())
+        {
+            records.addAll (plugin_jar.jar_records);
+        }
+
+        for (PluginJar plugin_jar: plugin_jars.values ())
+        {
+            records.addAll (plugin_jar.class_records);
+        }
+        return (CommandManifest.fromRecords (records));
+    }
+}
+
+// EOF
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.ladmin.main;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//--------------------------------------------------------------------------------
+// Breaks the command dispatch into timed phases, with the classes loaded and
+// the jar bytes read on each one. The table goes to stderr when the JVM exits,
+// and each phase is also committed as a 'org.lucidj.ladmin.StartupPhase' JFR
+// event when the running JDK has jdk.jfr.EventFactory (12+). JFR is reached
+// only by reflection, so nothing changes on JDKs without it.
+//
+// Enable with --profile-startup, -Dladmin.profile_startup=true or
+// LADMIN_PROFILE_STARTUP=true. Disabled, begin() is a constant no-op.
+//--------------------------------------------------------------------------------
+class StartupProfiler
+{
+    final static String PROFILE_OPTION = "--profile-startup";
+
+    private final static Phase NO_PHASE = new Phase (null, 0);
+
+    private static boolean enabled = Boolean.parseBoolean (System.getProperty ("ladmin.profile_startup",
+        System.getenv ("LADMIN_PROFILE_STARTUP")));
+    private static boolean report_scheduled;
+    private static int depth;
+    private static long jvm_uptime_ms;
+    private static ClassLoadingMXBean class_loading;
+    private static Object jfr_factory;
+    private static Method factory_new_event, event_set, event_begin, event_end, event_commit;
+    private final static List<Phase> phases = new ArrayList<> ();
+
+    // Logged by the JVM (-Xlog:cds) once the dynamic archive is in place
+    private final static String CDS_MAPPED_MARK = "Mapped dynamic region";
+    private static String cds_mode;
+
+    static class Phase
+    {
+        private final String name;
+        private final int level;
+        private long start_ns;
+        private long start_classes;
+        private long start_bytes;
+        private Object jfr_event;
+
+        long time_ns = -1;
+        long classes;
+        long bytes;
+
+        private Phase (String name, int level)
+        {
+            this.name = name;
+            this.level = level;
+        }
+
+        void end ()
+        {
+            if (this == NO_PHASE || time_ns != -1)
+            {
+                return;
+            }
+            time_ns = System.nanoTime () - start_ns;
+            classes = class_loading.getTotalLoadedClassCount () - start_classes;
+            bytes = NestedJar.getBytesRead () - start_bytes;
+            jfr_commit (this);
+
+            synchronized (StartupProfiler.class)
+            {
+                depth--;
+            }
+        }
+    }
+
+    static boolean isEnabled ()
+    {
+        return (enabled);
+    }
+
+    static void enable ()
+    {
+        enabled = true;
+    }
+
+    static synchronized Phase begin (String name)
+    {
+        if (!enabled)
+        {
+            return (NO_PHASE);
+        }
+
+        if (!report_scheduled)
+        {
+            start ();
+        }
+
+        Phase phase = new Phase (name, depth++);
+        phases.add (phase);
+        phase.jfr_event = jfr_begin (name);
+        phase.start_classes = class_loading.getTotalLoadedClassCount ();
+        phase.start_bytes = NestedJar.getBytesRead ();
+        phase.start_ns = System.nanoTime ();
+        return (phase);
+    }
+
+    private static void start ()
+    {
+        report_scheduled = true;
+        jvm_uptime_ms = ManagementFactory.getRuntimeMXBean ().getUptime ();
+        class_loading = ManagementFactory.getClassLoadingMXBean ();
+        jfr_factory = jfr_create_factory ();
+
+        // Also covers commands leaving through System.exit()
+        Runtime.getRuntime ().addShutdownHook (new Thread ()
+        {
+            @Override
+            public void run ()
+            {
+                report (System.err);
+            }
+        });
+    }
+
+    // The launcher says "hit" when the archive exists, but the JVM may still pass on
+    // it; the CDS log it asks for (-Dladmin.cds_log) tells whether it was mapped.
+    // The archive is mapped before main(), so Main calls this first thing and the
+    // log is gone whatever way the run ends.
+    static synchronized String getCdsMode ()
+    {
+        if (cds_mode == null)
+        {
+            cds_mode = System.getProperty ("ladmin.cds", "off");
+            String cds_log = System.getProperty ("ladmin.cds_log");
+
+            if (cds_mode.equals ("hit") && cds_log != null)
+            {
+                Path cds_log_path = Paths.get (cds_log);
+
+                try
+                {
+                    byte[] log_bytes = Files.readAllBytes (cds_log_path);
+                    cds_mode = new String (log_bytes, StandardCharsets.UTF_8).contains (CDS_MAPPED_MARK)? "hit": "rejected";
+                }
+                catch (IOException e)
+                {
+                    cds_mode = "unknown";
+                }
+
+                try
+                {
+                    Files.deleteIfExists (cds_log_path);
+                }
+                catch (IOException ignore) {};
+            }
+        }
+        return (cds_mode);
+    }
+
+    static synchronized void report (PrintStream out)
+    {
+        out.println ();
+        out.println ("Startup profile (JVM up " + jvm_uptime_ms + "ms before the first phase, profile: "
+            + System.getProperty ("ladmin.profile", "default") + ", cds: " + getCdsMode ()
+            + memory_usage () + "):");
+        out.println (String.format ("  %-40s %12s %9s %12s", "Phase", "Time (ms)", "Classes", "Jar bytes"));
+
+        for (Phase phase: phases)
+        {
+            char[] indent = new char [phase.level * 2];
+            Arrays.fill (indent, ' ');
+            String name = new String (indent) + phase.name;
+
+            if (phase.time_ns == -1)
+            {
+                out.println (String.format ("  %-40s %12s", name, "(running)"));
+            }
+            else
+            {
+                out.println (String.format ("  %-40s %12.3f %9d %12d",
+                    name, phase.time_ns / 1e6, phase.classes, phase.bytes));
+            }
+        }
+        out.flush ();
+    }
+
+    // Resident set size, where the OS tells it (Linux)
+    private static String memory_usage ()
+    {
+        String rss = null, peak_rss = null;
+
+        try
+        {
+            for (String line: Files.readAllLines (Paths.get ("/proc/self/status"), StandardCharsets.US_ASCII))
+            {
+                if (line.startsWith ("VmRSS:"))
+                {
+                    rss = line.substring (6).trim ();
+                }
+                else if (line.startsWith ("VmHWM:"))
+                {
+                    peak_rss = line.substring (6).trim ();
+                }
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // Not available here
+        }
+        return (rss == null? "": ", rss: " + rss + (peak_rss == null? "": " (peak " + peak_rss + ")"));
+    }
+
+    //-----
+    // JFR
+    //-----
+
+    private static Object jfr_create_factory ()
+    {
+        try
+        {
+            Class<?> annotation_element = Class.forName ("jdk.jfr.AnnotationElement");
+            Class<?> value_descriptor = Class.forName ("jdk.jfr.ValueDescriptor");
+            Class<?> event_factory = Class.forName ("jdk.jfr.EventFactory");
+            Class<?> event_class = Class.forName ("jdk.jfr.Event");
+            Constructor<?> new_annotation = annotation_element.getConstructor (Class.class, Object.class);
+            Constructor<?> new_value = value_descriptor.getConstructor (Class.class, String.class);
+
+            List<Object> annotations = new ArrayList<> ();
+            annotations.add (new_annotation.newInstance (Class.forName ("jdk.jfr.Name"), "org.lucidj.ladmin.StartupPhase"));
+            annotations.add (new_annotation.newInstance (Class.forName ("jdk.jfr.Label"), "ladmin Startup Phase"));
+            annotations.add (new_annotation.newInstance (Class.forName ("jdk.jfr.Category"), new String[] { "ladmin" }));
+
+            List<Object> fields = new ArrayList<> ();
+            fields.add (new_value.newInstance (String.class, "phase"));
+            fields.add (new_value.newInstance (long.class, "classesLoaded"));
+            fields.add (new_value.newInstance (long.class, "jarBytesRead"));
+
+            Object factory = event_factory.getMethod ("create", List.class, List.class).invoke (null, annotations, fields);
+
+            // The generated event classes aren't public, so we go through jdk.jfr.Event
+            factory_new_event = event_factory.getMethod ("newEvent");
+            event_set = event_class.getMethod ("set", int.class, Object.class);
+            event_begin = event_class.getMethod ("begin");
+            event_end = event_class.getMethod ("end");
+            event_commit = event_class.getMethod ("commit");
+            return (factory);
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            // No JFR around
+            return (null);
+        }
+    }
+
+    private static Object jfr_begin (String name)
+    {
+        if (jfr_factory == null)
+        {
+            return (null);
+        }
+
+        try
+        {
+            Object event = factory_new_event.invoke (jfr_factory);
+            event_set.invoke (event, 0, name);
+            event_begin.invoke (event);
+            return (event);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return (null);
+        }
+    }
+
+    private static void jfr_commit (Phase phase)
+    {
+        if (phase.jfr_event == null)
+        {
+            return;
+        }
+
+        try
+        {
+            event_set.invoke (phase.jfr_event, 1, phase.classes);
+            event_set.invoke (phase.jfr_event, 2, phase.bytes);
+            event_end.invoke (phase.jfr_event);
+            event_commit.invoke (phase.jfr_event);
+        }
+        catch (ReflectiveOperationException ignore) {};
+    }
+}
+
+// EOF
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.shell;
+
+import org.lucidj.libladmin.shared.ByteRing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+//--------------------------------------------------------------------------------
+// Throughput of the file-based shell I/O, the way Shell moved bytes before
+// and after batching. Paste: the keystrokes of a pasted script go to the
+// request file, before one write and flush per key, now drained from the
+// terminal ring into one FileChannel write per wakeup. Bulk output: a large
+// response file is copied to the terminal, before one available()-sized read
+// per loop iteration, now read through a FileChannel until it's empty.
+// Both paths are copies of the Shell loop, since Shell keeps its channels and
+// buffers private and static.
+//
+// Run with 'ant bench' on the shell module, or directly:
+//   java -cp <shell classes>:<bench classes>:<libshared.jar> org.lucidj.shell.ShellThroughput [rounds]
+//--------------------------------------------------------------------------------
+public class ShellThroughput
+{
+    private final static int PASTE_SIZE = 10 * 1024;
+    private final static int BULK_SIZE = 16 * 1024 * 1024;
+    private final static int RING_SIZE = 4096;
+
+    private final static OutputStream null_terminal = new OutputStream ()
+    {
+        @Override
+        public void write (int b)
+        {
+            // Discard
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len)
+        {
+            // Discard
+        }
+    };
+
+    private static byte[] paste_data ()
+    {
+        byte[] data = new byte [PASTE_SIZE];
+
+        for (int i = 0; i < data.length; i++)
+        {
+            data [i] = (byte)((i % 64 == 63)? '\n': 'a' + (i % 26));
+        }
+        return (data);
+    }
+
+    private static double mb_per_sec (long bytes, long nanos)
+    {
+        return ((bytes / 1048576.0) / (nanos / 1e9));
+    }
+
+    // One write(int) and flush per key, over an unbuffered stream
+    private static long paste_old (File request_file, byte[] keys)
+        throws IOException
+    {
+        long start = System.nanoTime ();
+
+        try (DataOutputStream remote_out = new DataOutputStream (new FileOutputStream (request_file, true)))
+        {
+            for (byte key: keys)
+            {
+                remote_out.write (key);
+                remote_out.flush ();
+            }
+        }
+        return (System.nanoTime () - start);
+    }
+
+    // The keys queue up on the ring between wakeups, each wakeup drains them into one write
+    private static long paste_new (File request_file, byte[] keys)
+        throws IOException
+    {
+        ByteRing terminal_keys = new ByteRing (RING_SIZE);
+        ByteBuffer remote_out_buffer = ByteBuffer.allocateDirect (8192);
+        byte[] key_buffer = new byte [4096];
+        int queued = 0;
+
+        long start = System.nanoTime ();
+
+        try (FileChannel remote_out = FileChannel.open (request_file.toPath (),
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND))
+        {
+            while (queued < keys.length || !terminal_keys.isEmpty ())
+            {
+                // What the terminal reader got since the last wakeup
+                queued += terminal_keys.offer (keys, queued, keys.length - queued);
+
+                int count;
+
+                while ((count = terminal_keys.poll (key_buffer, 0, key_buffer.length)) > 0)
+                {
+                    if (count > remote_out_buffer.remaining ())
+                    {
+                        remote_out_buffer.flip ();
+                        while (remote_out_buffer.hasRemaining ())
+                        {
+                            remote_out.write (remote_out_buffer);
+                        }
+                        remote_out_buffer.clear ();
+                    }
+                    remote_out_buffer.put (key_buffer, 0, count);
+                }
+
+                remote_out_buffer.flip ();
+                while (remote_out_buffer.hasRemaining ())
+                {
+                    remote_out.write (remote_out_buffer);
+                }
+                remote_out_buffer.clear ();
+            }
+        }
+        return (System.nanoTime () - start);
+    }
+
+    // One available()-sized read per loop iteration
+    private static long bulk_old (File response_file)
+        throws IOException
+    {
+        byte[] buffer = new byte [8192];
+        long start = System.nanoTime ();
+
+        try (DataInputStream remote_in = new DataInputStream (new FileInputStream (response_file)))
+        {
+            int available;
+
+            while ((available = remote_in.available ()) > 0)
+            {
+                int count = remote_in.read (buffer, 0, Math.min (available, buffer.length));
+                null_terminal.write (buffer, 0, count);
+                null_terminal.flush ();
+            }
+        }
+        return (System.nanoTime () - start);
+    }
+
+    // Read until nothing is left, one terminal flush at the end
+    private static long bulk_new (File response_file)
+        throws IOException
+    {
+        ByteBuffer remote_in_buffer = ByteBuffer.allocateDirect (8192);
+        byte[] buffer = new byte [8192];
+        long start = System.nanoTime ();
+
+        try (FileChannel remote_in = FileChannel.open (response_file.toPath (), StandardOpenOption.READ))
+        {
+            int count;
+
+            while ((count = remote_in.read (remote_in_buffer)) > 0)
+            {
+                remote_in_buffer.flip ();
+                remote_in_buffer.get (buffer, 0, count);
+                remote_in_buffer.clear ();
+                null_terminal.write (buffer, 0, count);
+            }
+            null_terminal.flush ();
+        }
+        return (System.nanoTime () - start);
+    }
+
+    public static void main (String[] args)
+        throws IOException
+    {
+        int rounds = (args.length > 0)? Integer.parseInt (args [0]): 3;
+        File request_file = File.createTempFile ("shell-bench-request", ".tmp");
+        File response_file = File.createTempFile ("shell-bench-response", ".tmp");
+        byte[] keys = paste_data ();
+
+        try
+        {
+            byte[] bulk_chunk = new byte [1024 * 1024];
+            Arrays.fill (bulk_chunk, (byte)'x');
+
+            try (OutputStream os = new FileOutputStream (response_file))
+            {
+                for (int written = 0; written < BULK_SIZE; written += bulk_chunk.length)
+                {
+                    os.write (bulk_chunk);
+                }
+            }
+
+            System.out.println ("Shell I/O throughput, " + System.getProperty ("java.version")
+                + ", temp files on " + request_file.getParent ());
+
+            for (int round = 1; round <= rounds; round++)
+            {
+                long paste_old_nanos = paste_old (request_file, keys);
+                Files.write (request_file.toPath (), new byte [0]);
+                long paste_new_nanos = paste_new (request_file, keys);
+                Files.write (request_file.toPath (), new byte [0]);
+                long bulk_old_nanos = bulk_old (response_file);
+                long bulk_new_nanos = bulk_new (response_file);
+
+                System.out.println (String.format ("round %d: paste 10KB old %.1f MB/s new %.1f MB/s, "
+                    + "bulk 16MB old %.1f MB/s new %.1f MB/s", round,
+                    mb_per_sec (PASTE_SIZE, paste_old_nanos), mb_per_sec (PASTE_SIZE, paste_new_nanos),
+                    mb_per_sec (BULK_SIZE, bulk_old_nanos), mb_per_sec (BULK_SIZE, bulk_new_nanos)));
+            }
+        }
+        finally
+        {
+            request_file.delete ();
+            response_file.delete ();
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.shell;
+
+//--------------------------------------------------------------------------------
+// Wakes up the session loop when something happens: a key typed, news from
+// the server, a signal. Signals are sticky, so one arriving while the loop is
+// busy makes the next await() return at once. The server news come from the
+// admind request (a socket, or a WatchService on the admind directory). When
+// they aren't native (like the polling WatchService on macOS, every few
+// seconds) the loop falls back to short timed waits.
+//--------------------------------------------------------------------------------
+class SessionEvents
+{
+    // With native notifications, still look around once in a while (server gone)
+    private final static long NATIVE_IDLE_TIMEOUT_MS = 1000;
+    private final static long POLLING_IDLE_TIMEOUT_MS = 20;
+
+    private final Object lock = new Object ();
+    private boolean signaled;
+    private volatile boolean native_watch;
+
+    void signal ()
+    {
+        synchronized (lock)
+        {
+            signaled = true;
+            lock.notifyAll ();
+        }
+    }
+
+    // Waits for a signal up to timeout_ms, returns whether it was signaled
+    boolean await (long timeout_ms)
+        throws InterruptedException
+    {
+        synchronized (lock)
+        {
+            long deadline = System.currentTimeMillis () + timeout_ms;
+            long remaining = timeout_ms;
+
+            while (!signaled && remaining > 0)
+            {
+                lock.wait (remaining);
+                remaining = deadline - System.currentTimeMillis ();
+            }
+
+            boolean was_signaled = signaled;
+            signaled = false;
+            return (was_signaled);
+        }
+    }
+
+    // How long the loop may sleep when nothing is going on
+    long getIdleTimeout ()
+    {
+        return (native_watch? NATIVE_IDLE_TIMEOUT_MS: POLLING_IDLE_TIMEOUT_MS);
+    }
+
+    // Whether the request notifies every change natively (see AdmindRequest.watch)
+    void setNativeWakeups (boolean native_watch)
+    {
+        this.native_watch = native_watch;
+    }
+}
+
+// EOF
@@ -22,14 +22,19 @@ import org.jline.terminal.TerminalBuilder;
 import org.jline.utils.AttributedStringBuilder;
 import org.jline.utils.AttributedStyle;
 import org.lucidj.admind.shared.AdmindUtil;
+import org.lucidj.libladmin.admind.AdmindRequest;
+import org.lucidj.libladmin.admind.AdmindTransport;
+import org.lucidj.libladmin.admind.AdmindTransports;
+import org.lucidj.libladmin.admind.WaitPolicy;
+import org.lucidj.libladmin.shared.ByteRing;
+import org.lucidj.libladmin.shared.CommandExit;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 public class Shell
 {
@@ -40,46 +45,157 @@ public class Shell
     private static boolean logout_terminal;
     private static long update_size_timestamp = -1;
 
-    private static DataInputStream remote_in;
-    private static DataOutputStream remote_out;
-
+    // Both directions move in bulk: every wakeup drains the keystrokes queued so far
+    // into one write, and the server output is read until nothing is left
+    private static ReadableByteChannel remote_in;
+    private static WritableByteChannel remote_out;
+    private static ByteBuffer remote_in_buffer = ByteBuffer.allocateDirect (8192);
+    private static ByteBuffer remote_out_buffer = ByteBuffer.allocateDirect (8192);
     private static byte[] buffer = new byte [8192];
+    private static byte[] key_buffer = new byte [4096];
+
+    // Transfer stats, shown on exit with -Dladmin.shell.stats=true or LADMIN_SHELL_STATS=true
+    private static boolean show_stats;
+    private static long bytes_sent;
+    private static long bytes_received;
+    private static long writes_sent;
+    private static long reads_received;
+    private static long send_nanos;
+    private static long receive_nanos;
+
+    // Wakes the session loop on keystrokes, admind changes and signals
+    private static SessionEvents session_events = new SessionEvents ();
+
+    // The keystrokes queued by the terminal reader helper
+    private static ByteRing terminal_keys;
+
+    // Writes whatever is on remote_out_buffer with a single append
+    private static synchronized void remote_flush ()
+        throws IOException
+    {
+        long start = System.nanoTime ();
+
+        remote_out_buffer.flip ();
 
-    // A small circular buffer
-    private static int[] reader_buf = new int [64];
-    private static volatile int reader_in = 0;
-    private static volatile int reader_out = 0;
+        if (remote_out_buffer.hasRemaining ())
+        {
+            bytes_sent += remote_out_buffer.remaining ();
+            writes_sent++;
 
-    private static boolean terminal_ready ()
+            while (remote_out_buffer.hasRemaining ())
+            {
+                remote_out.write (remote_out_buffer);
+            }
+        }
+        remote_out_buffer.clear ();
+        send_nanos += System.nanoTime () - start;
+    }
+
+    private static synchronized void remote_write (byte[] data)
+        throws IOException
     {
-        return (reader_in != reader_out);
+        if (data.length > remote_out_buffer.remaining ())
+        {
+            remote_flush ();
+        }
+        remote_out_buffer.put (data);
     }
 
-    private static int terminal_read ()
+    private static synchronized void remote_write (int b)
+        throws IOException
     {
-        int ch;
-        int next = reader_out + 1;
+        if (!remote_out_buffer.hasRemaining ())
+        {
+            remote_flush ();
+        }
+        remote_out_buffer.put ((byte)b);
+    }
+
+    // Moves every queued keystroke to the server, returns how many were sent
+    private static synchronized int remote_send_keys ()
+        throws IOException
+    {
+        int total = 0;
+        int count;
 
-        if (next == reader_buf.length)
+        while (!logout_terminal && (count = terminal_keys.poll (key_buffer, 0, key_buffer.length)) > 0)
         {
-            next = 0;
+            for (int i = 0; i < count; i++)
+            {
+                if (key_buffer [i] == 4) // Ctrl+D
+                {
+                    logout_terminal = true;
+                    count = i + 1;
+                    break;
+                }
+            }
+
+            if (count > remote_out_buffer.remaining ())
+            {
+                remote_flush ();
+            }
+            remote_out_buffer.put (key_buffer, 0, count);
+            total += count;
+        }
+
+        if (total > 0)
+        {
+            remote_flush ();
+        }
+        return (total);
+    }
+
+    // Copies all the server output available to the terminal, returns the byte count
+    private static int remote_receive (OutputStream terminal_out)
+        throws IOException
+    {
+        long start = System.nanoTime ();
+        int total = 0;
+        int count;
+
+        while ((count = remote_in.read (remote_in_buffer)) > 0)
+        {
+            remote_in_buffer.flip ();
+            remote_in_buffer.get (buffer, 0, count);
+            remote_in_buffer.clear ();
+            terminal_out.write (buffer, 0, count);
+            total += count;
+            reads_received++;
+        }
+
+        if (total > 0)
+        {
+            terminal_out.flush ();
+            bytes_received += total;
+            receive_nanos += System.nanoTime () - start;
         }
+        return (total);
+    }
 
-        ch = reader_buf [reader_out];
-        reader_out = next;
-        return (ch);
+    private static String format_rate (long bytes, long nanos)
+    {
+        double mb_per_sec = (nanos == 0)? 0: (bytes / 1048576.0) / (nanos / 1e9);
+        return (String.format ("%.1f MB/s", mb_per_sec));
+    }
+
+    private static void print_stats ()
+    {
+        terminal.writer ().println ("Sent " + bytes_sent + " bytes in " + writes_sent + " writes ("
+            + format_rate (bytes_sent, send_nanos) + "), received " + bytes_received + " bytes in "
+            + reads_received + " reads (" + format_rate (bytes_received, receive_nanos) + ")");
+        terminal.flush ();
     }
 
     private static void send_terminal_size ()
     {
         try
         {
-            remote_out.write ((byte)0xf1);
-            remote_out.write (Integer.toString (terminal.getWidth ()).getBytes ());
-            remote_out.write (';');
-            remote_out.write (Integer.toString (terminal.getHeight ()).getBytes ());
-            remote_out.write ((byte)0xff);
-            remote_out.flush ();
+            remote_write ((byte)0xf1);
+            remote_write (Integer.toString (terminal.getWidth ()).getBytes ());
+            remote_write (';');
+            remote_write (Integer.toString (terminal.getHeight ()).getBytes ());
+            remote_write ((byte)0xff);
+            remote_flush ();
         }
         catch (IOException ignore) {};
     }
@@ -88,10 +204,10 @@ public class Shell
     {
         try
         {
-            remote_out.write ((byte)0xf0);
-            remote_out.write (terminal.getType ().getBytes ());
-            remote_out.write ((byte)0xff);
-            remote_out.flush ();
+            remote_write ((byte)0xf0);
+            remote_write (terminal.getType ().getBytes ());
+            remote_write ((byte)0xff);
+            remote_flush ();
         }
         catch (IOException ignore) {};
     }
@@ -101,8 +217,8 @@ public class Shell
         try
         {
             // Says that all initialization info was sent
-            remote_out.write ('\r');
-            remote_out.flush ();
+            remote_write ('\r');
+            remote_flush ();
         }
         catch (IOException ignore) {};
     }
@@ -113,17 +229,29 @@ public class Shell
         // AdminD init and connect
         //-------------------------
 
-        String def_server_name = AdmindUtil.getServerName ();
-        String admind = AdmindUtil.initAdmindDir ();
+        AdmindTransport transport = AdmindTransports.open ();
 
-        if (admind == null)
+        if (transport == null)
         {
-            System.out.println ("Unable to find '" + def_server_name + "'");
-            System.exit (1);
+            System.out.println ("Unable to find '" + AdmindUtil.getServerName () + "'");
+            CommandExit.exit (1);
         }
 
-        final String request = AdmindUtil.asyncInvoke ("shell", "true");
-        int status = AdmindUtil.asyncWait (request, 5000, AdmindUtil.ASYNC_RUNNING);
+        String def_server_name = transport.getServerName ();
+        final AdmindRequest request;
+        int status;
+
+        try
+        {
+            request = transport.invoke ("shell", "true");
+            status = request.await (5000, AdmindUtil.ASYNC_RUNNING, WaitPolicy.forCommand ("shell"));
+        }
+        catch (IOException | InterruptedException e)
+        {
+            System.out.println ("Unable to reach '" + def_server_name + "': " + e.toString ());
+            CommandExit.exit (1);
+            return;
+        }
 
         if (status == AdmindUtil.ASYNC_GONE)
         {
@@ -131,9 +259,9 @@ public class Shell
         }
         else if (status == AdmindUtil.ASYNC_ERROR)
         {
-            String error = AdmindUtil.asyncError (request);
+            String error = request.getError ();
             System.out.println ("Error opening console for '" + def_server_name + "': " + error);
-            System.exit (1);
+            CommandExit.exit (1);
         }
 
         // Cleanup the shell transaction at exit
@@ -141,8 +269,7 @@ public class Shell
         {
             public void run ()
             {
-                // Check for error forces transaction discard
-                AdmindUtil.asyncError (request);
+                request.close ();
             }
         });
 
@@ -159,7 +286,7 @@ public class Shell
                 .signalHandler (Terminal.SignalHandler.SIG_IGN)
                 .build ();
 
-            String jvmid = AdmindUtil.getServerProperties().getProperty ("server.jvmid");
+            String jvmid = transport.getServerProperties ().getProperty ("server.jvmid");
             String jvmstr = (jvmid == null)? "": "(" + jvmid + ")";
             terminal.writer ().println ("Connected to '" + def_server_name + "' " + jvmstr);
             terminal.writer ().flush ();
@@ -168,8 +295,18 @@ public class Shell
             // Init interconnection
             //----------------------
 
-            remote_in = new DataInputStream (new FileInputStream (AdmindUtil.responseFile (request)));
-            remote_out = new DataOutputStream (new FileOutputStream (AdmindUtil.requestFile (request), true));
+            remote_in = request.getResponseChannel ();
+            remote_out = request.getRequestChannel ();
+            show_stats = Boolean.parseBoolean (System.getProperty ("ladmin.shell.stats", System.getenv ("LADMIN_SHELL_STATS")));
+
+            session_events.setNativeWakeups (request.watch (new Runnable ()
+            {
+                @Override
+                public void run ()
+                {
+                    session_events.signal ();
+                }
+            }));
 
             //---------------------------
             // Init terminal and session
@@ -182,6 +319,7 @@ public class Shell
                 {
                     // Set up to update the terminal size
                     update_size_timestamp = System.currentTimeMillis() + UPDATE_TERMINAL_DELAY_MS;
+                    session_events.signal ();
                 }
             });
 
@@ -198,10 +336,11 @@ public class Shell
                     {
                         // Say to Gogo that's the end
                         logout_terminal = true;
-                        remote_out.write (4);
-                        remote_out.flush ();
+                        remote_write (4);
+                        remote_flush ();
                     }
                     catch (IOException ignore) {};
+                    session_events.signal ();
                 }
             });
 
@@ -210,43 +349,16 @@ public class Shell
             OutputStream terminal_out = terminal.output ();
             saved_attributes = terminal.enterRawMode ();
 
-            // Since jline 3.6.0 NonblockingReader.available() became return (0),
-            // and we have ready() only on some impls. We could use just read(timeout),
-            // but then we would need to handle VTIME (at least 100ms pauses every now
-            // and then). And I thought could forget about ioctl() using Java.... :)
-            Thread blocking_reader = new Thread (new Runnable ()
+            TerminalReader terminal_reader = new TerminalReader (terminal_in, new Runnable ()
             {
                 @Override
                 public void run ()
                 {
-                    while (!Thread.currentThread ().isInterrupted ())
-                    {
-                        // A simple circular buffer which reads until full
-                        int next = reader_in + 1;
-
-                        if (next == reader_buf.length)
-                        {
-                            next = 0;
-                        }
-
-                        if (next != reader_out)
-                        {
-                            try
-                            {
-                                reader_buf [reader_in] = terminal_in.read ();
-                            }
-                            catch (IOException bye)
-                            {
-                                reader_buf [reader_in] = -1;
-                            }
-                            reader_in = next;
-                        }
-                    }
+                    session_events.signal ();
                 }
             });
-            blocking_reader.setName ("Terminal reader helper");
-            blocking_reader.setDaemon (true);
-            blocking_reader.start ();
+            terminal_keys = terminal_reader.getRing ();
+            terminal_reader.start ();
 
             // Init terminal information
             send_terminal_type ();
@@ -259,7 +371,7 @@ public class Shell
 
             for (;;)
             {
-                int shell_status = AdmindUtil.asyncPoll (request);
+                int shell_status = request.poll ();
 
                 if (shell_status == AdmindUtil.ASYNC_GONE)
                 {
@@ -272,7 +384,7 @@ public class Shell
                     AttributedStringBuilder sb = new AttributedStringBuilder ();
                     sb.style (sb.style ().foreground (AttributedStyle.RED));
                     sb.append ("\n");
-                    sb.append (AdmindUtil.asyncError (request));
+                    sb.append (request.getError ());
                     sb.style (sb.style ().foregroundDefault ());
                     terminal.writer().println (sb.toAnsi (terminal));
                     terminal.flush ();
@@ -295,44 +407,20 @@ public class Shell
                     break;
                 }
 
-                int bytes_exchanged = 0;
-                int bytes_available = remote_in.available ();
-
-                if (bytes_available > 0)
-                {
-                    if (bytes_available > buffer.length)
-                    {
-                        bytes_available = buffer.length;
-                    }
-                    bytes_exchanged = remote_in.read (buffer, 0, bytes_available);
-                }
+                int bytes_exchanged = remote_receive (terminal_out);
+                bytes_exchanged += remote_send_keys ();
 
-                if (bytes_exchanged > 0)
-                {
-                    terminal_out.write (buffer, 0, bytes_exchanged);
-                }
-
-                if (terminal_ready ())
+                // Only wait if the console is idle, until a keystroke, a
+                // response file change or the pending terminal size update
+                if (bytes_exchanged == 0)
                 {
-                    int ch = terminal_read ();
+                    long timeout = session_events.getIdleTimeout ();
 
-                    if (ch >= 0)
+                    if (update_size_timestamp != -1)
                     {
-                        remote_out.write (ch);
-                        remote_out.flush ();
-                        bytes_exchanged++;
-
-                        if (ch == 4) // Ctrl+D
-                        {
-                            logout_terminal = true;
-                        }
+                        timeout = Math.max (1, Math.min (timeout, update_size_timestamp - System.currentTimeMillis ()));
                     }
-                }
-
-                // Only yield if the console is idle
-                if (bytes_exchanged == 0)
-                {
-                    Thread.sleep (20);
+                    session_events.await (timeout);
                 }
             }
         }
@@ -343,8 +431,16 @@ public class Shell
         }
         finally
         {
+            // Closes the channels and stops the watcher as well
+            request.close ();
+
             if (terminal != null)
             {
+                if (show_stats)
+                {
+                    print_stats ();
+                }
+
                 // Restore normal terminal operation
                 if (saved_attributes != null)
                 {
@@ -361,18 +457,6 @@ public class Shell
                     terminal.close ();
                 }
                 catch (IOException ignore) {};
-
-                try
-                {
-                    remote_in.close ();
-                }
-                catch (IOException ignore) {};
-
-                try
-                {
-                    remote_out.close ();
-                }
-                catch (IOException ignore) {};
             }
         }
     }
@@ -19,7 +19,9 @@ package org.lucidj.shell;
 import org.jline.terminal.Attributes;
 import org.jline.terminal.Terminal;
 import org.jline.terminal.TerminalBuilder;
+import org.lucidj.libladmin.shared.ByteRing;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -58,6 +60,7 @@ public class Telnet
     private static Terminal terminal = null;
     private static Attributes saved_attributes = null;
     private static byte[] buffer = new byte [1024];
+    private static byte[] key_buffer = new byte [1024];
 
     private static void send_terminal_size ()
     {
@@ -230,7 +233,7 @@ public class Telnet
             clientSocket = new Socket ("localhost", 6523);
             clientSocket.setSoTimeout (100);
             socket_in = new DataInputStream (clientSocket.getInputStream ());
-            socket_out = new DataOutputStream (clientSocket.getOutputStream ());
+            socket_out = new DataOutputStream (new BufferedOutputStream (clientSocket.getOutputStream ()));
         }
         catch (IOException e)
         {
@@ -276,6 +279,10 @@ public class Telnet
             OutputStream terminal_out = terminal.output ();
             saved_attributes = terminal.enterRawMode ();
 
+            TerminalReader terminal_reader = new TerminalReader (terminal_in, null);
+            ByteRing terminal_keys = terminal_reader.getRing ();
+            terminal_reader.start ();
+
             while (!clientSocket.isClosed ())
             {
                 int bytes_read;
@@ -317,21 +324,21 @@ public class Telnet
                     break;
                 }
 
-                if (terminal_in.ready ())
-                {
-                    int ch = terminal_in.read ();
+                int keys_read = terminal_keys.poll (key_buffer, 0, key_buffer.length);
 
-                    if (ch >= 0)
+                if (keys_read > 0)
+                {
+                    for (int i = 0; i < keys_read; i++)
                     {
-                        socket_out.write (ch);
+                        socket_out.write (key_buffer [i]);
 
-                        if (ch == '\r')
+                        if (key_buffer [i] == '\r')
                         {
                             // Make clear the CR intent by sending CR NUL
                             socket_out.write (0);
                         }
-                        socket_out.flush ();
                     }
+                    socket_out.flush ();
                 }
             }
         }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.shell;
+
+import org.lucidj.libladmin.shared.ByteRing;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+//--------------------------------------------------------------------------------
+// Since jline 3.6.0 NonblockingReader.available() became return (0), and we
+// have ready() only on some impls. We could use just read(timeout), but then
+// we would need to handle VTIME (at least 100ms pauses every now and then).
+// So a helper thread does the blocking reads and queues the keys, as UTF-8, on
+// a ByteRing the session loop drains in bulk. When the ring is full the helper
+// parks until the loop takes something; on terminal EOF it just ends.
+//--------------------------------------------------------------------------------
+class TerminalReader
+{
+    private final static int RING_SIZE = 4096;
+
+    private final ByteRing ring = new ByteRing (RING_SIZE);
+    private final Reader terminal_in;
+    private final Runnable on_input;
+    private final byte[] single = new byte [1];
+    private int high_surrogate = -1;
+
+    TerminalReader (Reader terminal_in, Runnable on_input)
+    {
+        this.terminal_in = terminal_in;
+        this.on_input = on_input;
+    }
+
+    ByteRing getRing ()
+    {
+        return (ring);
+    }
+
+    private void queue (int ch)
+        throws InterruptedException
+    {
+        if (ch < 0x80)
+        {
+            single [0] = (byte)ch;
+            ring.put (single);
+        }
+        else if (Character.isHighSurrogate ((char)ch))
+        {
+            // Wait for the low half
+            high_surrogate = ch;
+            return;
+        }
+        else
+        {
+            String str = (high_surrogate == -1)?
+                String.valueOf ((char)ch): new String (new char[] { (char)high_surrogate, (char)ch });
+            high_surrogate = -1;
+            ring.put (str.getBytes (StandardCharsets.UTF_8));
+        }
+
+        if (on_input != null)
+        {
+            on_input.run ();
+        }
+    }
+
+    void start ()
+    {
+        Thread blocking_reader = new Thread (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                try
+                {
+                    int ch;
+
+                    while ((ch = terminal_in.read ()) >= 0)
+                    {
+                        queue (ch);
+                    }
+                }
+                catch (IOException | InterruptedException bye) {};
+            }
+        });
+        blocking_reader.setName ("Terminal reader helper");
+        blocking_reader.setDaemon (true);
+        blocking_reader.start ();
+    }
+}
+
+// EOF